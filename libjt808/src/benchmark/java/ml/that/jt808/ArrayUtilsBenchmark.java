@@ -0,0 +1,148 @@
+package ml.that.jt808;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import com.deew.jt808.util.ArrayUtils;
+import com.deew.jt808.util.ListUtils;
+
+/**
+ * Micro benchmark of {@link ArrayUtils#escape(byte[])} and {@link ArrayUtils#unescape(byte[])}
+ * against the former implementations which boxed every byte into a {@link LinkedList}, and of the
+ * word-at-a-time {@link ArrayUtils#xorCheck(byte[])} against a bytewise loop.
+ * <p>
+ * Run it on the development machine (host) with
+ * {@code ./gradlew :libjt808:benchmark -Pbenchmark=ArrayUtilsBenchmark}, it is not a unit test. The
+ * samples are 1 KB payloads like the sub-packets of multimedia uploads.
+ *
+ */
+public class ArrayUtilsBenchmark {
+
+  private static final int SAMPLES    = 256;
+  private static final int SIZE       = 1024;
+  private static final int ITERATIONS = 20000;
+
+  public static void main(String[] args) {
+    Random random = new Random(808);
+    byte[][] raw = new byte[SAMPLES][SIZE];
+    byte[][] escaped = new byte[SAMPLES][];
+    for (int i = 0; i < SAMPLES; i++) {
+      random.nextBytes(raw[i]);
+      escaped[i] = ArrayUtils.escape(raw[i]);
+    }
+
+    // Two rounds, the first one warms up the JIT
+    for (int round = 0; round < 2; round++) {
+      long legacyEsc = time(new Op() {
+        @Override
+        public int run(byte[] in) {
+          return legacyEscape(in).length;
+        }
+      }, raw);
+      long esc = time(new Op() {
+        @Override
+        public int run(byte[] in) {
+          return ArrayUtils.escape(in).length;
+        }
+      }, raw);
+      long legacyUnesc = time(new Op() {
+        @Override
+        public int run(byte[] in) {
+          return legacyUnescape(in).length;
+        }
+      }, escaped);
+      long unesc = time(new Op() {
+        @Override
+        public int run(byte[] in) {
+          return ArrayUtils.unescape(in).length;
+        }
+      }, escaped);
+
+      long legacyXor = time(new Op() {
+        @Override
+        public int run(byte[] in) {
+          return legacyXorCheck(in);
+        }
+      }, raw);
+      long xor = time(new Op() {
+        @Override
+        public int run(byte[] in) {
+          return ArrayUtils.xorCheck(in);
+        }
+      }, raw);
+
+      if (round > 0) {
+        report("escape", legacyEsc, esc);
+        report("unescape", legacyUnesc, unesc);
+        report("xorCheck", legacyXor, xor);
+      }
+    }
+  }
+
+  private interface Op {
+    int run(byte[] in);
+  }
+
+  private static long time(Op op, byte[][] samples) {
+    int sink = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      sink += op.run(samples[i % samples.length]);
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sink == 42) {
+      System.out.println();
+    }
+    return elapsed / ITERATIONS;
+  }
+
+  private static void report(String name, long legacy, long current) {
+    System.out.println(String.format("%-8s before %8d ns/op, after %8d ns/op, speedup %.1fx",
+                                     name, legacy, current, (double) legacy / current));
+  }
+
+  private static byte[] legacyEscape(byte[] in) {
+    List<Byte> out = new LinkedList<>();
+    for (byte b : in) {
+      switch (b) {
+        case 0x7d:
+          out.add((byte) 0x7d);
+          out.add((byte) 0x01);
+          break;
+        case 0x7e:
+          out.add((byte) 0x7d);
+          out.add((byte) 0x02);
+          break;
+        default:
+          out.add(b);
+      }
+    }
+    return ListUtils.toPrimitives(out);
+  }
+
+  private static byte legacyXorCheck(byte[] in) {
+    byte checksum = 0;
+    for (byte b : in) {
+      checksum ^= b;
+    }
+    return checksum;
+  }
+
+  private static byte[] legacyUnescape(byte[] in) {
+    List<Byte> out = new LinkedList<>();
+    for (int i = 0; i < in.length; i++) {
+      if (in[i] != 0x7d) {
+        out.add(in[i]);
+        continue;
+      }
+      if (in[++i] == 0x01) {
+        out.add((byte) 0x7d);
+      } else {
+        out.add((byte) 0x7e);
+      }
+    }
+    return ListUtils.toPrimitives(out);
+  }
+
+}
@@ -0,0 +1,87 @@
+package ml.that.jt808;
+
+import java.util.Random;
+
+import com.deew.jt808.filter.AndFilter;
+import com.deew.jt808.filter.FilterCompiler;
+import com.deew.jt808.filter.MessageFilter;
+import com.deew.jt808.filter.MessageIdFilter;
+import com.deew.jt808.filter.OrFilter;
+import com.deew.jt808.msg.Message;
+
+/**
+ * Micro benchmark of the filters compiled by {@link FilterCompiler} against walking the {@link
+ * AndFilter} and {@link OrFilter} trees they come from.
+ * <p>
+ * Run it on the development machine (host) with
+ * {@code ./gradlew :libjt808:benchmark -Pbenchmark=FilterCompilerBenchmark}, it is not a unit test.
+ * Each tree has 50 leaves: an OR of ID filters, and an OR of ANDs pairing ID filters with a
+ * predicate on the body like the filters of an application routing many message types.
+ *
+ */
+public class FilterCompilerBenchmark {
+
+  private static final int LEAVES     = 50;
+  private static final int SAMPLES    = 4096;
+  private static final int ITERATIONS = 2000000;
+
+  public static void main(String[] args) {
+    Random random = new Random(808);
+    // Half of the messages carry one of the IDs of the trees
+    Message[] samples = new Message[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++) {
+      int id = random.nextBoolean() ? 0x8000 + random.nextInt(LEAVES) : random.nextInt(0x10000);
+      samples[i] = new Message.Builder((short) id).body(new byte[]{ (byte) i }).build();
+    }
+
+    OrFilter ids = new OrFilter();
+    for (int i = 0; i < LEAVES; i++) {
+      ids.addFilter(new MessageIdFilter((short) (0x8000 + i)));
+    }
+    OrFilter mixed = new OrFilter();
+    MessageFilter oddBody = new MessageFilter() {
+      @Override
+      public boolean accept(Message msg) {
+        return (msg.getBody()[0] & 1) != 0;
+      }
+    };
+    for (int i = 0; i < LEAVES / 2; i++) {
+      mixed.addFilter(new AndFilter(new MessageIdFilter((short) (0x8000 + i * 2)), oddBody));
+    }
+
+    MessageFilter compiledIds = FilterCompiler.compile(ids);
+    MessageFilter compiledMixed = FilterCompiler.compile(mixed);
+    // Two rounds, the first one warms up the JIT
+    for (int round = 0; round < 2; round++) {
+      double treeIds = time(ids, samples);
+      double flatIds = time(compiledIds, samples);
+      double treeMixed = time(mixed, samples);
+      double flatMixed = time(compiledMixed, samples);
+      if (round > 0) {
+        report("ids", treeIds, flatIds);
+        report("mixed", treeMixed, flatMixed);
+      }
+    }
+  }
+
+  private static double time(MessageFilter filter, Message[] samples) {
+    int sink = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      if (filter.accept(samples[i % samples.length])) {
+        sink++;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+    if (sink == 42) {
+      System.out.println();
+    }
+    return (double) elapsed / ITERATIONS;
+  }
+
+  private static void report(String name, double tree, double compiled) {
+    System.out.println(String.format("%-6s tree %6.1f ns/op, compiled %6.1f ns/op, speedup %.1fx",
+                                     name, tree, compiled, tree / compiled));
+  }
+
+}
@@ -0,0 +1,136 @@
+package ml.that.jt808;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.deew.jt808.util.MpscRingBuffer;
+
+/**
+ * Micro benchmark of the {@link MpscRingBuffer} the message writer queues packets into, against
+ * the former queue: a fair {@link ArrayBlockingQueue} whose producers put and notify while holding
+ * its monitor, and whose consumer waits on that monitor.
+ * <p>
+ * The former queue held 500 packets, but a producer blocked in a full queue holds the monitor the
+ * notified consumer has to lock again, so the bounded form deadlocks as soon as producers outpace
+ * the consumer. It is measured with room for every element instead, which flatters it.
+ * <p>
+ * Run it on the development machine (host) with
+ * {@code ./gradlew :libjt808:benchmark -Pbenchmark=RingBufferBenchmark}, it is not a unit test.
+ * Each run has 1, 4 then 16 producer threads sending a million elements in total to a single
+ * consumer.
+ *
+ */
+public class RingBufferBenchmark {
+
+  private static final int   ELEMENTS  = 1000000;
+  private static final int[] PRODUCERS = { 1, 4, 16 };
+
+  public static void main(String[] args) throws Exception {
+    // Two rounds, the first one warms up the JIT
+    for (int round = 0; round < 2; round++) {
+      for (int producers : PRODUCERS) {
+        long legacy = time(new LegacyQueue(), producers);
+        long ring = time(new RingQueue(), producers);
+        if (round > 0) {
+          System.out.println(String.format(
+              "%2d producers  before %6d ns/op, after %6d ns/op, speedup %.1fx", producers,
+              legacy, ring, (double) legacy / ring));
+        }
+      }
+    }
+  }
+
+  private interface Queue {
+
+    void put(Object e) throws InterruptedException;
+
+    Object take();
+
+  }
+
+  private static long time(final Queue queue, int producers) throws Exception {
+    final int perProducer = ELEMENTS / producers;
+    final CountDownLatch start = new CountDownLatch(1);
+    final Object element = new Object();
+    for (int p = 0; p < producers; p++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < perProducer; i++) {
+              queue.put(element);
+            }
+          } catch (InterruptedException ie) {
+            // Do nothing
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    for (int i = perProducer * producers; i > 0; i--) {
+      queue.take();
+    }
+    return (System.nanoTime() - begin) / (perProducer * producers);
+  }
+
+  /** The former queue of the message writer. */
+  private static class LegacyQueue implements Queue {
+
+    // Never full, see above
+    private final BlockingQueue<Object> mQueue = new ArrayBlockingQueue<>(ELEMENTS, true);
+
+    @Override
+    public void put(Object e) throws InterruptedException {
+      synchronized (mQueue) {
+        mQueue.put(e);
+        mQueue.notifyAll();
+      }
+    }
+
+    @Override
+    public Object take() {
+      Object e;
+      while ((e = mQueue.poll()) == null) {
+        synchronized (mQueue) {
+          if (mQueue.isEmpty()) {
+            try {
+              mQueue.wait();
+            } catch (InterruptedException ie) {
+              // Do nothing
+            }
+          }
+        }
+      }
+      return e;
+    }
+
+  }
+
+  private static class RingQueue implements Queue {
+
+    private final MpscRingBuffer<Object> mRing = new MpscRingBuffer<>(512);
+
+    @Override
+    public void put(Object e) throws InterruptedException {
+      mRing.put(e);
+    }
+
+    @Override
+    public Object take() {
+      Object e;
+      while ((e = mRing.poll()) == null) {
+        mRing.await(0, TimeUnit.MILLISECONDS);
+      }
+      return e;
+    }
+
+  }
+
+}
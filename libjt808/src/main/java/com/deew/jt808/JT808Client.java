@@ -1,17 +1,14 @@
 package com.deew.jt808;
 
-import android.util.Log;
-
 import com.deew.jt808.conn.Connection;
 import com.deew.jt808.conn.ConnectionConfiguration;
 import com.deew.jt808.conn.ConnectionStateCallback;
-import com.deew.jt808.conn.MessageListener;
-import com.deew.jt808.filter.MessageIdFilter;
-import com.deew.jt808.msg.AuthenticateRequest;
+import com.deew.jt808.conn.ReplyFuture;
 import com.deew.jt808.msg.Message;
 import com.deew.jt808.msg.RegisterReply;
 import com.deew.jt808.msg.RegisterRequest;
 import com.deew.jt808.msg.ServerGenericReply;
+import com.deew.jt808.util.Log;
 import com.deew.jt808.util.LogUtils;
 
 /**
@@ -87,11 +84,14 @@ public class JT808Client implements ConnectionStateCallback{
      * Be careful with that you must wait until the connection connected (using ConnectionStateCallback)
      * before calling this method to send a message
      *
+     * The message is retransmitted until the server replies, as configured in the connection
+     * configuration.
+     *
      * @param message
      */
     public void sendMessage(Message message) throws IllegalAccessException{
         if(isAuthenticate){
-            mConnection.sendMessage(message);
+            mConnection.sendAsync(message);
         }else{
             throw new IllegalAccessException("Can not send any message before authenticated");
         }
@@ -113,51 +113,53 @@ public class JT808Client implements ConnectionStateCallback{
 
     public void registerClient(RegisterRequest registerRequest){
         Log.d(TAG, "registerClient " + registerRequest);
-        mConnection.addRcvListener(mRegisterMsgListener, new MessageIdFilter(RegisterReply.ID));
-        mConnection.sendMessage(registerRequest);
+        mConnection.<RegisterReply>sendForReply(registerRequest, RegisterReply.ID)
+                .addListener(mRegisterReplyListener);
     }
 
     public void authenticate(String authCode){
         Log.d(TAG, "authenticate " + authCode);
-        AuthenticateRequest request = new AuthenticateRequest.Builder(authCode).build();
-        mConnection.addRcvListener(mAuthMsgListener, new MessageIdFilter(ServerGenericReply.ID));
-        mConnection.sendMessage(request);
+        mConnection.authenticate(authCode).addListener(mAuthReplyListener);
     }
 
-    /** A message listener to process register reply. */
-    private MessageListener mRegisterMsgListener =  new MessageListener(){
+    /** A listener to process the reply to the register request. */
+    private ReplyFuture.Listener<RegisterReply> mRegisterReplyListener =
+            new ReplyFuture.Listener<RegisterReply>() {
+
+        @Override
+        public void onReply(RegisterReply reply) {
+            Log.d(TAG, "onReply: reply=" + reply);
+            if(mStateCallback != null){
+                mStateCallback.registerComplete(reply);
+            }
+        }
 
         @Override
-        public void processMessage(Message msg) {
-            Log.d(TAG, "processMessage: msg=" + msg);
-//            if (RegisterReply.ID == msg.getId()) {
-                RegisterReply reply = new RegisterReply.Builder(msg).build();
-                mConnection.removeRcvListener(mRegisterMsgListener);
-                if(mStateCallback != null){
-                    mStateCallback.registerComplete(reply);
-                }
-//            }
+        public void onFailure(Throwable cause) {
+            Log.w(TAG, "onFailure: Registration failed.", cause);
         }
 
     };
 
 
-    /** A message listener to process auth reply. */
-    private MessageListener mAuthMsgListener =  new MessageListener(){
+    /** A listener to process the reply to the authentication request. */
+    private ReplyFuture.Listener<ServerGenericReply> mAuthReplyListener =
+            new ReplyFuture.Listener<ServerGenericReply>() {
+
+        @Override
+        public void onReply(ServerGenericReply reply) {
+            Log.d(TAG, "onReply: reply=" + reply);
+            if(reply.getResult() == ServerGenericReply.RESULT_OK){
+                isAuthenticate = true;
+            }
+            if(mStateCallback != null){
+                mStateCallback.authComplete(reply);
+            }
+        }
 
         @Override
-        public void processMessage(Message msg) {
-            Log.d(TAG, "processMessage: msg=" + msg);
-//            if(ServerGenericReply.ID == msg.getId()){
-                ServerGenericReply reply = new ServerGenericReply.Builder(msg).build();
-                mConnection.removeRcvListener(mAuthMsgListener);
-                if(reply.getResult() == ServerGenericReply.RESULT_OK){
-                    isAuthenticate = true;
-                }
-                if(mStateCallback != null){
-                    mStateCallback.authComplete(reply);
-                }
-//            }
+        public void onFailure(Throwable cause) {
+            Log.w(TAG, "onFailure: Authentication failed.", cause);
         }
 
     };
@@ -1,13 +1,23 @@
 package com.deew.jt808.auth;
 
-import com.deew.jt808.conn.MessageCollector;
 import com.deew.jt808.msg.ServerGenericReply;
 import com.deew.jt808.conn.Connection;
-import com.deew.jt808.filter.MessageIdFilter;
+import com.deew.jt808.conn.ReplyFuture;
 import com.deew.jt808.msg.AuthenticateRequest;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class AdvancedAuthentication {
 
+  private static final String TAG = LogUtils.makeTag(AdvancedAuthentication.class);
+
+  // Time to wait for the reply, which covers the first retransmission with the default timeout
+  private static final long REPLY_TIMEOUT = 15000L;
+
   private static final String[] SVR_KEYS = new String[]{ "0123456789ABCDEF" };
   private static final String[] CLT_KEYS = new String[]{ "123456789JIANGSU" };
 
@@ -110,14 +120,23 @@ public class AdvancedAuthentication {
 //        return false;
 //    }
 
-    MessageCollector serverReplyCollector =
-            mConnection.createMessageCollector(new MessageIdFilter(ServerGenericReply.ID));
-    // Send the request
     AuthenticateRequest request = new AuthenticateRequest.Builder(auth).build();
-    mConnection.sendMessage(request);
-
-    // Wait up to a certain number of seconds for a challenge command from the server
-    ServerGenericReply serverReply = (ServerGenericReply) serverReplyCollector.nextResult(5000L);
+    ServerGenericReply serverReply;
+    // Send the request and wait for the reply from the server, retransmissions included, for up
+    // to REPLY_TIMEOUT
+    ReplyFuture<ServerGenericReply> future = mConnection.sendAsync(request);
+    try {
+      serverReply = future.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ie) {
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException | TimeoutException e) {
+      // Stop retransmitting a request nobody waits for any more
+      future.cancel(false);
+      Log.w(TAG, "authenticate: No reply from the server.", e);
+      return false;
+    }
 
     switch (serverReply.getResult()) {
       case ServerGenericReply.RESULT_OK:
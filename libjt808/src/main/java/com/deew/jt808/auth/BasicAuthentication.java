@@ -1,14 +1,23 @@
 package com.deew.jt808.auth;
 
-import com.deew.jt808.conn.MessageCollector;
-import com.deew.jt808.msg.Message;
 import com.deew.jt808.msg.ServerGenericReply;
 import com.deew.jt808.conn.Connection;
-import com.deew.jt808.filter.MessageIdFilter;
+import com.deew.jt808.conn.ReplyFuture;
 import com.deew.jt808.msg.AuthenticateRequest;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class BasicAuthentication {
 
+  private static final String TAG = LogUtils.makeTag(BasicAuthentication.class);
+
+  // Time to wait for the reply, which covers the first retransmission with the default timeout
+  private static final long REPLY_TIMEOUT = 15000L;
+
   private Connection mConnection;
 
   public BasicAuthentication(Connection conn) {
@@ -16,19 +25,23 @@ public class BasicAuthentication {
   }
 
   public boolean authenticate(String auth) {
-    MessageCollector collector =
-        mConnection.createMessageCollector(new MessageIdFilter(ServerGenericReply.ID));
     AuthenticateRequest request = new AuthenticateRequest.Builder(auth).build();
-    // Send the message
-    mConnection.sendMessage(request);
-    // Wait up to a certain number of seconds for a reply from the server
-    Message replyMsg = collector.nextResult(5000L);
-    ServerGenericReply reply = new ServerGenericReply.Builder(replyMsg).build();
-    if (reply == null) {
-      throw new NullPointerException("No reply from the server.");
+    ServerGenericReply reply;
+    // Send the request and wait for the reply from the server, retransmissions included, for up
+    // to REPLY_TIMEOUT
+    ReplyFuture<ServerGenericReply> future = mConnection.sendAsync(request);
+    try {
+      reply = future.get(REPLY_TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ie) {
+      future.cancel(false);
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException | TimeoutException e) {
+      // Stop retransmitting a request nobody waits for any more
+      future.cancel(false);
+      Log.w(TAG, "authenticate: No reply from the server.", e);
+      return false;
     }
-    // Otherwise, no error so continue processing
-    collector.cancel();
 
     switch (reply.getResult()) {
       case ServerGenericReply.RESULT_OK:
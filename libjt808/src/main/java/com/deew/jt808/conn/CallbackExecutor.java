@@ -0,0 +1,33 @@
+package com.deew.jt808.conn;
+
+/**
+ * Runs the {@link ConnectionStateCallback} of a connection.
+ * <p>
+ * Callbacks run on the Android main thread by default, through {@link MainThreadExecutor}. A
+ * connection without an Android looper, like a gateway or a benchmark on a plain JVM, is configured
+ * with {@link #DIRECT} to run them on the thread which connects, or with a {@link SelectorLoop} to
+ * run them on a dedicated loop thread.
+ *
+ * @see ConnectionConfiguration#setCallbackExecutor(CallbackExecutor)
+ */
+public interface CallbackExecutor {
+
+  /**
+   * Runs callbacks on the thread which connects, that is the selector loop for a non-blocking
+   * connection. Callbacks must then never block.
+   */
+  CallbackExecutor DIRECT = new CallbackExecutor() {
+    @Override
+    public void execute(Runnable task) {
+      task.run();
+    }
+  };
+
+  /**
+   * Runs a callback, now or later.
+   *
+   * @param task the callback to run
+   */
+  void execute(Runnable task);
+
+}
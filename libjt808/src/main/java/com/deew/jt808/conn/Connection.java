@@ -1,11 +1,14 @@
 package com.deew.jt808.conn;
 
-import android.os.Handler;
-import android.os.Looper;
-import android.util.Log;
-
 import com.deew.jt808.filter.MessageFilter;
+import com.deew.jt808.msg.AuthenticateRequest;
 import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.ResendRequest;
+import com.deew.jt808.msg.SerialNumberAllocator;
+import com.deew.jt808.msg.ServerGenericReply;
+import com.deew.jt808.util.HashedWheelTimer;
+import com.deew.jt808.util.Log;
 import com.deew.jt808.util.LogUtils;
 
 import java.io.IOException;
@@ -18,6 +21,7 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Creates a socket connection to a JT/T808 server.
@@ -48,12 +52,13 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * <p>
  * If a connected Connection gets disconnected abruptly and automatic reconnection is enabled
  * ({@link ConnectionConfiguration#isReconnectionAllowed()}, the default), then it will try to
- * reconnect again. To stop the reconnection process, use {@link #disconnect()}. Once stopped you
- * can use {@link #connect()} to manually connect to the server.
+ * reconnect again, with a growing delay between the attempts. Listeners, collectors, the queued
+ * messages and the requests waiting for a reply are kept meanwhile, messages sent while
+ * reconnecting are queued. Once reconnected, the connection authenticates again with the code of
+ * the last {@link #authenticate(String)} before it writes the queued messages. To stop the
+ * reconnection process, use {@link #shutDown()}. {@link #connect()} reconnects at once.
  *
  */
-
-// TODO: 2017/4/3  Add auto reconnect
 public class Connection {
 
   private static final String TAG = LogUtils.makeTag(Connection.class);
@@ -67,12 +72,27 @@ public class Connection {
   private OutputStream  mOutput;
   private MessageReader mReader;
   private MessageWriter mWriter;
-  private Handler mCallbackHandler;
+  // The non-blocking socket used instead of the streams when a selector loop is configured
+  private NioTransport  mTransport;
+
+  // Allocates the serial numbers of the packets sent over this connection
+  private final SerialNumberAllocator mSnAllocator = new SerialNumberAllocator();
+  // Requests sent asynchronously which wait for a reply of the server
+  private final PendingAckTable       mPendingAcks;
+  // Requests which wait for a reply other than the generic one
+  private final ReplyWaiters          mReplyWaiters = new ReplyWaiters();
+  // Counts the batches written over this connection, kept across connections
+  private final WriteStats            mWriteStats = new WriteStats();
+  // Messages waiting to be written, created from the configuration on first connect and kept
+  // across connections
+  private volatile OutboundQueue      mOutbound;
+  // Notified when a full lane of the outbound queue drains, kept across connections
+  private volatile WritabilityListener mWritabilityListener;
 
   private static final byte CONNECTED = 0;
   private static final byte CONNECTING = 1;
 //  private static final byte DISCONNECTING = 2;
-//  private static final byte DISCONNECTED = 3;
+  private static final byte DISCONNECTED = 3;
   private static final byte CLOSEING = 4;
   private static final byte CLOSED = 5;
 
@@ -80,6 +100,17 @@ public class Connection {
 
   private Object	conLock = new Object();  	// Used to synchronize connection state
 
+  // Schedules the attempts to reconnect once the connection has been lost
+  private final ReconnectionManager mReconnection = new ReconnectionManager(this);
+  // Set from the loss of the connection until it is reestablished, guarded by conLock
+  private boolean mReconnecting;
+  // Counts the connections established, guarded by conLock
+  private int     mGeneration;
+  // The code of the last authentication, sent again after reconnecting, and the reply to the
+  // authentication in flight. Guarded by conLock
+  private String                          mAuthCode;
+  private ReplyFuture<ServerGenericReply> mAuthFuture;
+
 //  private boolean mConnected     = false;
 
   // Flag that indicates if the client is currently authenticated with the server
@@ -87,6 +118,8 @@ public class Connection {
 
 
   private ConnectionStateCallback mStateCallback;
+  // Notified directly on the connecting thread, kept across connections
+  private ConnectionStateCallback mDirectStateCallback;
 
   /**
    * Creates a new JT/T808 connection using the specified connection configuration.
@@ -96,14 +129,50 @@ public class Connection {
    *
    */
   public Connection() {
-    mCallbackHandler = new Handler(Looper.getMainLooper());
+    this(PendingAckTable.DEFAULT_CAPACITY);
   }
 
+  /**
+   * Creates a new connection whose table of pending requests has the specified number of slots.
+   *
+   * @param ackCapacity the capacity of the pending acknowledgement table
+   * @see PendingAckTable#PendingAckTable(HashedWheelTimer, PendingAckTable.Retransmitter, int)
+   */
+  Connection(int ackCapacity) {
+    mPendingAcks = new PendingAckTable(HashedWheelTimer.getDefault(),
+                                       new PendingAckTable.Retransmitter() {
+                                         @Override
+                                         public void retransmit(byte[][] frames) {
+                                           MessageWriter writer = mWriter;
+                                           if (writer != null) {
+                                             writer.retransmit(frames);
+                                           }
+                                         }
+                                       }, ackCapacity);
+  }
 
+
+  /**
+   * Sets the callback notified when the connection succeeds or fails, on the {@link
+   * ConnectionConfiguration#getCallbackExecutor() callback executor} of the configuration.
+   *
+   * @param stateCallback the callback, or {@code null} to remove it
+   */
   public void setStateCallback(ConnectionStateCallback stateCallback){
     mStateCallback = stateCallback;
   }
 
+  /**
+   * Sets a callback which is notified on the thread which connects, that is the selector loop for
+   * a non-blocking connection, instead of the callback executor. Unlike the callback set with
+   * {@link #setStateCallback(ConnectionStateCallback)}, it is kept when the connection is closed.
+   *
+   * @param stateCallback the callback, or {@code null} to remove it
+   */
+  void setDirectStateCallback(ConnectionStateCallback stateCallback) {
+    mDirectStateCallback = stateCallback;
+  }
+
   public void setConfig(ConnectionConfiguration config){
     mConfig = config;
   }
@@ -117,6 +186,62 @@ public class Connection {
     return mConfig;
   }
 
+  /**
+   * Returns the allocator of the serial numbers of the packets sent over this connection.
+   *
+   * @return the serial number allocator
+   */
+  public SerialNumberAllocator getSnAllocator() {
+    return mSnAllocator;
+  }
+
+  /**
+   * Returns the requests sent asynchronously which wait for a reply of the server. The table also
+   * counts the retransmissions.
+   *
+   * @return the pending acknowledgement table
+   */
+  public PendingAckTable getPendingAcks() {
+    return mPendingAcks;
+  }
+
+  /**
+   * Returns the requests which wait for a specific reply of the server.
+   *
+   * @return the reply waiters
+   * @see #sendForReply(Message, short, long)
+   */
+  public ReplyWaiters getReplyWaiters() {
+    return mReplyWaiters;
+  }
+
+  /**
+   * Returns the statistics of the batches written to the server over this connection.
+   *
+   * @return the write statistics
+   */
+  public WriteStats getWriteStats() {
+    return mWriteStats;
+  }
+
+  /**
+   * Returns the queue of the messages waiting to be written, which reports the depth of its lanes.
+   *
+   * @return the outbound queue, or {@code null} if the connection has never been connected
+   */
+  public OutboundQueue getOutboundQueue() {
+    return mOutbound;
+  }
+
+  /**
+   * Returns the non-blocking transport of this connection.
+   *
+   * @return the transport, or {@code null} if the connection uses a blocking socket
+   */
+  NioTransport getTransport() {
+    return mTransport;
+  }
+
   public InputStream getInput() {
     return mInput;
   }
@@ -143,11 +268,17 @@ public class Connection {
 //    }
 //  }
 //
-//  public boolean isDisconnected() {
-//    synchronized (conLock){
-//      return mConnState == DISCONNECTED;
-//    }
-//  }
+
+  /**
+   * Returns if the connection has been lost and waits for the next attempt to reconnect.
+   *
+   * @return {@code true} if the connection waits to reconnect
+   */
+  public boolean isDisconnected() {
+    synchronized (conLock){
+      return mConnState == DISCONNECTED;
+    }
+  }
 
   public boolean isClosing() {
     synchronized (conLock){
@@ -185,10 +316,10 @@ public class Connection {
 //      }else if(isClosed()){
 //        throw new IllegalStateException("connection is closed");
 //      }
-      if(isClosed()){
-        mConnState = CONNECTING;
-        ConnectBG connectBg = new ConnectBG();
-        connectBg.start();
+      if(isClosed() || isDisconnected()){
+        // Do not wait for the scheduled attempt
+        mReconnection.cancel();
+        startConnect();
       }
       else if(isConnecting()){
         throw new IllegalStateException("connection is connecting");
@@ -205,6 +336,31 @@ public class Connection {
     }
   }
 
+  // Must hold conLock
+  private void startConnect() {
+    mConnState = CONNECTING;
+    SelectorLoop loop = getConfig().getSelectorLoop();
+    if (loop != null) {
+      // Connect without blocking any thread, the loop calls back once connected
+      mTransport = new NioTransport(this, loop);
+      mTransport.connect(getConfig().getHost(), getConfig().getPort(),
+                         getConfig().getConnectTimeout());
+    } else {
+      ConnectBG connectBg = new ConnectBG();
+      connectBg.start();
+    }
+  }
+
+  /** Called by the reconnection manager when the next attempt to reconnect is due. */
+  void reconnect() {
+    synchronized (conLock) {
+      if (mConnState == DISCONNECTED) {
+        Log.d(TAG, "reconnect: Reconnecting to " + getConfig().getHost());
+        startConnect();
+      }
+    }
+  }
+
   /**
    *
    */
@@ -229,19 +385,68 @@ public class Connection {
         Log.d(TAG, "create socket");
         SocketAddress socketAddress = new InetSocketAddress(host, port);
         Socket socket = new Socket();
-        //TODO read the timeout from  connection config
-        socket.connect(socketAddress, 5000);
+        socket.connect(socketAddress, (int) getConfig().getConnectTimeout());
         connectComplete(socket);
       }catch(IOException e) {
         Log.e(TAG, "Connect FAIL !!!", e);
+        connectFailed(e);
+      }
+    }
+  }
+
+  /**
+   * Called when the socket failed to connect. An attempt to reconnect is followed by the next one,
+   * otherwise the connection is closed.
+   *
+   * @param cause the cause of the failure
+   */
+  void connectFailed(IOException cause) {
+    synchronized (conLock) {
+      if (mReconnecting && mConnState == CONNECTING) {
+        Log.w(TAG, "connectFailed: Reconnection failed, " + cause);
+        closeSocket();
+        mConnState = DISCONNECTED;
+        mReconnection.schedule();
+        return;
+      }
+    }
+
+    // Close all the writer, reader, iostream and socket, Reset other component
+    shutDown();
 
-        // Close all the writer, reader, iostream and socket, Reset other component
-        shutDown();
+    // Notify connect fail
+    onConnectFail();
+  }
 
-        // Notify connect fail
-        onConnectFail();
+  /**
+   * Called by the reader, the writer or the transport when the connection fails. If reconnection
+   * is allowed, only the socket is closed and the connection reconnects later, otherwise the
+   * connection is closed.
+   *
+   * @param cause the cause of the failure
+   */
+  void connectionLost(IOException cause) {
+    synchronized (conLock) {
+      if (mConnState == DISCONNECTED || mReconnecting) {
+        // Lost already
+        return;
+      }
+      if (mConnState == CONNECTED && mConfig.isReconnectionAllowed()) {
+        Log.w(TAG, "connectionLost: Reconnecting.", cause);
+        mWriter.abort();
+        mReader.shutdown();
+        closeSocket();
+        // Retransmissions wait for the next connection
+        mPendingAcks.suspend();
+        mConnState = DISCONNECTED;
+        mReconnecting = true;
+        mReconnection.schedule();
+        return;
       }
     }
+
+    Log.w(TAG, "connectionLost: Closing.", cause);
+    shutDown();
   }
 
   /**
@@ -251,37 +456,146 @@ public class Connection {
    */
   private void connectComplete(Socket socket) throws IOException{
     synchronized (conLock){
+      if (mConnState != CONNECTING) {
+        // Closed while connecting
+        socket.close();
+        return;
+      }
       mSocket = socket;
 
-      boolean isFirstInit = (mReader == null || mWriter == null);
-
       // Set the input stream and output stream instance variables
       mInput = mSocket.getInputStream();
       mOutput = mSocket.getOutputStream();
 
-      if (isFirstInit) {
-        mWriter = new MessageWriter(this);
-        mReader = new MessageReader(this);
-      } else {
-        mWriter.init();
-        mReader.init();
+      startup();
+    }
+  }
+
+  /**
+   * Called on the selector loop thread once the non-blocking socket is connected.
+   *
+   * @param transport the connected transport
+   */
+  void connectComplete(NioTransport transport) {
+    synchronized (conLock){
+      if (transport != mTransport) {
+        // Closed while connecting
+        transport.close();
+        return;
       }
 
-      // Start the message writer
-      mWriter.startup();
-      // Start the message reader, the startup() method will block until we get a packet from server
-      mReader.startup();
+      startup();
+      mTransport.start(mReader, mWriter);
+    }
+  }
+
+  // Must hold conLock
+  private void startup() {
+    boolean isFirstInit = (mReader == null || mWriter == null);
+
+    if (mOutbound == null) {
+      mOutbound = new OutboundQueue(
+          new int[]{ mConfig.getLaneCapacity(OutboundQueue.LANE_CONTROL),
+                     mConfig.getLaneCapacity(OutboundQueue.LANE_ALARM),
+                     mConfig.getLaneCapacity(OutboundQueue.LANE_REALTIME),
+                     mConfig.getLaneCapacity(OutboundQueue.LANE_BULK) },
+          mConfig.getBulkWeight(), mConfig.getOverflowPolicy(), mConfig.getSpillDirectory());
+      mOutbound.setWritabilityListener(mWritabilityListener);
+    }
+    if (isFirstInit) {
+      mWriter = new MessageWriter(this);
+      mReader = new MessageReader(this);
+    } else {
+      mWriter.init();
+      mReader.init();
+    }
 
-      // TODO: 2016/11/1 move this to when logged in
-      // Start keep alive process
-      mWriter.keepAlive();
+    mGeneration++;
 
-      // Make note of the fact that we're now connected
-      mConnState = CONNECTED;
-      Log.d(TAG, "connect SUCCESS !!!");
+    // After reconnecting, the queued messages wait for the server to accept the authentication
+    boolean reconnected = mReconnecting;
+    String authCode = reconnected ? mAuthCode : null;
+    if (authCode != null) {
+      mWriter.hold();
+    }
 
-      onConnectSuccess();
+    // Start the message writer
+    mWriter.startup();
+    // Start the message reader, the startup() method will block until we get a packet from server
+    mReader.startup();
+
+    // TODO: 2016/11/1 move this to when logged in
+    // Start keep alive process
+    mWriter.keepAlive();
+
+    // Make note of the fact that we're now connected
+    mConnState = CONNECTED;
+    mReconnecting = false;
+    Log.d(TAG, "connect SUCCESS !!!");
+
+    if (authCode != null) {
+      reauthenticate(authCode);
+    } else if (reconnected) {
+      reconnectComplete();
     }
+
+    onConnectSuccess();
+  }
+
+  // Must hold conLock
+  private void reauthenticate(String authCode) {
+    EncodedMessage encoded = encode(new AuthenticateRequest.Builder(authCode).build());
+    short sn = encoded.mPackets[encoded.mPackets.length - 1].getSn();
+    // Not retransmitted, the pending requests are suspended until the server accepts the code
+    ReplyFuture<ServerGenericReply> future = mReplyWaiters.expect(ServerGenericReply.ID, sn,
+                                                                  mConfig.getReplyTimeout());
+    mAuthFuture = future;
+    future.addListener(new ReauthListener(mGeneration));
+    mWriter.sendAhead(encoded);
+  }
+
+  // Writes the queued messages and the pending requests once reconnected
+  private void reconnectComplete() {
+    Log.d(TAG, "reconnectComplete: Reconnected.");
+    mPendingAcks.resume();
+    mReconnection.reset();
+  }
+
+  /** Releases the queued messages once the server accepts the authentication after reconnecting. */
+  private class ReauthListener implements ReplyFuture.Listener<ServerGenericReply> {
+
+    private final int mConnGeneration;
+
+    ReauthListener(int generation) {
+      mConnGeneration = generation;
+    }
+
+    @Override
+    public void onReply(ServerGenericReply reply) {
+      synchronized (conLock) {
+        if (mConnGeneration != mGeneration || mConnState != CONNECTED) {
+          return;
+        }
+        if (reply.getResult() == ServerGenericReply.RESULT_OK) {
+          mWriter.release();
+          reconnectComplete();
+          return;
+        }
+        Log.w(TAG, "onReply: Authentication refused after reconnecting, " + reply);
+        mAuthCode = null;
+      }
+      shutDown();
+    }
+
+    @Override
+    public void onFailure(Throwable cause) {
+      synchronized (conLock) {
+        if (mConnGeneration == mGeneration) {
+          connectionLost(new IOException("No reply to the authentication.", cause));
+        }
+      }
+    }
+
   }
 
   /**
@@ -332,6 +646,10 @@ public class Connection {
     synchronized (conLock){
 //    if(!isDisconnected()){
         if(!isClosed()){
+          // The replies and timeouts of the requests of this connection are stale
+          mGeneration++;
+          mReconnection.cancel();
+          mReconnection.reset();
           if (mWriter != null) {
             mWriter.shutdown();
             mWriter = null;
@@ -340,35 +658,24 @@ public class Connection {
             mReader.shutdown();
             mReader = null;
           }
-          if (mInput != null) {
-            try {
-              mInput.close();
-            } catch (IOException e) {
-              // Ignore
-            }
-            mInput = null;
-          }
-          if (mOutput != null) {
-            try {
-              mOutput.close();
-            } catch (IOException e) {
-              // Ignore
-            }
-            mOutput = null;
-          }
-          if (mSocket != null) {
-            try {
-              mSocket.close();
-            } catch (IOException e) {
-              // Ignore
-            }
-            mSocket = null;
+          closeSocket();
+          if (mReconnecting) {
+            // No writer is left to flush the messages queued since the connection was lost
+            mOutbound.clear();
+            mReconnecting = false;
           }
+          mAuthCode = null;
+          mAuthFuture = null;
+
+          mPendingAcks.failAll(new IOException("Connection closed."));
+          mPendingAcks.resume();
+          mReplyWaiters.failAll(new IOException("Connection closed."));
 
           mStateCallback = null;
-          mCallbackHandler = null;
           mCollectors.clear();
+          mCollectorIndex.clear();
           mRcvListeners.clear();
+          mRcvIndex.clear();
           mSndListeners.clear();
 
           mConnState = CLOSED;
@@ -378,43 +685,427 @@ public class Connection {
     }
   }
 
+  // Must hold conLock
+  private void closeSocket() {
+    if (mTransport != null) {
+      mTransport.close();
+      mTransport = null;
+    }
+    if (mInput != null) {
+      try {
+        mInput.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+      mInput = null;
+    }
+    if (mOutput != null) {
+      try {
+        mOutput.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+      mOutput = null;
+    }
+    if (mSocket != null) {
+      try {
+        mSocket.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+      mSocket = null;
+    }
+  }
+
   private Socket getSocket(){
     return mSocket;
   }
 
+  // Messages are queued while the connection is reestablished
+  private boolean isSendable() {
+    synchronized (conLock){
+      return mConnState == CONNECTED || mReconnecting;
+    }
+  }
+
+  // The writer is read with the state, a concurrent shutDown() clears it
+  private MessageWriter getSendableWriter() {
+    synchronized (conLock) {
+      MessageWriter writer = mWriter;
+      if ((mConnState != CONNECTED && !mReconnecting) || writer == null) {
+        throw new IllegalStateException("Not connected to server.");
+      }
+      return writer;
+    }
+  }
+
   /**
    * Send a message to server. Remember Checking if connected first
    *
    * @param msg
    */
   public void sendMessage(Message msg) {
-    if (!isConnected()) {
-      throw new IllegalStateException("Not connected to server.");
+    if (msg == null) {
+      throw new NullPointerException("Message is null.");
+    }
+    sendMessage(msg, OutboundQueue.laneOf(msg));
+  }
+
+  /**
+   * Sends a message to the server on the specified lane of the outbound queue, such as {@link
+   * OutboundQueue#LANE_BULK} for historical points which should not delay realtime traffic. If the
+   * lane is full, the {@link ConnectionConfiguration#getOverflowPolicy() overflow policy} applies.
+   *
+   * @param msg  the message to send
+   * @param lane the lane
+   * @throws QueueFullException if the lane is full and the policy is {@link
+   *                            OutboundQueue#OVERFLOW_REJECT}, or the message has been dropped
+   *                            because it was sent on the selector loop, which never waits, or the
+   *                            sender was interrupted while waiting
+   * @throws IllegalStateException if the connection is not established or has been shut down
+   */
+  public void sendMessage(Message msg, int lane) {
+    MessageWriter writer = getSendableWriter();
+    if (msg == null) {
+      throw new NullPointerException("Message is null.");
+    }
+
+    if (!writer.send(encode(msg), lane)) {
+      if (!isSendable()) {
+        throw new IllegalStateException("Connection shut down.");
+      }
+      throw new QueueFullException(lane);
+    }
+  }
+
+  /**
+   * Sends a message to the server if there is space in its lane, without ever waiting. The
+   * overflow policy does not apply, a message which is not sent is left to the caller, who may
+   * retry once notified by the {@link #setWritabilityListener(WritabilityListener) writability
+   * listener}.
+   *
+   * @param msg the message to send
+   * @return {@code true} if the message has been queued, {@code false} if its lane is full
+   */
+  public boolean trySend(Message msg) {
+    if (msg == null) {
+      throw new NullPointerException("Message is null.");
+    }
+    return trySend(msg, OutboundQueue.laneOf(msg));
+  }
+
+  /**
+   * Sends a message to the server on the specified lane if there is space in it, without ever
+   * waiting.
+   *
+   * @param msg  the message to send
+   * @param lane the lane
+   * @return {@code true} if the message has been queued, {@code false} if the lane is full
+   * @see #trySend(Message)
+   */
+  public boolean trySend(Message msg, int lane) {
+    try {
+      return offer(msg, lane, 0, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ie) {
+      // Never waits
+      return false;
+    }
+  }
+
+  /**
+   * Sends a message to the server, waiting up to the specified time for space in its lane. The
+   * overflow policy does not apply. Called on the selector loop, it does not wait.
+   *
+   * @param msg     the message to send
+   * @param timeout the maximum time to wait, 0 not to wait
+   * @param unit    the time unit of the timeout
+   * @return {@code true} if the message has been queued, {@code false} if its lane is still full
+   * @throws InterruptedException if interrupted while waiting, the message is not sent
+   */
+  public boolean offer(Message msg, long timeout, TimeUnit unit) throws InterruptedException {
+    if (msg == null) {
+      throw new NullPointerException("Message is null.");
+    }
+    return offer(msg, OutboundQueue.laneOf(msg), timeout, unit);
+  }
+
+  /**
+   * Sends a message to the server on the specified lane, waiting up to the specified time for
+   * space in it.
+   *
+   * @param msg     the message to send
+   * @param lane    the lane
+   * @param timeout the maximum time to wait, 0 not to wait
+   * @param unit    the time unit of the timeout
+   * @return {@code true} if the message has been queued, {@code false} if the lane is still full
+   * @throws InterruptedException if interrupted while waiting, the message is not sent
+   * @see #offer(Message, long, TimeUnit)
+   */
+  public boolean offer(Message msg, int lane, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    MessageWriter writer = getSendableWriter();
+    if (msg == null) {
+      throw new NullPointerException("Message is null.");
+    }
+
+    return writer.offer(encode(msg), lane, timeout, unit);
+  }
+
+  /**
+   * Sets the listener notified when a lane of the outbound queue which has been found full drains
+   * below its low water mark, half of its capacity. It is kept across connections.
+   *
+   * @param listener the listener, or {@code null} to remove it
+   */
+  public void setWritabilityListener(WritabilityListener listener) {
+    mWritabilityListener = listener;
+    OutboundQueue outbound = mOutbound;
+    if (outbound != null) {
+      outbound.setWritabilityListener(listener);
+    }
+  }
+
+  /**
+   * Sends a message to the server and returns a future completed by the {@link ServerGenericReply}
+   * which answers it. The message is retransmitted as configured with {@link
+   * ConnectionConfiguration#getReplyTimeout()} and {@link
+   * ConnectionConfiguration#getMaxRetransmissions()}.
+   *
+   * @param msg the message to send
+   * @return the future of the reply
+   * @see #sendAsync(Message, long, int)
+   */
+  public ReplyFuture<ServerGenericReply> sendAsync(Message msg) {
+    return sendAsync(msg, mConfig.getReplyTimeout(), mConfig.getMaxRetransmissions());
+  }
+
+  /**
+   * Sends a message to the server and returns a future completed by the {@link ServerGenericReply}
+   * which answers it. No thread waits for the reply, so any number of requests may be in flight.
+   * <p>
+   * A long message is answered by the reply to its last packet. The timeout starts once the
+   * message has been written, not while it waits in the outbound queue. If no reply arrives within
+   * the timeout, the message is retransmitted with the same serial numbers, the n-th retransmission
+   * waits n+1 times as long as the previous one. The future fails with a {@link
+   * java.util.concurrent.TimeoutException} once the retransmissions are exhausted, or with an
+   * {@link IOException} if the connection is closed first. It fails at once with a {@link
+   * QueueFullException} if the lane is full and the overflow policy rejects or drops the message.
+   *
+   * @param msg        the message to send
+   * @param timeout    the time to wait for the first reply, in milliseconds
+   * @param maxRetries the maximum number of retransmissions
+   * @return the future of the reply
+   */
+  public ReplyFuture<ServerGenericReply> sendAsync(Message msg, long timeout, int maxRetries) {
+    if (msg == null) {
+      throw new NullPointerException("Message is null.");
+    }
+    return sendAsync(msg, timeout, maxRetries, OutboundQueue.laneOf(msg));
+  }
+
+  /**
+   * Sends a message to the server on the specified lane of the outbound queue and returns a
+   * future completed by the {@link ServerGenericReply} which answers it.
+   *
+   * @param msg        the message to send
+   * @param timeout    the time to wait for the first reply, in milliseconds
+   * @param maxRetries the maximum number of retransmissions
+   * @param lane       the lane, such as {@link OutboundQueue#LANE_BULK}
+   * @return the future of the reply
+   * @see #sendAsync(Message, long, int)
+   */
+  public ReplyFuture<ServerGenericReply> sendAsync(Message msg, long timeout, int maxRetries,
+                                                   int lane) {
+    MessageWriter writer = getSendableWriter();
+    if (msg == null) {
+      throw new NullPointerException("Message is null.");
     }
+
+    EncodedMessage encoded = encode(msg);
+    // Register before writing, the reply may arrive before the writer returns. The timeout starts
+    // once the writer has written the message, however long it waits in the queue
+    PendingAckTable.Entry ack = mPendingAcks.registerUnarmed(encoded.mPackets, encoded.mFrames,
+                                                             timeout, maxRetries);
+    encoded.mAck = ack;
+    try {
+      if (!writer.send(encoded, lane)) {
+        ack.fail(new QueueFullException(lane));
+      }
+    } catch (QueueFullException qfe) {
+      ack.fail(qfe);
+    }
+    return ack.mFuture;
+  }
+
+  /**
+   * Sends a message to the server and returns a future completed by the reply with the specified
+   * message ID which answers it, within the reply timeout of the configuration.
+   *
+   * @param msg     the message to send
+   * @param replyId the message ID of the reply, such as {@link com.deew.jt808.msg.RegisterReply#ID}
+   * @param <T>     the type of the reply
+   * @return the future of the reply
+   * @see #sendForReply(Message, short, long)
+   */
+  public <T extends Message> ReplyFuture<T> sendForReply(Message msg, short replyId) {
+    return sendForReply(msg, replyId, mConfig.getReplyTimeout());
+  }
+
+  /**
+   * Sends a message to the server and returns a future completed by the reply with the specified
+   * message ID which answers it. The reply is matched by the serial number of the request, the
+   * reader completes the future directly, so this is much lighter than a {@link MessageCollector}
+   * created for each request.
+   * <p>
+   * The message is not retransmitted. The future fails with a {@link
+   * java.util.concurrent.TimeoutException} if no reply arrives within the timeout, with an {@link
+   * IOException} if the connection is closed first, or at once with a {@link QueueFullException}
+   * if the message cannot be queued. The reply must be decoded by the {@link
+   * ConnectionConfiguration#getDecoderRegistry() decoder registry} into a message implementing
+   * {@link com.deew.jt808.msg.Reply} of type {@code T}.
+   *
+   * @param msg     the message to send
+   * @param replyId the message ID of the reply
+   * @param timeout the time to wait for the reply, in milliseconds
+   * @param <T>     the type of the reply
+   * @return the future of the reply
+   */
+  public <T extends Message> ReplyFuture<T> sendForReply(Message msg, short replyId,
+                                                         long timeout) {
+    MessageWriter writer = getSendableWriter();
     if (msg == null) {
       throw new NullPointerException("Message is null.");
     }
 
-    mWriter.sendMessage(msg);
+    EncodedMessage encoded = encode(msg);
+    short sn = encoded.mPackets[encoded.mPackets.length - 1].getSn();
+    // Register before writing, the reply may arrive before the writer returns
+    ReplyFuture<T> future = mReplyWaiters.expect(replyId, sn, timeout);
+    int lane = OutboundQueue.laneOf(msg);
+    try {
+      if (!writer.send(encoded, lane)) {
+        mReplyWaiters.fail(replyId, sn, new QueueFullException(lane));
+      }
+    } catch (QueueFullException qfe) {
+      mReplyWaiters.fail(replyId, sn, qfe);
+    }
+    return future;
+  }
+
+  /**
+   * Authenticates the terminal with the server, and keeps the code to authenticate again whenever
+   * the connection is reestablished. The authentication in flight is returned if it uses the same
+   * code, so a state callback may authenticate on every connection.
+   *
+   * @param authCode the authentication code returned by the registration
+   * @return the future of the reply
+   * @see #sendAsync(Message)
+   */
+  public ReplyFuture<ServerGenericReply> authenticate(final String authCode) {
+    if (authCode == null) {
+      throw new NullPointerException("Authentication code is null.");
+    }
+    synchronized (conLock) {
+      ReplyFuture<ServerGenericReply> pending = mAuthFuture;
+      if (pending != null && !pending.isDone() && authCode.equals(mAuthCode)) {
+        return pending;
+      }
+      mAuthCode = authCode;
+    }
+
+    // May wait for space in the queue, outside of the lock
+    ReplyFuture<ServerGenericReply> future = sendAsync(
+        new AuthenticateRequest.Builder(authCode).build());
+    synchronized (conLock) {
+      mAuthFuture = future;
+    }
+    future.addListener(new ReplyFuture.Listener<ServerGenericReply>() {
+      @Override
+      public void onReply(ServerGenericReply reply) {
+        if (reply.getResult() != ServerGenericReply.RESULT_OK) {
+          synchronized (conLock) {
+            if (authCode.equals(mAuthCode)) {
+              // Never sent again
+              mAuthCode = null;
+            }
+          }
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        // Kept, the code may still be valid
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Splits a message into packets numbered by this connection, on behalf of the terminal of the
+   * configuration if it has one.
+   *
+   * @param msg the message to send
+   * @return the packets of the message
+   */
+  Packet[] packetsOf(Message msg) {
+    byte[] phone = mConfig.getPhone();
+    return phone != null ? msg.getPackets(mSnAllocator, phone) : msg.getPackets(mSnAllocator);
+  }
+
+  /**
+   * Splits a message into packets and encodes their frames on the calling thread, so the writer
+   * only has to copy them.
+   *
+   * @param msg the message to send
+   * @return the encoded message
+   */
+  private EncodedMessage encode(Message msg) {
+    return new EncodedMessage(packetsOf(msg));
+  }
+
+  /**
+   * Writes again the packets of a long message the server asks for.
+   *
+   * @param req the request of the server
+   */
+  void resend(ResendRequest req) {
+    MessageWriter writer = mWriter;
+    if (writer != null) {
+      writer.resend(req);
+    }
+  }
+
+  // Only connections with a callback need the main thread, which is looked up on first use
+  private CallbackExecutor getCallbackExecutor() {
+    CallbackExecutor executor = mConfig.getCallbackExecutor();
+    return executor != null ? executor : MainThreadExecutor.getInstance();
   }
 
   private void onConnectSuccess(){
-    if(mStateCallback != null){
-      mCallbackHandler.post(new Runnable() {
+    if (mDirectStateCallback != null) {
+      mDirectStateCallback.onSuccess();
+    }
+    final ConnectionStateCallback callback = mStateCallback;
+    if(callback != null){
+      getCallbackExecutor().execute(new Runnable() {
         @Override
         public void run() {
-          mStateCallback.onSuccess();
+          callback.onSuccess();
         }
       });
     }
   }
 
-  private void onConnectFail(){
-    if(mStateCallback != null){
-      mCallbackHandler.post(new Runnable() {
+  void onConnectFail(){
+    if (mDirectStateCallback != null) {
+      mDirectStateCallback.onFail();
+    }
+    final ConnectionStateCallback callback = mStateCallback;
+    if(callback != null){
+      getCallbackExecutor().execute(new Runnable() {
         @Override
         public void run() {
-          mStateCallback.onFail();
+          callback.onFail();
         }
       });
     }
@@ -459,12 +1150,17 @@ public class Connection {
   private final Map<MessageListener, ListenerWrapper> mRcvListeners = new ConcurrentHashMap<>();
   // List of MessageListeners that will be notified when a new messgae was sent
   private final Map<MessageListener, ListenerWrapper> mSndListeners = new ConcurrentHashMap<>();
+  // The collectors and the listeners for received messages, indexed by the IDs of their filters
+  private final DispatchIndex<MessageCollector>       mCollectorIndex = new DispatchIndex<>();
+  private final DispatchIndex<MessageListener>        mRcvIndex       = new DispatchIndex<>();
 
 
   /**
    * Creates a new message collector for this connection. A message filter determines which messages
    * will be accumulated by the collector. A MessageCollector is more suitable to use than a {@link
    * MessageListener} when you need to wait for a specific result.
+   * <p>
+   * The filter must not be modified once the collector is created.
    *
    * @param filter the message filter to use
    * @return a new message collector
@@ -473,6 +1169,7 @@ public class Connection {
     MessageCollector collector = new MessageCollector(this, filter);
     // Add the collector to the list of active collectors
     mCollectors.add(collector);
+    mCollectorIndex.put(collector, filter);
     return collector;
   }
 
@@ -483,6 +1180,7 @@ public class Connection {
    */
   void removeMessageCollector(MessageCollector collector) {
     mCollectors.remove(collector);
+    mCollectorIndex.remove(collector);
   }
 
   /**
@@ -498,6 +1196,11 @@ public class Connection {
    * Registers a message listener with this connection. A message filter determines which messages
    * will be delivered to the listener. If the same message listener is added again with a different
    * filter, only the new filter will be used.
+   * <p>
+   * Listeners whose filter only accepts some message IDs, like a {@link
+   * com.deew.jt808.filter.MessageIdFilter} or an {@link com.deew.jt808.filter.OrFilter} of them,
+   * are only looked at for these messages. The filter must not be modified once the listener is
+   * added.
    *
    * @param listener the message listener to notify of new received messages
    * @param filter   the message filter to use
@@ -508,7 +1211,10 @@ public class Connection {
     }
 
     ListenerWrapper wrapper = new ListenerWrapper(listener, filter);
-    mRcvListeners.put(listener, wrapper);
+    synchronized (mRcvIndex) {
+      mRcvListeners.put(listener, wrapper);
+      mRcvIndex.put(listener, filter);
+    }
   }
 
   /**
@@ -517,7 +1223,10 @@ public class Connection {
    * @param listener the message listener to remove
    */
   public void removeRcvListener(MessageListener listener) {
-    mRcvListeners.remove(listener);
+    synchronized (mRcvIndex) {
+      mRcvListeners.remove(listener);
+      mRcvIndex.remove(listener);
+    }
   }
 
   /**
@@ -529,6 +1238,24 @@ public class Connection {
     return mRcvListeners;
   }
 
+  /**
+   * Returns the collectors indexed by the message IDs of their filters.
+   *
+   * @return the index of the message collectors
+   */
+  DispatchIndex<MessageCollector> getCollectorIndex() {
+    return mCollectorIndex;
+  }
+
+  /**
+   * Returns the listeners for received messages indexed by the message IDs of their filters.
+   *
+   * @return the index of the message listeners for received messages
+   */
+  DispatchIndex<MessageListener> getRcvIndex() {
+    return mRcvIndex;
+  }
+
   /**
    * Registers a message listener with this connection. The listener will be notified of every
    * message that this connection sends. A message filter determines which messages will be
@@ -1,16 +1,60 @@
 package com.deew.jt808.conn;
 
+import com.deew.jt808.msg.DecoderRegistry;
+
+import java.io.File;
+
 /**
  * Configuration to use while establishing the connection to the server.
  *
  */
 public class ConnectionConfiguration {
 
+  /** Default time to wait for the socket to connect, in milliseconds. */
+  public static final long DEFAULT_CONNECT_TIMEOUT = 5000;
+  /** Default time to wait for the reply of a message, in milliseconds. */
+  public static final long DEFAULT_REPLY_TIMEOUT = 5000;
+  /** Default number of retransmissions of a message which is not replied. */
+  public static final int  DEFAULT_MAX_RETRANSMISSIONS = 3;
+  /** Default interval of the heartbeats sent while the connection is idle, in seconds. */
+  public static final int  DEFAULT_KEEP_ALIVE_INTERVAL = 60;
+  /** Default delay before the first reconnection attempt, in milliseconds. */
+  public static final long DEFAULT_RECONNECT_DELAY = 1000;
+  /** Default maximum delay between two reconnection attempts, in milliseconds. */
+  public static final long DEFAULT_MAX_RECONNECT_DELAY = 60000;
+
   private String mHost;
   private int    mPort;
 
+  private long mConnectTimeout     = DEFAULT_CONNECT_TIMEOUT;
+  private long mReplyTimeout       = DEFAULT_REPLY_TIMEOUT;
+  private int  mMaxRetransmissions = DEFAULT_MAX_RETRANSMISSIONS;
+  private int  mKeepAliveInterval  = DEFAULT_KEEP_ALIVE_INTERVAL;
+
+  // The capacity of every lane of the outbound queue, and the share of the bulk lane
+  private int[] mLaneCapacities = OutboundQueue.DEFAULT_CAPACITIES.clone();
+  private int   mBulkWeight     = OutboundQueue.DEFAULT_BULK_WEIGHT;
+  // What happens to a message sent on a full lane, and where bulk messages are spilled
+  private int   mOverflowPolicy = OutboundQueue.OVERFLOW_BLOCK;
+  private File  mSpillDirectory;
+
+  // The phone number stamped on every message sent, or null to keep the one of the message
+  private byte[] mPhone;
+
+  // Decodes the messages received, or null for the default registry
+  private DecoderRegistry mDecoderRegistry;
+
+  // Drives the non-blocking socket, or null to use a blocking socket and threads
+  private SelectorLoop mSelectorLoop;
+
+  // Runs the state callbacks, or null for the Android main thread
+  private CallbackExecutor mCallbackExecutor;
+
   // Flag that indicates if a reconnection should be attempted when abruptly disconnected
   private boolean mReconnectionAllowed = true;
+  // The delay before the first reconnection attempt, doubled by every failed attempt up to the max
+  private long    mReconnectDelay      = DEFAULT_RECONNECT_DELAY;
+  private long    mMaxReconnectDelay   = DEFAULT_MAX_RECONNECT_DELAY;
 
   /**
    * Creates a new ConnectionConfiguration for a connection that will connect to the desired host
@@ -24,6 +68,31 @@ public class ConnectionConfiguration {
     mPort = port;
   }
 
+  /**
+   * Creates a copy of the specified configuration, the selector loop and the phone number included.
+   *
+   * @param other the configuration to copy
+   */
+  ConnectionConfiguration(ConnectionConfiguration other) {
+    mHost = other.mHost;
+    mPort = other.mPort;
+    mConnectTimeout = other.mConnectTimeout;
+    mReplyTimeout = other.mReplyTimeout;
+    mMaxRetransmissions = other.mMaxRetransmissions;
+    mKeepAliveInterval = other.mKeepAliveInterval;
+    mLaneCapacities = other.mLaneCapacities.clone();
+    mBulkWeight = other.mBulkWeight;
+    mOverflowPolicy = other.mOverflowPolicy;
+    mSpillDirectory = other.mSpillDirectory;
+    mPhone = other.mPhone;
+    mDecoderRegistry = other.mDecoderRegistry;
+    mSelectorLoop = other.mSelectorLoop;
+    mCallbackExecutor = other.mCallbackExecutor;
+    mReconnectionAllowed = other.mReconnectionAllowed;
+    mReconnectDelay = other.mReconnectDelay;
+    mMaxReconnectDelay = other.mMaxReconnectDelay;
+  }
+
   public String getHost() {
     return mHost;
   }
@@ -32,6 +101,267 @@ public class ConnectionConfiguration {
     return mPort;
   }
 
+  /**
+   * Returns the time to wait for the socket to connect.
+   *
+   * @return the connect timeout in milliseconds
+   */
+  public long getConnectTimeout() {
+    return mConnectTimeout;
+  }
+
+  /**
+   * Sets the time to wait for the socket to connect.
+   *
+   * @param timeout the connect timeout in milliseconds
+   */
+  public void setConnectTimeout(long timeout) {
+    if (timeout <= 0 || timeout > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Illegal connect timeout.");
+    }
+    mConnectTimeout = timeout;
+  }
+
+  /**
+   * Returns the selector loop which drives the non-blocking socket of the connection.
+   *
+   * @return the selector loop, or {@code null} if the connection uses a blocking socket
+   */
+  public SelectorLoop getSelectorLoop() {
+    return mSelectorLoop;
+  }
+
+  /**
+   * Sets the selector loop which drives the non-blocking socket of the connection. By default the
+   * connection uses a blocking socket with dedicated reader, writer and keep alive threads. With a
+   * selector loop, many connections share a single thread, such as {@link
+   * SelectorLoop#getDefault()}, and messages are delivered to listeners on that thread.
+   *
+   * @param loop the selector loop, or {@code null} to use a blocking socket
+   */
+  public void setSelectorLoop(SelectorLoop loop) {
+    mSelectorLoop = loop;
+  }
+
+  /**
+   * Returns the executor which runs the state callbacks of the connection.
+   *
+   * @return the callback executor, or {@code null} for the Android main thread
+   */
+  public CallbackExecutor getCallbackExecutor() {
+    return mCallbackExecutor;
+  }
+
+  /**
+   * Sets the executor which runs the state callbacks of the connection. By default they are posted
+   * to the Android main thread, which does not exist on a plain JVM: use {@link
+   * CallbackExecutor#DIRECT} or a {@link SelectorLoop} there.
+   *
+   * @param executor the callback executor, or {@code null} for {@link MainThreadExecutor}
+   */
+  public void setCallbackExecutor(CallbackExecutor executor) {
+    mCallbackExecutor = executor;
+  }
+
+  /**
+   * Returns the time to wait for the reply of a message before it is retransmitted for the first
+   * time. The n-th retransmission waits n+1 times as long as the previous one.
+   *
+   * @return the reply timeout in milliseconds
+   */
+  public long getReplyTimeout() {
+    return mReplyTimeout;
+  }
+
+  /**
+   * Sets the time to wait for the reply of a message before it is retransmitted for the first
+   * time.
+   *
+   * @param timeout the reply timeout in milliseconds
+   */
+  public void setReplyTimeout(long timeout) {
+    if (timeout <= 0) {
+      throw new IllegalArgumentException("Reply timeout must be positive.");
+    }
+    mReplyTimeout = timeout;
+  }
+
+  /**
+   * Returns the number of times a message which is not replied is retransmitted before giving up.
+   *
+   * @return the maximum number of retransmissions
+   */
+  public int getMaxRetransmissions() {
+    return mMaxRetransmissions;
+  }
+
+  /**
+   * Sets the number of times a message which is not replied is retransmitted before giving up.
+   *
+   * @param max the maximum number of retransmissions, 0 disables retransmission
+   */
+  public void setMaxRetransmissions(int max) {
+    if (max < 0) {
+      throw new IllegalArgumentException("Number of retransmissions must not be negative.");
+    }
+    mMaxRetransmissions = max;
+  }
+
+  /**
+   * Returns the interval of the heartbeats sent while the connection is idle.
+   *
+   * @return the keep alive interval in seconds, 0 if disabled
+   */
+  public int getKeepAliveInterval() {
+    return mKeepAliveInterval;
+  }
+
+  /**
+   * Sets the interval of the heartbeats sent while the connection is idle. A heartbeat is sent only
+   * if no packet has been sent for the whole interval.
+   *
+   * @param interval the keep alive interval in seconds, 0 disables heartbeats
+   */
+  public void setKeepAliveInterval(int interval) {
+    if (interval < 0) {
+      throw new IllegalArgumentException("Keep alive interval must not be negative.");
+    }
+    mKeepAliveInterval = interval;
+  }
+
+  /**
+   * Returns the number of messages a lane of the outbound queue holds.
+   *
+   * @param lane the lane, such as {@link OutboundQueue#LANE_BULK}
+   * @return the capacity of the lane
+   */
+  public int getLaneCapacity(int lane) {
+    return mLaneCapacities[lane];
+  }
+
+  /**
+   * Sets the number of messages a lane of the outbound queue holds. What happens to a message sent
+   * once the lane is full depends on the {@link #setOverflowPolicy(int) overflow policy}.
+   *
+   * @param lane     the lane, such as {@link OutboundQueue#LANE_BULK}
+   * @param capacity the capacity of the lane, rounded up to a power of two
+   */
+  public void setLaneCapacity(int lane, int capacity) {
+    if (capacity <= 0 || capacity > 1 << 20) {
+      throw new IllegalArgumentException("Illegal lane capacity.");
+    }
+    mLaneCapacities[lane] = capacity;
+  }
+
+  /**
+   * Returns the number of messages of the upper lanes written for each message of the bulk lane,
+   * while the upper lanes are busy.
+   *
+   * @return the weight of the upper lanes over the bulk lane
+   */
+  public int getBulkWeight() {
+    return mBulkWeight;
+  }
+
+  /**
+   * Sets the number of messages of the upper lanes written for each message of the bulk lane,
+   * while the upper lanes are busy. The bulk lane is drained without limit once they are empty.
+   *
+   * @param weight the weight of the upper lanes over the bulk lane, at least 1
+   */
+  public void setBulkWeight(int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("Bulk weight must be at least 1.");
+    }
+    mBulkWeight = weight;
+  }
+
+  /**
+   * Returns what happens to a message sent on a full lane of the outbound queue.
+   *
+   * @return the overflow policy, such as {@link OutboundQueue#OVERFLOW_BLOCK}
+   */
+  public int getOverflowPolicy() {
+    return mOverflowPolicy;
+  }
+
+  /**
+   * Sets what happens to a message sent on a full lane of the outbound queue. By default the
+   * sender waits for space, unless it runs on the selector loop in which case the message is
+   * dropped.
+   *
+   * @param policy the overflow policy, one of {@link OutboundQueue#OVERFLOW_BLOCK}, {@link
+   *               OutboundQueue#OVERFLOW_DROP_OLDEST_BULK}, {@link OutboundQueue#OVERFLOW_REJECT}
+   *               and {@link OutboundQueue#OVERFLOW_SPILL_TO_DISK}
+   */
+  public void setOverflowPolicy(int policy) {
+    if (policy < OutboundQueue.OVERFLOW_BLOCK || policy > OutboundQueue.OVERFLOW_SPILL_TO_DISK) {
+      throw new IllegalArgumentException("Unknown overflow policy.");
+    }
+    mOverflowPolicy = policy;
+  }
+
+  /**
+   * Returns the directory bulk messages are spilled to with {@link
+   * OutboundQueue#OVERFLOW_SPILL_TO_DISK}.
+   *
+   * @return the spill directory, or {@code null} for the temporary directory
+   */
+  public File getSpillDirectory() {
+    return mSpillDirectory;
+  }
+
+  /**
+   * Sets the directory bulk messages are spilled to with {@link
+   * OutboundQueue#OVERFLOW_SPILL_TO_DISK}, such as the cache directory of the application.
+   *
+   * @param dir the spill directory, or {@code null} for the temporary directory
+   */
+  public void setSpillDirectory(File dir) {
+    mSpillDirectory = dir;
+  }
+
+  /**
+   * Returns the phone number of the terminal stamped on every message sent over the connection.
+   *
+   * @return the phone number in BCD, or {@code null} if messages keep their own phone number
+   */
+  public byte[] getPhone() {
+    return mPhone;
+  }
+
+  /**
+   * Sets the phone number of the terminal stamped on every message sent over the connection, so
+   * several connections may send the same messages on behalf of different terminals.
+   *
+   * @param phone the phone number in BCD, or {@code null} to keep the one of each message
+   */
+  public void setPhone(byte[] phone) {
+    if (phone != null && phone.length != 6) {
+      throw new IllegalArgumentException("Phone number must be 6 bytes.");
+    }
+    mPhone = phone;
+  }
+
+  /**
+   * Returns the registry decoding the messages received into their typed subclasses.
+   *
+   * @return the decoder registry, the default one unless another has been set
+   */
+  public DecoderRegistry getDecoderRegistry() {
+    return mDecoderRegistry != null ? mDecoderRegistry : DecoderRegistry.getDefault();
+  }
+
+  /**
+   * Sets the registry decoding the messages received into their typed subclasses, before they are
+   * handed to collectors and listeners.
+   *
+   * @param registry the decoder registry, or {@code null} for {@link DecoderRegistry#getDefault()}
+   */
+  public void setDecoderRegistry(DecoderRegistry registry) {
+    mDecoderRegistry = registry;
+  }
+
   /**
    * Returns if the reconnection mechanism is allowed to be used. By default reconnection is
    * allowed. You can disable the reconnection mechanism with
@@ -52,4 +382,49 @@ public class ConnectionConfiguration {
     mReconnectionAllowed = allowed;
   }
 
+  /**
+   * Returns the delay before the first attempt to reconnect after the connection has been lost.
+   *
+   * @return the initial reconnection delay in milliseconds
+   */
+  public long getReconnectDelay() {
+    return mReconnectDelay;
+  }
+
+  /**
+   * Sets the delay before the first attempt to reconnect after the connection has been lost. Every
+   * failed attempt doubles the delay up to {@link #getMaxReconnectDelay()}, and each attempt waits
+   * for a random time between half of the delay and the delay, so the terminals dropped by the same
+   * outage do not all reconnect at once.
+   *
+   * @param delay the initial reconnection delay in milliseconds
+   */
+  public void setReconnectDelay(long delay) {
+    if (delay <= 0) {
+      throw new IllegalArgumentException("Illegal reconnect delay.");
+    }
+    mReconnectDelay = delay;
+  }
+
+  /**
+   * Returns the maximum delay between two attempts to reconnect.
+   *
+   * @return the maximum reconnection delay in milliseconds
+   */
+  public long getMaxReconnectDelay() {
+    return mMaxReconnectDelay;
+  }
+
+  /**
+   * Sets the maximum delay between two attempts to reconnect.
+   *
+   * @param delay the maximum reconnection delay in milliseconds
+   */
+  public void setMaxReconnectDelay(long delay) {
+    if (delay <= 0) {
+      throw new IllegalArgumentException("Illegal max reconnect delay.");
+    }
+    mMaxReconnectDelay = delay;
+  }
+
 }
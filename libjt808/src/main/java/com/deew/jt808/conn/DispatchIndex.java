@@ -0,0 +1,284 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.filter.AndFilter;
+import com.deew.jt808.filter.FilterCompiler;
+import com.deew.jt808.filter.MessageFilter;
+import com.deew.jt808.filter.MessageIdFilter;
+import com.deew.jt808.filter.OrFilter;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds the subscribers of a message by its ID instead of testing the filter of every subscriber.
+ * <p>
+ * A filter which only accepts some message IDs, that is a {@link MessageIdFilter} or an {@link
+ * OrFilter} of such filters, is reduced to its set of IDs: the subscriber is indexed under each of
+ * them and gets the messages with these IDs without testing the filter. An {@link AndFilter} with
+ * such a filter among its operands is indexed under the IDs they all accept, and the whole filter
+ * is tested for these messages only. Any other filter, or no filter at all, lands in a list which
+ * is scanned for every message. Delivering a message thus costs in the number of subscribers it
+ * may match, not in the number of subscribers.
+ * <p>
+ * Dispatching reads an immutable snapshot without any lock, the snapshot is rebuilt whenever a
+ * subscriber is added or removed. Filters are reduced and compiled by {@link FilterCompiler} when
+ * the subscriber is added, they must not be modified afterwards.
+ * <p>
+ * A subscriber which throws does not keep the message from the subscribers after it, the exception
+ * is logged.
+ *
+ * @param <T> the type of the subscribers
+ */
+final class DispatchIndex<T> {
+
+  private static final String TAG = LogUtils.makeTag(DispatchIndex.class);
+
+  private static final Entry[]  NO_ENTRIES = new Entry[0];
+  private static final Snapshot EMPTY      = new Snapshot(new int[0], new Entry[0][], NO_ENTRIES);
+
+  // Every subscriber in the order they have been added, guarded by this
+  private final Map<T, Entry> mEntries = new LinkedHashMap<>();
+
+  private volatile Snapshot mSnapshot = EMPTY;
+
+  /**
+   * Adds a subscriber, replacing its previous filter if it has already been added.
+   *
+   * @param subscriber the subscriber
+   * @param filter     the filter of the subscriber, or {@code null} for every message
+   */
+  synchronized void put(T subscriber, MessageFilter filter) {
+    mEntries.put(subscriber, new Entry(subscriber, filter));
+    rebuild();
+  }
+
+  /**
+   * Removes a subscriber.
+   *
+   * @param subscriber the subscriber
+   */
+  synchronized void remove(T subscriber) {
+    if (mEntries.remove(subscriber) != null) {
+      rebuild();
+    }
+  }
+
+  /** Removes every subscriber. */
+  synchronized void clear() {
+    mEntries.clear();
+    mSnapshot = EMPTY;
+  }
+
+  /**
+   * Hands a message to every subscriber whose filter accepts it.
+   *
+   * @param msg  the message
+   * @param sink delivers the message to a subscriber
+   */
+  @SuppressWarnings("unchecked")
+  void dispatch(Message msg, Sink<T> sink) {
+    Snapshot snapshot = mSnapshot;
+    int i = Arrays.binarySearch(snapshot.mIds, msg.getId() & 0xffff);
+    if (i >= 0) {
+      for (Entry entry : snapshot.mById[i]) {
+        if (entry.mExact || entry.mFilter.accept(msg)) {
+          deliver(sink, (T) entry.mSubscriber, msg);
+        }
+      }
+    }
+    for (Entry entry : snapshot.mScan) {
+      if (entry.mFilter == null || entry.mFilter.accept(msg)) {
+        deliver(sink, (T) entry.mSubscriber, msg);
+      }
+    }
+  }
+
+  private static <T> void deliver(Sink<T> sink, T subscriber, Message msg) {
+    try {
+      sink.deliver(subscriber, msg);
+    } catch (RuntimeException re) {
+      Log.e(TAG, "dispatch: Subscriber " + subscriber + " raised an exception.", re);
+    }
+  }
+
+  // Must hold the lock
+  private void rebuild() {
+    Map<Integer, List<Entry>> byId = new TreeMap<>();
+    List<Entry> scan = new ArrayList<>();
+    for (Entry entry : mEntries.values()) {
+      if (entry.mIds == null) {
+        scan.add(entry);
+        continue;
+      }
+      for (int id : entry.mIds) {
+        List<Entry> entries = byId.get(id);
+        if (entries == null) {
+          entries = new ArrayList<>();
+          byId.put(id, entries);
+        }
+        entries.add(entry);
+      }
+    }
+
+    int[] ids = new int[byId.size()];
+    Entry[][] lists = new Entry[ids.length][];
+    int i = 0;
+    for (Map.Entry<Integer, List<Entry>> e : byId.entrySet()) {
+      ids[i] = e.getKey();
+      lists[i++] = e.getValue().toArray(NO_ENTRIES);
+    }
+    mSnapshot = new Snapshot(ids, lists, scan.toArray(NO_ENTRIES));
+  }
+
+  /**
+   * Reduces a filter to the set of message IDs it may accept.
+   *
+   * @param filter the filter
+   * @return the reduction, or {@code null} if the filter may accept any ID
+   */
+  static Reduction reduce(MessageFilter filter) {
+    if (filter == null) {
+      return null;
+    }
+    // Subclasses may override accept(), only the filters of this library are known
+    Class<?> type = filter.getClass();
+    if (type == MessageIdFilter.class) {
+      return new Reduction(new int[]{ ((MessageIdFilter) filter).getId() & 0xffff }, true);
+    }
+
+    if (type == OrFilter.class) {
+      // The union of the operands, which must all be reducible
+      int[] ids = new int[0];
+      boolean exact = true;
+      for (MessageFilter operand : ((OrFilter) filter).getFilters()) {
+        Reduction r = reduce(operand);
+        if (r == null) {
+          return null;
+        }
+        ids = union(ids, r.mIds);
+        exact &= r.mExact;
+      }
+      return new Reduction(ids, exact);
+    }
+
+    if (type == AndFilter.class) {
+      // The intersection of the reducible operands, the other ones are tested
+      int[] ids = null;
+      boolean exact = true;
+      for (MessageFilter operand : ((AndFilter) filter).getFilters()) {
+        Reduction r = reduce(operand);
+        if (r == null) {
+          exact = false;
+          continue;
+        }
+        ids = ids == null ? r.mIds : intersection(ids, r.mIds);
+        exact &= r.mExact;
+      }
+      return ids != null ? new Reduction(ids, exact) : null;
+    }
+
+    return null;
+  }
+
+  // Both arrays are sorted without duplicates
+  private static int[] union(int[] a, int[] b) {
+    int[] out = new int[a.length + b.length];
+    int i = 0, j = 0, n = 0;
+    while (i < a.length || j < b.length) {
+      if (j == b.length || (i < a.length && a[i] < b[j])) {
+        out[n++] = a[i++];
+      } else if (i == a.length || b[j] < a[i]) {
+        out[n++] = b[j++];
+      } else {
+        out[n++] = a[i++];
+        j++;
+      }
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  private static int[] intersection(int[] a, int[] b) {
+    int[] out = new int[Math.min(a.length, b.length)];
+    int i = 0, j = 0, n = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (b[j] < a[i]) {
+        j++;
+      } else {
+        out[n++] = a[i++];
+        j++;
+      }
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  /** Delivers a message to a subscriber whose filter accepts it. */
+  interface Sink<T> {
+
+    /**
+     * Delivers a message.
+     *
+     * @param subscriber the subscriber
+     * @param msg        the message
+     */
+    void deliver(T subscriber, Message msg);
+
+  }
+
+  /** The message IDs a filter may accept. */
+  static final class Reduction {
+
+    /** The IDs, sorted without duplicates. */
+    final int[]   mIds;
+    /** If the filter accepts every message with one of these IDs, so it needs not be tested. */
+    final boolean mExact;
+
+    Reduction(int[] ids, boolean exact) {
+      mIds = ids;
+      mExact = exact;
+    }
+
+  }
+
+  private static final class Entry {
+
+    final Object        mSubscriber;
+    // The compiled filter, or null for every message
+    final MessageFilter mFilter;
+    // The IDs the subscriber is indexed under, or null if it is scanned
+    final int[]         mIds;
+    final boolean       mExact;
+
+    Entry(Object subscriber, MessageFilter filter) {
+      mSubscriber = subscriber;
+      mFilter = filter != null ? FilterCompiler.compile(filter) : null;
+      Reduction r = reduce(filter);
+      mIds = r != null ? r.mIds : null;
+      mExact = r != null && r.mExact;
+    }
+
+  }
+
+  private static final class Snapshot {
+
+    final int[]     mIds;
+    final Entry[][] mById;
+    final Entry[]   mScan;
+
+    Snapshot(int[] ids, Entry[][] byId, Entry[] scan) {
+      mIds = ids;
+      mById = byId;
+      mScan = scan;
+    }
+
+  }
+
+}
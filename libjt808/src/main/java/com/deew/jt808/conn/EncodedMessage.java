@@ -0,0 +1,72 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.msg.Packet;
+
+/**
+ * The packets of a message along with their escaped frames, as queued for the writer.
+ * <p>
+ * The frames are encoded by the thread sending the message, so the escaping and the checksums of
+ * many producers are computed in parallel and the writer only copies bytes. The serial numbers are
+ * assigned before, when the message is split into packets.
+ *
+ */
+final class EncodedMessage {
+
+  /** The packets of the message, in order. */
+  final Packet[] mPackets;
+  /** The frame of every packet, including both delimiters. */
+  final byte[][] mFrames;
+  /**
+   * The request waiting for the reply to the message, armed once the message has been written, or
+   * {@code null}. Set before the message is queued.
+   */
+  PendingAckTable.Entry mAck;
+
+  /**
+   * Encodes the packets of a message.
+   *
+   * @param packets the packets of the message
+   */
+  EncodedMessage(Packet[] packets) {
+    mPackets = packets;
+    mFrames = new byte[packets.length][];
+    for (int i = 0; i < packets.length; i++) {
+      mFrames[i] = packets[i].getBytes();
+    }
+  }
+
+  /**
+   * Encodes the packets of a message and attaches the request waiting for its reply.
+   *
+   * @param packets the packets of the message
+   * @param ack     the request waiting for the reply, or {@code null}
+   */
+  EncodedMessage(Packet[] packets, PendingAckTable.Entry ack) {
+    this(packets);
+    mAck = ack;
+  }
+
+  /** Starts the timeout of the request waiting for the reply, once the last frame is written. */
+  void written() {
+    if (mAck != null) {
+      mAck.arm();
+    }
+  }
+
+  /**
+   * Fails the request waiting for the reply, once the message is dropped from the queue.
+   *
+   * @param cause the cause of the failure
+   */
+  void dropped(Throwable cause) {
+    if (mAck != null) {
+      mAck.fail(cause);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return mPackets[0].toString();
+  }
+
+}
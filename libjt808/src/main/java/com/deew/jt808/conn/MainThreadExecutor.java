@@ -0,0 +1,39 @@
+package com.deew.jt808.conn;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Posts callbacks to the Android main thread. It is the only class of the connection which needs
+ * an Android {@link Looper}, the connection uses it unless another {@link CallbackExecutor} is
+ * configured.
+ *
+ */
+public final class MainThreadExecutor implements CallbackExecutor {
+
+  private static MainThreadExecutor sInstance;
+
+  private final Handler mHandler;
+
+  private MainThreadExecutor() {
+    mHandler = new Handler(Looper.getMainLooper());
+  }
+
+  /**
+   * Returns the executor of the main thread, created on first use.
+   *
+   * @return the main thread executor
+   */
+  public static synchronized MainThreadExecutor getInstance() {
+    if (sInstance == null) {
+      sInstance = new MainThreadExecutor();
+    }
+    return sInstance;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    mHandler.post(task);
+  }
+
+}
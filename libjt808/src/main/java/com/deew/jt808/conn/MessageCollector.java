@@ -50,10 +50,20 @@ public class MessageCollector {
     }
 
     if (mFilter == null || mFilter.accept(msg)) {
-      while (!mQueue.offer(msg)) {
-        // Since we know the queue is full, this poll should never actually block
-        mQueue.poll();
-      }
+      collect(msg);
+    }
+  }
+
+  /**
+   * Adds a message to the result queue without testing the filter, for messages already known to
+   * match it.
+   *
+   * @param msg the message to add
+   */
+  void collect(Message msg) {
+    while (!mQueue.offer(msg)) {
+      // Since we know the queue is full, this poll should never actually block
+      mQueue.poll();
     }
   }
 
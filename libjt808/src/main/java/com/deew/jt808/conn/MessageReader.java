@@ -1,33 +1,67 @@
 package com.deew.jt808.conn;
 
-import android.util.Log;
-
-import com.deew.jt808.conn.Connection.ListenerWrapper;
+import com.deew.jt808.msg.DecoderRegistry;
 import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.MessageAssembler;
 import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.PacketDecoder;
+import com.deew.jt808.msg.Reply;
+import com.deew.jt808.msg.ResendRequest;
+import com.deew.jt808.msg.ServerGenericReply;
+import com.deew.jt808.util.Log;
 import com.deew.jt808.util.LogUtils;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
  * Listens for packet traffic from the JT/T808 server and parse it into message objects.
  * <p>
- * The message reader also invokes all message listeners and collectors.
+ * Each message is decoded once into its typed subclass by the {@link DecoderRegistry} of the
+ * connection, then handed to all message collectors and listeners, which may cast it. When the
+ * connection uses a
+ * non-blocking transport, the selector loop hands the bytes read to the reader and listeners are
+ * invoked on the loop thread, no thread is started.
  *
  */
 class MessageReader {
 
   private static final String TAG = LogUtils.makeTag(MessageReader.class);
 
+  // The filters have been tested by the dispatch indexes already
+  private static final DispatchIndex.Sink<MessageCollector> COLLECT =
+      new DispatchIndex.Sink<MessageCollector>() {
+        @Override
+        public void deliver(MessageCollector collector, Message msg) {
+          collector.collect(msg);
+        }
+      };
+  private static final DispatchIndex.Sink<MessageListener>  NOTIFY  =
+      new DispatchIndex.Sink<MessageListener>() {
+        @Override
+        public void deliver(MessageListener listener, Message msg) {
+          listener.processMessage(msg);
+        }
+      };
+
   private Connection      mConnection;
   private InputStream     mInput;
-  private Thread          mReadThread;
+  private PacketDecoder    mDecoder;
+  private MessageAssembler mAssembler;
+  private DecoderRegistry  mDecoders;
+  private volatile Thread mReadThread;
   private ExecutorService mExecutor;
 
-  private boolean mDone;
+  // Packets decoded from the bytes handed over by the selector loop
+  private final List<Packet> mPackets = new ArrayList<>();
+
+  private volatile boolean mDone;
 
   /**
    * Creates a new message reader with the specified connection.
@@ -46,6 +80,20 @@ class MessageReader {
   void init() {
     mDone = false;
     mInput = mConnection.getInput();
+    // Bytes of a frame left by the previous connection are useless
+    mDecoder = new PacketDecoder();
+    if (mAssembler != null) {
+      mAssembler.clear();
+    }
+    mAssembler = new MessageAssembler();
+    mDecoders = mConnection.getConfig().getDecoderRegistry();
+
+    if (mConnection.getTransport() != null) {
+      // The selector loop reads the packets and notifies the listeners
+      mReadThread = null;
+      mExecutor = null;
+      return;
+    }
 
     mReadThread = new ReadThread();
     // TODO: 10/24/2016 add connection count to the name
@@ -59,37 +107,63 @@ class MessageReader {
 
   /** Starts the packet read thread. */
   public synchronized void startup() {
-    mReadThread.start();
+    if (mReadThread != null) {
+      mReadThread.start();
+    }
   }
 
   /** Shuts the message reader down. */
   public void shutdown() {
     Log.d(TAG, "shutdown reader");
     mDone = true;
+    mAssembler.clear();
+    if (mExecutor != null) {
+      mExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Processes the bytes read by the non-blocking transport. Called on the selector loop.
+   *
+   * @param buf the bytes read
+   */
+  void processBytes(ByteBuffer buf) {
+    mDecoder.feed(buf);
+    mDecoder.decode(mPackets);
+    for (Packet packet : mPackets) {
+      Log.d(TAG, "processBytes: ", packet);
+      processMessage(mAssembler.add(packet));
+    }
+    mPackets.clear();
   }
 
   /** Parses packets in order to process them further. */
   private void readPackets() {
     try {
-      byte[] buf = new byte[128];
-      int len;
-      while (!mDone && (len = mInput.read(buf)) != -1) {
-        if (len > 0) {
-          byte[] raw = new byte[len];
-          System.arraycopy(buf, 0, raw, 0, len);
-          Packet packet = new Packet(raw);
-          Log.d(TAG, "readPackets: " + packet);
-          Message msg = new Message.Builder(packet).build();
-          processMessage(msg);
+      List<Packet> packets = new ArrayList<>();
+      while (!mDone && mDecoder.readFrom(mInput) != -1) {
+        // A single read may carry any number of frames, including none at all
+        mDecoder.decode(packets);
+        for (Packet packet : packets) {
+          Log.d(TAG, "readPackets: ", packet);
+          // Packets of a long message are held until the whole message has arrived
+          processMessage(mAssembler.add(packet));
         }
+        packets.clear();
+      }
+      if (!mDone) {
+        lost(new EOFException("Connection closed by the server."));
       }
     } catch (IOException e) {
-      e.printStackTrace();
-
-      //TODO   this solution is not good
-      mConnection.shutDown();
-    } finally {
+      lost(e);
+    }
+  }
 
+  private void lost(IOException cause) {
+    // Failures of a reader stopped on purpose, or of the thread of a previous connection, are
+    // expected
+    if (!mDone && Thread.currentThread() == mReadThread) {
+      mConnection.connectionLost(cause);
     }
   }
 
@@ -105,13 +179,29 @@ class MessageReader {
       return;
     }
 
-    // Loop through all collectors and notify the appropriate ones.
-    for (MessageCollector collector : mConnection.getCollectors()) {
-      collector.processMessage(msg);
+    // Decoded once for every collector and listener
+    msg = mDecoders.decode(msg);
+    if (msg instanceof ServerGenericReply) {
+      // Complete the request sent asynchronously which waits for this reply
+      mConnection.getPendingAcks().complete((ServerGenericReply) msg);
+    } else if (msg instanceof ResendRequest) {
+      // Answer resend requests of the server straight from the write side
+      mConnection.resend((ResendRequest) msg);
+    }
+    if (msg instanceof Reply) {
+      // Complete the request waiting for this very reply, if any
+      mConnection.getReplyWaiters().complete(msg);
     }
 
+    // Notify the collectors whose filter accepts the message
+    mConnection.getCollectorIndex().dispatch(msg, COLLECT);
+
     // Deliver the incoming message to listeners
-    mExecutor.submit(new ListenerNotification(msg));
+    if (mExecutor != null) {
+      mExecutor.submit(new ListenerNotification(msg));
+    } else {
+      new ListenerNotification(msg).run();
+    }
   }
 
   /** A thread to read packets from the connection. */
@@ -136,9 +226,7 @@ class MessageReader {
 
     @Override
     public void run() {
-      for (ListenerWrapper wrapper : mConnection.getRcvListeners().values()) {
-        wrapper.notifyListener(this.message);
-      }
+      mConnection.getRcvIndex().dispatch(this.message, NOTIFY);
     }
 
   }
@@ -1,41 +1,95 @@
 package com.deew.jt808.conn;
 
-import android.util.Log;
-
+import com.deew.jt808.msg.FragmentCache;
 import com.deew.jt808.msg.HeartbeatMessage;
 import com.deew.jt808.msg.Message;
 import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.ResendRequest;
+import com.deew.jt808.util.HashedWheelTimer;
+import com.deew.jt808.util.Log;
 import com.deew.jt808.util.LogUtils;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Writes messages to a JT/T808 server.
  * <p>
- * Messages are sent using a dedicated thread. Message interceptors can be registered to dynamically
- * modify message before they're actually sent. Message listeners can be registered to listen for
- * all outgoing messages.
+ * Messages are sent using a dedicated thread, or by the selector loop when the connection uses a
+ * non-blocking transport. Messages are encoded into frames by the threads sending them, before
+ * they are queued, so the writer only moves bytes: it drains every frame queued, up to {@link
+ * #MAX_BATCH_LENGTH} bytes, copies them back to back into a single buffer and flushes once, so a
+ * backlog costs a write per batch instead of a write per packet. Messages are queued in the lanes
+ * of an {@link OutboundQueue}, so replies and alarms overtake a backlog. Message interceptors can
+ * be registered to dynamically modify message before they're actually sent. Message listeners can
+ * be registered to listen for all outgoing messages.
+ * <p>
+ * When the connection is lost the writer is {@link #abort() aborted}: the queue is kept, and still
+ * accepts messages, until the writer is initialized for the next connection. It may then be {@link
+ * #hold() held}, so only the frames sent ahead, like the authentication, are written before the
+ * backlog.
  *
  */
 class MessageWriter {
 
   private static final String TAG = LogUtils.makeTag(MessageWriter.class);
 
-  private final BlockingQueue<Packet> mQueue;
+  /** The maximum number of bytes written at once by the write thread. */
+  static final int MAX_BATCH_LENGTH = 8 * Packet.MAX_FRAME_LENGTH;
+
+  // The frames of each message queued by lane, a message is a single element so its packets are
+  // never interleaved with other packets. The write thread, or the selector loop, is the only
+  // consumer
+  private final OutboundQueue mQueue;
+  // Encoded frames requested again by the server or retransmitted, written ahead of the queued
+  // packets
+  private final Queue<byte[]>         mResends = new ConcurrentLinkedQueue<>();
+  // Frames of the long messages recently sent
+  private final FragmentCache         mFragments = new FragmentCache();
+
+  // Reusable buffer a batch of frames is copied into, only touched by the write thread
+  private ByteBuffer mBuffer;
+  // Direct buffer holding the bytes not yet accepted by the non-blocking socket, only touched by
+  // the selector loop
+  private ByteBuffer mOut;
 
   private Connection   mConnection;
+  private WriteStats   mStats;
   private OutputStream mOutput;
-  private Thread       mWriteThread;
-  private Thread       mKeepAliveThread;
-
-  private boolean mDone;
+  private volatile NioTransport mTransport;
+  private volatile Thread mWriteThread;
+
+  // The scheduled keep alive task, and the generation it belongs to which changes whenever the
+  // keep alive process is started or stopped. Guarded by mKeepAliveLock
+  private final Object             mKeepAliveLock = new Object();
+  private HashedWheelTimer.Timeout mKeepAliveTimeout;
+  private int                      mKeepAliveGeneration;
+
+  private volatile boolean mDone;
+  // Set when the connection has been lost, the queue is kept for the next connection
+  private volatile boolean mAborted;
+  // Set while the queued messages wait for the frames sent ahead of them to be answered
+  private volatile boolean mHeld;
+  // Notified when frames are sent ahead or the writer is released, while it is held
+  private final Object     mHoldLock = new Object();
+
+  // The message being written and the index of its next frame, only touched by the consumer
+  private EncodedMessage mCurrent;
+  private int            mCurrentIndex;
+  // Messages waiting for a reply whose last frame has been copied but not flushed yet, their
+  // timeouts start once flushed. Only touched by the consumer
+  private final List<EncodedMessage> mUnflushed = new ArrayList<>();
 
   // Timestamp when the last packet was sent to the server. This information is used by the keep
   // alive process to only send heartbeats when the connection has been idle
-  private long mLastActive = System.currentTimeMillis();
+  private volatile long mLastActive = System.currentTimeMillis();
 
   /**
    * Creates a new message writer with the specified connection.
@@ -43,8 +97,9 @@ class MessageWriter {
    * @param conn the connection
    */
   MessageWriter(Connection conn) {
-    mQueue = new ArrayBlockingQueue<>(500, true);
+    mQueue = conn.getOutboundQueue();
     mConnection = conn;
+    mStats = conn.getWriteStats();
     init();
   }
 
@@ -53,9 +108,49 @@ class MessageWriter {
    * invoked if the connection is disconnected by an error.
    */
   void init() {
+    // The queue has a single consumer, the write thread of the previous connection must be gone
+    // before its state is reset. Its socket is closed already, so it stops at the next write
+    Thread previous = mWriteThread;
+    if (previous != null && previous != Thread.currentThread()) {
+      boolean interrupted = false;
+      while (previous.isAlive()) {
+        try {
+          previous.join();
+        } catch (InterruptedException ie) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
     mDone = false;
+    mAborted = false;
+    mHeld = false;
     mOutput = mConnection.getOutput();
+    mTransport = mConnection.getTransport();
+    // Serial numbers of the previous connection are meaningless to the server
+    mResends.clear();
+    mFragments.clear();
+    // Some frames of the message interrupted by the loss of the connection may not have reached the
+    // server, it is written again as a whole
+    mCurrentIndex = 0;
+    // The messages copied before may have reached the server, they are retransmitted if need be
+    flushed();
+
+    if (mTransport != null) {
+      // The selector loop writes the packets
+      mWriteThread = null;
+      if (mOut == null) {
+        mOut = ByteBuffer.allocateDirect(2 * Packet.MAX_FRAME_LENGTH);
+      }
+      mOut.clear();
+      return;
+    }
 
+    if (mBuffer == null) {
+      mBuffer = ByteBuffer.allocate(MAX_BATCH_LENGTH);
+    }
     mWriteThread = new WriteThread();
     // TODO: 10/24/2016 add connection count to the name
     mWriteThread.setName("Pigeon Message Writer ( )");
@@ -67,7 +162,9 @@ class MessageWriter {
    * #shutdown} or an error occurs.
    */
   public void startup() {
-    mWriteThread.start();
+    if (mWriteThread != null) {
+      mWriteThread.start();
+    }
   }
 
   /**
@@ -76,108 +173,416 @@ class MessageWriter {
    */
   public void shutdown() {
     Log.d(TAG, "shutdown writer");
+    mAborted = false;
+    stop();
+  }
+
+  /**
+   * Stops the message writer after the connection has been lost. Unlike {@link #shutdown()}, the
+   * queue is neither flushed nor cleared, and messages are still queued until the writer is
+   * initialized again for the next connection.
+   */
+  void abort() {
+    Log.d(TAG, "abort writer");
+    mAborted = true;
+    stop();
+  }
+
+  private void stop() {
     mDone = true;
-    synchronized (mQueue) {
-      mQueue.notifyAll();
+    cancelKeepAlive();
+    mQueue.signal();
+    synchronized (mHoldLock) {
+      mHoldLock.notifyAll();
     }
   }
 
+  /**
+   * Holds the queued messages back, only the frames sent with {@link #sendAhead(EncodedMessage)}
+   * are written until {@link #release()}. Must be called before {@link #startup()}.
+   */
+  void hold() {
+    mHeld = true;
+  }
+
+  /** Writes the queued messages again after {@link #hold()}. */
+  void release() {
+    mHeld = false;
+    wakeUp();
+  }
+
   /**
    * Starts the keep alive process. An empty message (aka heartbeat) is going to be sent to the
    * server every 30 seconds (by default) since the last packet was sent to the server.
+   * <p>
+   * No thread is started, the shared {@link HashedWheelTimer} checks the idle time of every
+   * connection instead.
    */
   void keepAlive() {
     // Schedule a keep-alive task to run if the feature is enabled, will write out a empty
     // message each time it runs to keep the TCP/IP connection open
-    // TODO: 2016/11/1 read from preferences
-    int keepAliveInterval = 60;
-    if (keepAliveInterval > 0) {
-      KeepAliveTask task = new KeepAliveTask(keepAliveInterval);
-      mKeepAliveThread = new Thread(task);
-      mKeepAliveThread.setDaemon(true);
-      // TODO: 2016/11/1 replace with connection counter value
-      mKeepAliveThread.setName("Pigeon Keep Alive ( )");
-      mKeepAliveThread.start();
+    int keepAliveInterval = mConnection.getConfig().getKeepAliveInterval();
+    synchronized (mKeepAliveLock) {
+      int generation = cancelKeepAlive();
+      if (keepAliveInterval > 0) {
+        // Wait a minimum of 15 seconds plus the interval before sending the first heartbeat
+        mKeepAliveTimeout = HashedWheelTimer.getDefault().newTimeout(
+            new KeepAliveTask(keepAliveInterval, generation), 15000 + keepAliveInterval * 1000L,
+            TimeUnit.MILLISECONDS);
+      }
     }
   }
 
   /**
-   * Sends the specified message to the server.
+   * Cancels the scheduled keep alive task and ends its generation, so a task running meanwhile
+   * does not schedule itself again.
+   *
+   * @return the new generation
+   */
+  private int cancelKeepAlive() {
+    synchronized (mKeepAliveLock) {
+      if (mKeepAliveTimeout != null) {
+        mKeepAliveTimeout.cancel();
+        mKeepAliveTimeout = null;
+      }
+      return ++mKeepAliveGeneration;
+    }
+  }
+
+  /**
+   * Sends the specified message to the server if there is space in its lane, without waiting. It
+   * is used for heartbeats, which are pointless while the queue is full.
    *
    * @param msg the message to send
    */
   public void sendMessage(Message msg) {
+    try {
+      offer(new EncodedMessage(mConnection.packetsOf(msg)), OutboundQueue.laneOf(msg), 0,
+            TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ie) {
+      // Never waits
+    }
+  }
+
+  /**
+   * Sends an encoded message to the server. The frames of its packets are queued at once, so the
+   * packets of a long message are never interleaved with other packets. Producers never take a
+   * lock, a producer waiting for space in a full lane does not hold up the writer. A full lane is
+   * handled according to the overflow policy of the queue.
+   *
+   * @param msg  the message to send
+   * @param lane the lane of the outbound queue
+   * @return {@code true} if the message has been queued, {@code false} if it has been dropped
+   * @throws QueueFullException if the lane is full and the queue rejects messages
+   */
+  boolean send(EncodedMessage msg, int lane) {
+    if (mDone && !mAborted) {
+      return false;
+    }
+
+    try {
+      // Blocking the selector loop would keep the queue from ever draining
+      if (!mQueue.add(msg, lane, !inLoop())) {
+        Log.w(TAG, "send: Lane " + lane + " full, drop " + msg);
+        return false;
+      }
+    } catch (InterruptedException ie) {
+      // The whole message is dropped, none of its packets has been queued
+      Log.w(TAG, "send: Interrupted, drop " + msg);
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    if (mTransport != null) {
+      mTransport.requestWrite();
+    }
+    return true;
+  }
+
+  /**
+   * Sends an encoded message to the server if there is space in its lane, waiting up to the
+   * specified time. The overflow policy does not apply, the selector loop never waits.
+   *
+   * @param msg     the message to send
+   * @param lane    the lane of the outbound queue
+   * @param timeout the maximum time to wait, 0 not to wait
+   * @param unit    the time unit of the timeout
+   * @return {@code true} if the message has been queued, {@code false} if the lane is still full
+   * @throws InterruptedException if interrupted while waiting
+   */
+  boolean offer(EncodedMessage msg, int lane, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    if ((mDone && !mAborted) || !mQueue.offer(msg, lane, inLoop() ? 0 : timeout, unit)) {
+      return false;
+    }
+    if (mTransport != null) {
+      mTransport.requestWrite();
+    }
+    return true;
+  }
+
+  private boolean inLoop() {
+    return mTransport != null && mTransport.getLoop().inLoop();
+  }
+
+  /**
+   * Requeues the packets the server asks for. Only the frames retained by the fragment cache are
+   * written again, the other ones are lost.
+   *
+   * @param req the request of the server
+   */
+  void resend(ResendRequest req) {
     if (!mDone) {
-      synchronized (mQueue) {
-        try {
-          for (Packet packet : msg.getPackets()) {
-            mQueue.put(packet);
+      int count = mFragments.get(req.getFirstSn(), req.getIndices(), mResends);
+      if (Log.isLoggable(Log.DEBUG)) {
+        Log.d(TAG, "resend: " + count + " packets of message " + req.getFirstSn());
+      }
+      wakeUp();
+    }
+  }
+
+  /**
+   * Writes again the frames of a message which has not been acknowledged in time. The frames are
+   * written ahead of the queued packets.
+   *
+   * @param frames the encoded frames of the message
+   */
+  void retransmit(byte[][] frames) {
+    if (!mDone) {
+      for (byte[] frame : frames) {
+        mResends.add(frame);
+      }
+      wakeUp();
+    }
+  }
+
+  /**
+   * Writes an encoded message ahead of the queued messages, even while the writer is held. It is
+   * used for the authentication which must reach the server before the backlog.
+   *
+   * @param msg the message to send
+   */
+  void sendAhead(EncodedMessage msg) {
+    if (!mDone) {
+      for (byte[] frame : msg.mFrames) {
+        mResends.add(frame);
+      }
+      wakeUp();
+    }
+  }
+
+  // Tells the consumer about frames to resend
+  private void wakeUp() {
+    if (mTransport != null) {
+      mTransport.requestWrite();
+    } else {
+      mQueue.signal();
+      synchronized (mHoldLock) {
+        mHoldLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns the frame of the next packet to write without taking it. Must be called by the
+   * consumer.
+   *
+   * @return the next frame, or {@code null} if the queue is empty
+   */
+  private byte[] peekFrame() {
+    if (mHeld) {
+      return null;
+    }
+    if (mCurrent == null) {
+      mCurrent = mQueue.poll();
+      mCurrentIndex = 0;
+      if (mCurrent == null) {
+        return null;
+      }
+    }
+    return mCurrent.mFrames[mCurrentIndex];
+  }
+
+  // Takes the frame returned by peekFrame(), retaining it if it belongs to a long message
+  private void nextFrame() {
+    Packet packet = mCurrent.mPackets[mCurrentIndex];
+    Log.d(TAG, "write: ", packet);
+    if (packet.isLongMsg()) {
+      byte[] frame = mCurrent.mFrames[mCurrentIndex];
+      mFragments.add(packet, frame, 0, frame.length);
+    }
+    if (++mCurrentIndex == mCurrent.mFrames.length) {
+      if (mCurrent.mAck != null) {
+        mUnflushed.add(mCurrent);
+      }
+      mCurrent = null;
+    }
+  }
+
+  // Starts the timeouts of the messages whose frames have all been flushed
+  private void flushed() {
+    for (int i = 0; i < mUnflushed.size(); i++) {
+      mUnflushed.get(i).written();
+    }
+    mUnflushed.clear();
+  }
+
+  // Must be called by the consumer
+  private boolean hasPackets() {
+    return !mHeld && (mCurrent != null || !mQueue.isEmpty());
+  }
+
+  /**
+   * Writes the queued frames and packets to the non-blocking socket, until the queue is empty or
+   * the socket accepts no more bytes. Called on the selector loop.
+   *
+   * @param channel the socket
+   * @return {@code true} if everything has been written, {@code false} if the socket is full
+   * @throws IOException if an I/O error occurs
+   */
+  boolean writeTo(WritableByteChannel channel) throws IOException {
+    while (true) {
+      long start = System.nanoTime();
+      int frames = 0;
+      // Fill the buffer with as many frames as it holds
+      while (true) {
+        byte[] frame = mResends.peek();
+        if (frame != null) {
+          if (frame.length > mOut.remaining()) {
+            break;
           }
-        } catch (InterruptedException ie) {
-          ie.printStackTrace();
-          return;
+          mOut.put(mResends.poll());
+          frames++;
+          continue;
+        }
+
+        frame = peekFrame();
+        if (frame == null || frame.length > mOut.remaining()) {
+          break;
         }
-        mQueue.notifyAll();
+        mOut.put(frame);
+        nextFrame();
+        frames++;
+      }
+
+      if (mOut.position() == 0) {
+        return true;
+      }
+
+      mOut.flip();
+      int written = channel.write(mOut);
+      mOut.compact();
+      if (frames > 0 || written > 0) {
+        mStats.record(frames, written, System.nanoTime() - start);
       }
+      if (written > 0) {
+        mTransport.getLoop().recordWritten(written);
+        // Keep track of the last time a packet was sent to the server
+        mLastActive = System.currentTimeMillis();
+      }
+      if (mOut.position() > 0) {
+        // The socket is full
+        return false;
+      }
+      flushed();
     }
   }
 
   private void writePackets() {
     try {
-      // Write out packets from the queue
+      // Write out batches of frames from the queue
       while (!mDone) {
-        Packet packet = nextPacket();
-        if (packet != null) {
-          Log.d(TAG, "writePackets: " + packet);
-          synchronized (mOutput) {
-            mOutput.write(packet.getBytes());
-            mOutput.flush();
-            // Keep track of the last time a packet was sent to the server
-            mLastActive = System.currentTimeMillis();
-          }
+        if (awaitFrames()) {
+          writeBatch();
         }
       }
+      if (mAborted) {
+        // The connection is lost, the queue is left to the next one
+        return;
+      }
 
       // Flush out the rest of the queue. If the queue is extremely large, it's possible we won't
       // have time to entirely flush it before the socket is forced closed by the shutdown process.
       synchronized (mOutput) {
-        while (!mQueue.isEmpty()) {
-          Packet packet = mQueue.remove();
-          mOutput.write(packet.getBytes());
+        while (hasPackets() || !mResends.isEmpty()) {
+          writeBatch();
         }
-        mOutput.flush();
         mOutput.close();
       }
 
       // Delete the queue contents (hopefully nothing is left)
+      mCurrent = null;
       mQueue.clear();
     } catch (IOException ioe) {
-      ioe.printStackTrace();
-      //TODO   this solution is not good
-      mConnection.shutDown();
+      // Failures of a writer stopped on purpose, or of the thread of a previous connection, are
+      // expected
+      if (!mDone && Thread.currentThread() == mWriteThread) {
+        mConnection.connectionLost(ioe);
+      }
     }
   }
 
   /**
-   * Returns the next available packet from the queue for writing.
+   * Copies the frames to resend and the queued frames into the reusable buffer, as many as it
+   * holds, then writes them to the output stream with a single flush.
    *
-   * @return the next available for writing
+   * @throws IOException if an I/O error occurs
    */
-  private Packet nextPacket() {
-    Packet packet = null;
+  private void writeBatch() throws IOException {
+    long start = System.nanoTime();
+    int frames = 0;
+    mBuffer.clear();
+
+    byte[] frame;
+    while ((frame = mResends.peek()) != null && frame.length <= mBuffer.remaining()) {
+      mBuffer.put(mResends.poll());
+      frames++;
+    }
+
+    while ((frame = peekFrame()) != null && frame.length <= mBuffer.remaining()) {
+      mBuffer.put(frame);
+      nextFrame();
+      frames++;
+    }
 
-    // Wait until there's a packet or we're done
-    while (!mDone && (packet = mQueue.poll()) == null) {
-      try {
-        synchronized (mQueue) {
-          mQueue.wait();
+    if (frames == 0) {
+      return;
+    }
+    synchronized (mOutput) {
+      mOutput.write(mBuffer.array(), 0, mBuffer.position());
+      mOutput.flush();
+      // Keep track of the last time a packet was sent to the server
+      mLastActive = System.currentTimeMillis();
+    }
+    flushed();
+    mStats.record(frames, mBuffer.position(), System.nanoTime() - start);
+  }
+
+  /**
+   * Waits until there are frames to write.
+   *
+   * @return {@code true} if there are packets queued or frames to resend, {@code false} if the
+   * writer is done
+   */
+  private boolean awaitFrames() {
+    while (!mDone && !hasPackets() && mResends.isEmpty()) {
+      if (mHeld) {
+        // The queue may be full of messages which must not be written yet
+        synchronized (mHoldLock) {
+          if (mHeld && !mDone && mResends.isEmpty()) {
+            try {
+              mHoldLock.wait();
+            } catch (InterruptedException ie) {
+              // Do nothing
+            }
+          }
         }
-      } catch (InterruptedException ie) {
-        // Do nothing
+      } else {
+        // Spins, then parks until a message is queued or signalled
+        mQueue.await(0, TimeUnit.MILLISECONDS);
       }
     }
 
-    return packet;
+    return !mDone;
   }
 
   private class WriteThread extends Thread {
@@ -191,41 +596,47 @@ class MessageWriter {
   }
 
   /**
-   * A TimerTask that keeps connections to the server alive by sending a empty message on an
-   * interval.
+   * A timer task that keeps the connection to the server alive by sending an empty message once it
+   * has been idle for the interval. It runs on the shared timer and reschedules itself for the end
+   * of the interval, counted from the last packet sent, as long as its generation is current.
    */
   private class KeepAliveTask implements Runnable {
 
-    private int delay;
-    private HeartbeatMessage.Builder mHearbeatBuilder;
+    private final long                     mInterval;
+    private final int                      mGeneration;
+    private final HeartbeatMessage.Builder mHearbeatBuilder = new HeartbeatMessage.Builder();
 
-    public KeepAliveTask(int delay) {
-      this.delay = delay;
-      mHearbeatBuilder = new HeartbeatMessage.Builder();
+    KeepAliveTask(int delay, int generation) {
+      mInterval = delay * 1000L;
+      mGeneration = generation;
+    }
+
+    private boolean isCurrent() {
+      synchronized (mKeepAliveLock) {
+        return !mDone && mGeneration == mKeepAliveGeneration;
+      }
     }
 
     @Override
     public void run() {
-      try {
-        // Sleep a minimum of 15 seconds plus delay before sending first heartbeat
-        Thread.sleep(15000 + delay * 1000L);
-      } catch (InterruptedException ie) {
-        // Do nothing
+      if (!isCurrent()) {
+        return;
       }
 
-      while (!mDone) {
-        synchronized (mOutput) {
-          // Send heartbeat if no packet has been sent to the server for a given time
-          if (System.currentTimeMillis() - mLastActive >= delay * 1000L) {
-            sendMessage(mHearbeatBuilder.build());
-          }
-        }
-
-        try {
-          // Sleep until we should write the next keep-alive
-          Thread.sleep(delay * 1000L);
-        } catch (InterruptedException ie) {
-          // Do nothing
+      // Send heartbeat if no packet has been sent to the server for a given time. The heartbeat
+      // never waits for space in the queue, the timer thread must not block
+      long idle = System.currentTimeMillis() - mLastActive;
+      long next = mInterval;
+      if (idle >= mInterval) {
+        sendMessage(mHearbeatBuilder.build());
+      } else {
+        next -= idle;
+      }
+      synchronized (mKeepAliveLock) {
+        // Stopped or started again while the heartbeat was sent
+        if (mGeneration == mKeepAliveGeneration) {
+          mKeepAliveTimeout = HashedWheelTimer.getDefault().newTimeout(this, next,
+                                                                       TimeUnit.MILLISECONDS);
         }
       }
     }
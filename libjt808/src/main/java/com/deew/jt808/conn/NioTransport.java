@@ -0,0 +1,225 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.util.HashedWheelTimer;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The non-blocking socket of a connection, driven by a {@link SelectorLoop}.
+ * <p>
+ * Every method but {@link #requestWrite()} and {@link #close()} is called on the loop thread.
+ *
+ */
+class NioTransport implements SelectorLoop.Handler {
+
+  private static final String TAG = LogUtils.makeTag(NioTransport.class);
+
+  private final Connection    mConnection;
+  private final SelectorLoop  mLoop;
+  private final AtomicBoolean mWriteScheduled = new AtomicBoolean();
+  private final AtomicBoolean mClosed         = new AtomicBoolean();
+
+  private SocketChannel            mChannel;
+  private SelectionKey             mKey;
+  private HashedWheelTimer.Timeout mConnectTimeout;
+
+  // Set once connected, the reader and writer of the connection
+  private MessageReader mReader;
+  private MessageWriter mWriter;
+
+  private final Runnable mWriteTask = new Runnable() {
+    @Override
+    public void run() {
+      // Clear the flag first, packets queued while writing schedule another task
+      mWriteScheduled.set(false);
+      try {
+        write();
+      } catch (IOException ioe) {
+        onClosed(ioe);
+      }
+    }
+  };
+
+  NioTransport(Connection conn, SelectorLoop loop) {
+    mConnection = conn;
+    mLoop = loop;
+  }
+
+  SelectorLoop getLoop() {
+    return mLoop;
+  }
+
+  /**
+   * Starts connecting to the specified server. The connection is notified from the loop thread
+   * once connected, or shut down if connecting fails or does not complete within the timeout. The
+   * host name is resolved on the loop thread, an IP address avoids blocking it.
+   *
+   * @param host    the host of the server
+   * @param port    the port of the server
+   * @param timeout the connect timeout, in milliseconds
+   */
+  void connect(final String host, final int port, long timeout) {
+    mConnectTimeout = HashedWheelTimer.getDefault().newTimeout(new Runnable() {
+      @Override
+      public void run() {
+        mLoop.execute(new Runnable() {
+          @Override
+          public void run() {
+            onClosed(new SocketTimeoutException("Connect timed out."));
+          }
+        });
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+
+    mLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          mChannel = SocketChannel.open();
+          mChannel.configureBlocking(false);
+          mChannel.socket().setTcpNoDelay(true);
+          InetSocketAddress address = new InetSocketAddress(host, port);
+          if (address.isUnresolved()) {
+            throw new IOException("Unknown host " + host + ".");
+          }
+          if (mChannel.connect(address)) {
+            mKey = mLoop.register(mChannel, 0, NioTransport.this);
+            onConnectable();
+          } else {
+            mKey = mLoop.register(mChannel, SelectionKey.OP_CONNECT, NioTransport.this);
+          }
+        } catch (IOException ioe) {
+          onClosed(ioe);
+        }
+      }
+    });
+  }
+
+  /**
+   * Binds the reader and the writer of the connection and starts reading.
+   *
+   * @param reader the message reader
+   * @param writer the message writer
+   */
+  void start(MessageReader reader, MessageWriter writer) {
+    mReader = reader;
+    mWriter = writer;
+    mKey.interestOps(SelectionKey.OP_READ);
+    // Packets may have been queued before
+    requestWrite();
+  }
+
+  /** Asks the loop to write the packets queued by the writer, may be called from any thread. */
+  void requestWrite() {
+    if (!mClosed.get() && mWriteScheduled.compareAndSet(false, true)) {
+      mLoop.execute(mWriteTask);
+    }
+  }
+
+  /** Closes the socket, may be called from any thread. */
+  void close() {
+    if (!mClosed.compareAndSet(false, true)) {
+      return;
+    }
+    if (mConnectTimeout != null) {
+      mConnectTimeout.cancel();
+    }
+
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          // Write out what the socket accepts right away, the rest is dropped
+          if (mKey != null && mKey.isValid() && mWriter != null) {
+            mWriter.writeTo(mChannel);
+          }
+        } catch (IOException ioe) {
+          // Ignore
+        }
+        if (mKey != null) {
+          mKey.cancel();
+        }
+        if (mChannel != null) {
+          try {
+            mChannel.close();
+          } catch (IOException ioe) {
+            // Ignore
+          }
+        }
+      }
+    };
+
+    try {
+      mLoop.execute(task);
+    } catch (IllegalStateException ise) {
+      // The loop has been shut down and closed the channel already
+    }
+  }
+
+  @Override
+  public void onConnectable() throws IOException {
+    if (mClosed.get() || !mChannel.finishConnect()) {
+      return;
+    }
+
+    mConnectTimeout.cancel();
+    mKey.interestOps(0);
+    mConnection.connectComplete(this);
+  }
+
+  @Override
+  public void onReadable() throws IOException {
+    ByteBuffer buf = mLoop.readBuffer();
+    int len = mChannel.read(buf);
+    if (len < 0) {
+      throw new IOException("Connection closed by the server.");
+    }
+    mLoop.recordRead(len);
+
+    buf.flip();
+    mReader.processBytes(buf);
+  }
+
+  @Override
+  public void onWritable() throws IOException {
+    write();
+  }
+
+  @Override
+  public void onClosed(IOException cause) {
+    if (mClosed.get()) {
+      return;
+    }
+
+    Log.e(TAG, "onClosed: Connection failed.", cause);
+    if (mReader != null) {
+      mConnection.connectionLost(cause);
+    } else {
+      mConnection.connectFailed(cause);
+    }
+  }
+
+  /** Writes the queued packets and waits for writability only if the socket is full. */
+  private void write() throws IOException {
+    if (mClosed.get() || mWriter == null || !mKey.isValid()) {
+      return;
+    }
+
+    boolean flushed = mWriter.writeTo(mChannel);
+    int ops = mKey.interestOps();
+    int wanted = flushed ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE;
+    if (wanted != ops) {
+      mKey.interestOps(wanted);
+    }
+  }
+
+}
@@ -0,0 +1,467 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.msg.LocationMessage;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+import com.deew.jt808.util.MpscRingBuffer;
+import com.deew.jt808.util.Parker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The messages of a connection waiting to be written, in lanes by priority.
+ * <p>
+ * Replies and session control messages go first, then emergency alarms, then realtime messages:
+ * the writer always drains the highest lane which is not empty. The bulk lane, meant for the
+ * backlog of historical points replayed after reconnecting, is drained in between: it gets one
+ * message for every {@link ConnectionConfiguration#getBulkWeight()} messages of the upper lanes,
+ * so a busy connection still makes progress on its backlog, and everything once the upper lanes
+ * are empty.
+ * <p>
+ * Every lane is a lock-free ring with its own capacity, the writer is its only consumer and waits
+ * on all of them at once. The depth of every lane is reported for monitoring.
+ * <p>
+ * What happens to a message sent on a full lane depends on the overflow policy of the connection:
+ * the sender waits for space ({@link #OVERFLOW_BLOCK}), the oldest bulk message is dropped to make
+ * room and its pending reply fails ({@link #OVERFLOW_DROP_OLDEST_BULK}), the message is rejected
+ * with a {@link QueueFullException} ({@link #OVERFLOW_REJECT}), or bulk messages are appended to a
+ * file and replayed once the lane drains ({@link #OVERFLOW_SPILL_TO_DISK}). The last two policies
+ * only make room in the bulk lane, a sender on another full lane waits. The selector loop never
+ * waits, a message it would wait for is dropped. A lane found full is unwritable until the writer
+ * drained it down to half of its capacity, then the {@link WritabilityListener} is notified.
+ *
+ */
+public class OutboundQueue {
+
+  private static final String TAG = LogUtils.makeTag(OutboundQueue.class);
+
+  /** Replies to the server and session control messages, such as heartbeats. */
+  public static final int LANE_CONTROL  = 0;
+  /** Locations with the emergency alarm. */
+  public static final int LANE_ALARM    = 1;
+  /** Every other message, unless sent on another lane explicitly. */
+  public static final int LANE_REALTIME = 2;
+  /** Backlogs and uploads which may wait. */
+  public static final int LANE_BULK     = 3;
+  /** The number of lanes. */
+  public static final int LANES         = 4;
+
+  /** Wait for space in a full lane. */
+  public static final int OVERFLOW_BLOCK            = 0;
+  /** Drop the oldest messages of the bulk lane when it is full, wait for space in other lanes. */
+  public static final int OVERFLOW_DROP_OLDEST_BULK = 1;
+  /** Throw a {@link QueueFullException} when a lane is full. */
+  public static final int OVERFLOW_REJECT           = 2;
+  /** Append the messages of the bulk lane to a file when it is full, wait for space in others. */
+  public static final int OVERFLOW_SPILL_TO_DISK    = 3;
+
+  /** Default capacity of the lanes, in messages. */
+  static final int[] DEFAULT_CAPACITIES = { 64, 64, 512, 1024 };
+  /** Default number of messages of the upper lanes written for each bulk message. */
+  static final int   DEFAULT_BULK_WEIGHT = 4;
+
+  // Terminal generic reply, heartbeat, logout, register, authenticate
+  private static final short[] CONTROL_IDS = { 0x0001, 0x0002, 0x0003, 0x0100, 0x0102 };
+  // Location batch upload, multimedia data upload
+  private static final short[] BULK_IDS    = { 0x0704, 0x0801 };
+
+  private final MpscRingBuffer<EncodedMessage>[] mLanes;
+  private final Parker                           mParker = new Parker();
+  private final int                              mBulkWeight;
+  private final int                              mPolicy;
+  // The bulk messages on disk, null unless spilling to disk
+  private final SpillFile                        mSpill;
+  // The depth below which a full lane is writable again
+  private final int[]                            mLowWater = new int[LANES];
+
+  private final AtomicLongArray    mEnqueued   = new AtomicLongArray(LANES);
+  private final AtomicLongArray    mDropped    = new AtomicLongArray(LANES);
+  private final AtomicIntegerArray mMaxDepth   = new AtomicIntegerArray(LANES);
+  // Set by producers finding a lane full, cleared by the consumer once it drained the lane
+  private final AtomicIntegerArray mUnwritable = new AtomicIntegerArray(LANES);
+  private final AtomicLong         mSpilled    = new AtomicLong();
+
+  private volatile WritabilityListener mListener;
+
+  // Messages taken from the upper lanes since the last bulk message, only touched by the consumer
+  private int mSinceBulk;
+
+  private final Parker.Condition mNotEmpty = new Parker.Condition() {
+    @Override
+    public boolean isMet() {
+      return !isEmpty();
+    }
+  };
+
+  /**
+   * Creates a new queue.
+   *
+   * @param capacities the capacity of every lane, each rounded up to a power of two
+   * @param bulkWeight the number of messages of the upper lanes written for each bulk message
+   * @param policy     what to do with a message sent on a full lane, such as {@link
+   *                   #OVERFLOW_BLOCK}
+   * @param spillDir   the directory of the spill file, or {@code null} for the temporary directory
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  OutboundQueue(int[] capacities, int bulkWeight, int policy, File spillDir) {
+    mLanes = new MpscRingBuffer[LANES];
+    for (int i = 0; i < LANES; i++) {
+      mLanes[i] = new MpscRingBuffer<>(capacities[i], mParker);
+      mLowWater[i] = mLanes[i].capacity() / 2;
+    }
+    mBulkWeight = bulkWeight;
+    mPolicy = policy;
+    mSpill = policy == OVERFLOW_SPILL_TO_DISK ? new SpillFile(spillDir) : null;
+  }
+
+  /**
+   * Returns the lane a message is sent on by default.
+   *
+   * @param msg the message
+   * @return the lane of the message
+   */
+  public static int laneOf(Message msg) {
+    short id = msg.getId();
+    for (short controlId : CONTROL_IDS) {
+      if (id == controlId) {
+        return LANE_CONTROL;
+      }
+    }
+    if (LocationMessage.isEmergency(msg)) {
+      return LANE_ALARM;
+    }
+    for (short bulkId : BULK_IDS) {
+      if (id == bulkId) {
+        return LANE_BULK;
+      }
+    }
+    return LANE_REALTIME;
+  }
+
+  /**
+   * Queues a message, applying the overflow policy if its lane is full.
+   *
+   * @param msg      the encoded message
+   * @param lane     the lane
+   * @param mayBlock {@code false} to drop the message instead of waiting for space
+   * @return {@code true} if queued or spilled, {@code false} if the message has been dropped
+   * @throws QueueFullException   if the lane is full and the policy is {@link #OVERFLOW_REJECT}
+   * @throws InterruptedException if interrupted while waiting
+   */
+  boolean add(EncodedMessage msg, int lane, boolean mayBlock) throws InterruptedException {
+    if (lane == LANE_BULK && mSpill != null) {
+      return spill(msg);
+    }
+    if (tryOffer(msg, lane)) {
+      return true;
+    }
+
+    switch (mPolicy) {
+      case OVERFLOW_DROP_OLDEST_BULK:
+        if (lane == LANE_BULK) {
+          MpscRingBuffer<EncodedMessage> bulk = mLanes[LANE_BULK];
+          while (!bulk.offer(msg)) {
+            EncodedMessage evicted = bulk.evict();
+            if (evicted != null) {
+              mDropped.incrementAndGet(LANE_BULK);
+              // Never written, the request waiting for its reply fails at once
+              evicted.dropped(new QueueFullException(LANE_BULK));
+            }
+          }
+          queued(LANE_BULK);
+          return true;
+        }
+        break;
+      case OVERFLOW_REJECT:
+        throw new QueueFullException(lane);
+    }
+
+    if (!mayBlock) {
+      mDropped.incrementAndGet(lane);
+      return false;
+    }
+    mLanes[lane].put(msg);
+    queued(lane);
+    return true;
+  }
+
+  /**
+   * Queues a message if its lane is not full, waiting up to the specified time. The overflow
+   * policy does not apply, the caller keeps a message which is not queued.
+   *
+   * @param msg     the encoded message
+   * @param lane    the lane
+   * @param timeout the maximum time to wait, 0 not to wait
+   * @param unit    the time unit of the timeout
+   * @return {@code true} if queued, {@code false} if the lane is still full
+   * @throws InterruptedException if interrupted while waiting
+   */
+  boolean offer(EncodedMessage msg, int lane, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    if (lane == LANE_BULK && mSpill != null && mSpill.isActive()) {
+      // Must not overtake the messages on disk
+      mUnwritable.set(lane, 1);
+      return false;
+    }
+    if (tryOffer(msg, lane)) {
+      return true;
+    }
+    if (timeout <= 0 || !mLanes[lane].offer(msg, timeout, unit)) {
+      return false;
+    }
+    queued(lane);
+    return true;
+  }
+
+  private boolean tryOffer(EncodedMessage msg, int lane) {
+    MpscRingBuffer<EncodedMessage> ring = mLanes[lane];
+    if (!ring.offer(msg)) {
+      // Flag the lane, then try again: either the message gets in or the lane is still full, and
+      // the writer sees the flag when it takes a message either way
+      mUnwritable.set(lane, 1);
+      if (!ring.offer(msg)) {
+        return false;
+      }
+    }
+    queued(lane);
+    return true;
+  }
+
+  private boolean spill(EncodedMessage msg) {
+    if (!mSpill.isActive() && mLanes[LANE_BULK].offer(msg)) {
+      queued(LANE_BULK);
+      return true;
+    }
+
+    synchronized (mSpill) {
+      // Checked again, the writer may have replayed the file meanwhile
+      if (!mSpill.isActive() && mLanes[LANE_BULK].offer(msg)) {
+        queued(LANE_BULK);
+        return true;
+      }
+      try {
+        mSpill.append(msg);
+      } catch (IOException ioe) {
+        Log.w(TAG, "spill: " + ioe.getMessage() + ", drop " + msg);
+        mDropped.incrementAndGet(LANE_BULK);
+        return false;
+      }
+      mUnwritable.set(LANE_BULK, 1);
+      mSpilled.incrementAndGet();
+      // The writer replays the file once it drained the lane
+      mParker.signal();
+      return true;
+    }
+  }
+
+  private void queued(int lane) {
+    mEnqueued.incrementAndGet(lane);
+    int depth = mLanes[lane].size();
+    int max;
+    while (depth > (max = mMaxDepth.get(lane)) && !mMaxDepth.compareAndSet(lane, max, depth)) {
+      // Raced with another producer
+    }
+  }
+
+  /**
+   * Takes the next message to write. Must be called by the consumer.
+   *
+   * @return the message, or {@code null} if every lane is empty
+   */
+  EncodedMessage poll() {
+    MpscRingBuffer<EncodedMessage> bulk = mLanes[LANE_BULK];
+    if (mSpill != null && mSpill.isActive() && bulk.size() <= mLowWater[LANE_BULK]) {
+      replay();
+    }
+    if (mSinceBulk >= mBulkWeight && !bulk.isEmpty()) {
+      mSinceBulk = 0;
+      return taken(LANE_BULK, bulk.poll());
+    }
+
+    for (int i = 0; i < LANE_BULK; i++) {
+      EncodedMessage msg = mLanes[i].poll();
+      if (msg != null) {
+        mSinceBulk++;
+        return taken(i, msg);
+      }
+    }
+    mSinceBulk = 0;
+    return taken(LANE_BULK, bulk.poll());
+  }
+
+  // Moves spilled messages back into the bulk lane
+  private void replay() {
+    try {
+      int count = mSpill.drainTo(mLanes[LANE_BULK]);
+      Log.d(TAG, "replay: " + count + " messages, " + mSpill.size() + " left on disk");
+    } catch (IOException ioe) {
+      Log.e(TAG, "replay: Drop " + mSpill.size() + " messages", ioe);
+      mDropped.addAndGet(LANE_BULK, mSpill.size());
+      mSpill.failAll(ioe);
+      mSpill.clear();
+    }
+  }
+
+  // Notifies the listener once a full lane has drained
+  private EncodedMessage taken(int lane, EncodedMessage msg) {
+    if (msg != null && mUnwritable.get(lane) != 0
+        && mLanes[lane].size() <= mLowWater[lane]
+        && (lane != LANE_BULK || mSpill == null || !mSpill.isActive())
+        && mUnwritable.compareAndSet(lane, 1, 0)) {
+      WritabilityListener listener = mListener;
+      if (listener != null) {
+        try {
+          listener.onWritable(lane);
+        } catch (RuntimeException re) {
+          Log.e(TAG, "taken: Writability listener failed", re);
+        }
+      }
+    }
+    return msg;
+  }
+
+  /**
+   * Returns if every lane is empty and nothing is left on disk. Must be called by the consumer.
+   *
+   * @return {@code true} if there is nothing to write
+   */
+  boolean isEmpty() {
+    for (MpscRingBuffer<EncodedMessage> lane : mLanes) {
+      if (!lane.isEmpty()) {
+        return false;
+      }
+    }
+    return mSpill == null || !mSpill.isActive();
+  }
+
+  /**
+   * Waits until a lane is not empty or {@link #signal()} is called. Must be called by the
+   * consumer.
+   *
+   * @param timeout the maximum time to wait, 0 to wait without timeout
+   * @param unit    the time unit of the timeout
+   * @see Parker#await(Parker.Condition, long, TimeUnit)
+   */
+  void await(long timeout, TimeUnit unit) {
+    mParker.await(mNotEmpty, timeout, unit);
+  }
+
+  /** Wakes the consumer up, or makes its next wait return at once. */
+  void signal() {
+    mParker.signal();
+  }
+
+  /** Removes every message, including the ones on disk. Must be called by the consumer. */
+  void clear() {
+    for (MpscRingBuffer<EncodedMessage> lane : mLanes) {
+      lane.clear();
+    }
+    if (mSpill != null) {
+      mSpill.clear();
+    }
+  }
+
+  /**
+   * Sets the listener notified when a full lane can take messages again.
+   *
+   * @param listener the listener, or {@code null} to remove it
+   */
+  void setWritabilityListener(WritabilityListener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Returns the overflow policy of the queue.
+   *
+   * @return the policy, such as {@link #OVERFLOW_BLOCK}
+   */
+  public int getOverflowPolicy() {
+    return mPolicy;
+  }
+
+  /**
+   * Returns if a lane takes messages, that is it has not been found full since the writer last
+   * drained it down to half of its capacity.
+   *
+   * @param lane the lane
+   * @return {@code true} if the lane is writable
+   */
+  public boolean isWritable(int lane) {
+    return mUnwritable.get(lane) == 0;
+  }
+
+  /**
+   * Returns the number of messages a lane holds.
+   *
+   * @param lane the lane
+   * @return the capacity of the lane
+   */
+  public int getCapacity(int lane) {
+    return mLanes[lane].capacity();
+  }
+
+  /**
+   * Returns the number of messages waiting in a lane.
+   *
+   * @param lane the lane
+   * @return the depth of the lane
+   */
+  public int getDepth(int lane) {
+    return mLanes[lane].size();
+  }
+
+  /**
+   * Returns the largest number of messages which have been waiting in a lane.
+   *
+   * @param lane the lane
+   * @return the high water mark of the lane
+   */
+  public int getMaxDepth(int lane) {
+    return mMaxDepth.get(lane);
+  }
+
+  /**
+   * Returns the number of messages queued in a lane so far.
+   *
+   * @param lane the lane
+   * @return the number of messages queued
+   */
+  public long getEnqueuedCount(int lane) {
+    return mEnqueued.get(lane);
+  }
+
+  /**
+   * Returns the number of messages dropped because a lane was full.
+   *
+   * @param lane the lane
+   * @return the number of messages dropped
+   */
+  public long getDroppedCount(int lane) {
+    return mDropped.get(lane);
+  }
+
+  /**
+   * Returns the number of bulk messages appended to the spill file so far.
+   *
+   * @return the number of messages spilled
+   */
+  public long getSpilledCount() {
+    return mSpilled.get();
+  }
+
+  /**
+   * Returns the number of bulk messages on disk waiting to be replayed.
+   *
+   * @return the number of messages in the spill file
+   */
+  public int getSpillDepth() {
+    return mSpill != null ? mSpill.size() : 0;
+  }
+
+}
@@ -0,0 +1,424 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.ServerGenericReply;
+import com.deew.jt808.util.HashedWheelTimer;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Correlates the {@link ServerGenericReply} of the server with the requests waiting for them.
+ * <p>
+ * Pending requests are stored in a table indexed by the low bits of their serial number, so
+ * registering and matching a reply are O(1) and lock free. The table has a slot for every serial
+ * number by default, a connection with few requests in flight can use a smaller one to save memory.
+ * The timeouts run on the shared {@link HashedWheelTimer}, no thread is started per request.
+ * <p>
+ * A request which gets no reply within its timeout is retransmitted as the protocol specifies: the
+ * n-th retransmission waits for {@code T(n+1) = T(n) * (n+1)}, where {@code T(1)} is the initial
+ * timeout. The frames encoded when the message was sent are written again, or the packets are
+ * encoded on the first retransmission if they were not given, and reused by the next ones. Once the
+ * retransmissions are exhausted the request fails with a {@link TimeoutException}.
+ * <p>
+ * The timeout of a message which waits in the outbound queue only starts once the writer has
+ * written its last frame ({@link Entry#arm()}), so a message is never retransmitted before it has
+ * been written at all. A message dropped from the queue fails at once ({@link
+ * Entry#fail(Throwable)}).
+ * <p>
+ * While the connection is lost the table is {@link #suspend() suspended}: the requests whose
+ * timeout expires wait for the connection to be back, instead of spending their retransmissions on
+ * a dead socket.
+ *
+ */
+public class PendingAckTable {
+
+  private static final String TAG = LogUtils.makeTag(PendingAckTable.class);
+
+  /** The default number of slots, one for every serial number. */
+  public static final int DEFAULT_CAPACITY = 0x10000;
+
+  private final AtomicReferenceArray<Entry> mSlots;
+  private final int                         mMask;
+  private final AtomicInteger               mSize = new AtomicInteger();
+  private final HashedWheelTimer            mTimer;
+  private final Retransmitter               mRetransmitter;
+
+  private final AtomicLong mRetransmits = new AtomicLong();
+  private final AtomicLong mGiveUps     = new AtomicLong();
+
+  private volatile boolean mSuspended;
+
+  /** Creates a new table whose timeouts run on the shared timer, without retransmissions. */
+  public PendingAckTable() {
+    this(HashedWheelTimer.getDefault(), null);
+  }
+
+  /**
+   * Creates a new table.
+   *
+   * @param timer         the timer the timeouts run on
+   * @param retransmitter writes the frames of the requests to retransmit, may be {@code null} if
+   *                      requests are never retransmitted
+   */
+  public PendingAckTable(HashedWheelTimer timer, Retransmitter retransmitter) {
+    this(timer, retransmitter, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a new table with the specified number of slots. A request still pending when another
+   * one takes its slot fails, so the capacity bounds the number of requests in flight.
+   *
+   * @param timer         the timer the timeouts run on
+   * @param retransmitter writes the frames of the requests to retransmit, may be {@code null} if
+   *                      requests are never retransmitted
+   * @param capacity      the number of slots, a power of two up to {@link #DEFAULT_CAPACITY}
+   */
+  public PendingAckTable(HashedWheelTimer timer, Retransmitter retransmitter, int capacity) {
+    if (timer == null) {
+      throw new NullPointerException("Timer is null.");
+    }
+    if (capacity <= 0 || capacity > DEFAULT_CAPACITY || (capacity & (capacity - 1)) != 0) {
+      throw new IllegalArgumentException("Capacity must be a power of two up to 65536.");
+    }
+    mSlots = new AtomicReferenceArray<>(capacity);
+    mMask = capacity - 1;
+    mTimer = timer;
+    mRetransmitter = retransmitter;
+  }
+
+  /**
+   * Registers a request waiting for a reply, which is never retransmitted.
+   *
+   * @param sn      the serial number of the request
+   * @param id      the message ID of the request
+   * @param timeout the time to wait for the reply, in milliseconds
+   * @return the future completed by the reply
+   * @see #register(Packet[], long, int)
+   */
+  public ReplyFuture<ServerGenericReply> register(short sn, short id, long timeout) {
+    return register(new Entry(sn, id, null, null, timeout, 0));
+  }
+
+  /**
+   * Registers the packets of a message waiting for a reply, which answers the last packet. A
+   * request still pending in the same slot, which can only be left after the serial numbers wrapped
+   * around the capacity of the table, fails.
+   *
+   * @param packets    the packets of the message
+   * @param timeout    the time to wait for the first reply, in milliseconds
+   * @param maxRetries the maximum number of retransmissions
+   * @return the future completed by the reply
+   */
+  public ReplyFuture<ServerGenericReply> register(Packet[] packets, long timeout,
+                                                  int maxRetries) {
+    return register(packets, null, timeout, maxRetries);
+  }
+
+  /**
+   * Registers the packets of a message waiting for a reply, along with their frames which are
+   * retransmitted as they are.
+   *
+   * @param packets    the packets of the message
+   * @param frames     the encoded frames of the packets, or {@code null} to encode them if needed
+   * @param timeout    the time to wait for the first reply, in milliseconds
+   * @param maxRetries the maximum number of retransmissions
+   * @return the future completed by the reply
+   * @see #register(Packet[], long, int)
+   */
+  public ReplyFuture<ServerGenericReply> register(Packet[] packets, byte[][] frames, long timeout,
+                                                  int maxRetries) {
+    Entry entry = registerUnarmed(packets, frames, timeout, maxRetries);
+    entry.arm();
+    return entry.mFuture;
+  }
+
+  /**
+   * Registers the packets of a message waiting for a reply, whose timeout only starts once {@link
+   * Entry#arm()} is called. It is used for a message which is queued, the writer arms the entry
+   * once it has written the last frame of the message.
+   *
+   * @param packets    the packets of the message
+   * @param frames     the encoded frames of the packets, or {@code null} to encode them if needed
+   * @param timeout    the time to wait for the first reply, in milliseconds
+   * @param maxRetries the maximum number of retransmissions
+   * @return the entry of the request, whose future is completed by the reply
+   * @see #register(Packet[], byte[][], long, int)
+   */
+  Entry registerUnarmed(Packet[] packets, byte[][] frames, long timeout, int maxRetries) {
+    if (maxRetries > 0 && mRetransmitter == null) {
+      throw new IllegalStateException("No retransmitter.");
+    }
+
+    Packet last = packets[packets.length - 1];
+    Entry entry = new Entry(last.getSn(), last.getMsgId(), packets, frames, timeout, maxRetries);
+    publish(entry);
+    return entry;
+  }
+
+  private ReplyFuture<ServerGenericReply> register(Entry entry) {
+    publish(entry);
+    entry.arm();
+    return entry.mFuture;
+  }
+
+  private void publish(Entry entry) {
+    Entry old = mSlots.getAndSet(entry.mSn & mMask, entry);
+    if (old != null) {
+      old.cancelTimeout();
+      old.mFuture.fail(new TimeoutException("Slot of serial number " + (old.mSn & 0xffff)
+                                            + " reused."));
+    } else {
+      mSize.incrementAndGet();
+    }
+  }
+
+  /**
+   * Completes the request the specified reply answers.
+   *
+   * @param reply the reply of the server
+   * @return {@code true} if a pending request matches the reply
+   */
+  public boolean complete(ServerGenericReply reply) {
+    Entry entry = mSlots.get(reply.getReqSn() & mMask);
+    if (entry == null || entry.mSn != reply.getReqSn() || entry.mId != reply.getReqId()
+        || !remove(entry)) {
+      return false;
+    }
+
+    entry.cancelTimeout();
+    entry.mFuture.complete(reply);
+    return true;
+  }
+
+  /**
+   * Fails every pending request with the specified cause.
+   *
+   * @param cause the cause of the failure
+   */
+  public void failAll(Throwable cause) {
+    for (int i = 0; i < mSlots.length() && mSize.get() > 0; i++) {
+      Entry entry = mSlots.get(i);
+      if (entry != null && remove(entry)) {
+        entry.cancelTimeout();
+        entry.mFuture.fail(cause);
+      }
+    }
+  }
+
+  /**
+   * Suspends the timeouts of the pending requests. A request whose timeout expires is neither
+   * retransmitted nor failed until the table is resumed, a request which is replied is still
+   * completed.
+   */
+  public void suspend() {
+    mSuspended = true;
+  }
+
+  /**
+   * Resumes the timeouts of the pending requests. The requests whose timeout expired while the
+   * table was suspended wait for their current timeout again, then are retransmitted or failed.
+   */
+  public void resume() {
+    mSuspended = false;
+    for (int i = 0; i < mSlots.length() && mSize.get() > 0; i++) {
+      Entry entry = mSlots.get(i);
+      if (entry != null) {
+        entry.wake();
+      }
+    }
+  }
+
+  /**
+   * Returns if the timeouts of the pending requests are suspended.
+   *
+   * @return {@code true} if the table is suspended
+   */
+  public boolean isSuspended() {
+    return mSuspended;
+  }
+
+  /**
+   * Returns the number of requests waiting for a reply.
+   *
+   * @return the number of pending requests
+   */
+  public int size() {
+    return mSize.get();
+  }
+
+  /**
+   * Returns the number of retransmissions so far.
+   *
+   * @return the number of retransmissions
+   */
+  public long getRetransmitCount() {
+    return mRetransmits.get();
+  }
+
+  /**
+   * Returns the number of requests which failed because no reply arrived after every
+   * retransmission.
+   *
+   * @return the number of requests given up
+   */
+  public long getGiveUpCount() {
+    return mGiveUps.get();
+  }
+
+  private boolean remove(Entry entry) {
+    if (mSlots.compareAndSet(entry.mSn & mMask, entry, null)) {
+      mSize.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /** Writes the frames of requests which are retransmitted. */
+  public interface Retransmitter {
+
+    /**
+     * Writes again the frames of a request. It is called on the timer thread and must not block.
+     *
+     * @param frames the encoded frames of the request
+     */
+    void retransmit(byte[][] frames);
+
+  }
+
+  /** A request waiting for a reply, which retransmits or fails it when it runs as a timeout. */
+  final class Entry implements Runnable {
+
+    final short                           mSn;
+    final short                           mId;
+    final ReplyFuture<ServerGenericReply> mFuture = new ReplyFuture<>();
+    final int                             mMaxRetries;
+
+    // Only touched by the timer thread once registered
+    Packet[] mPackets;
+    byte[][] mFrames;
+    long     mDelay;
+    int      mRetries;
+
+    volatile HashedWheelTimer.Timeout mTimeout;
+
+    // Set when the timeout expired while the table was suspended, guarded by this
+    private boolean mParked;
+    // Set once the first timeout has been scheduled, guarded by this
+    private boolean mArmed;
+
+    Entry(short sn, short id, Packet[] packets, byte[][] frames, long timeout, int maxRetries) {
+      mSn = sn;
+      mId = id;
+      mPackets = frames == null ? packets : null;
+      mFrames = frames;
+      mDelay = timeout;
+      mMaxRetries = maxRetries;
+    }
+
+    /**
+     * Starts the timeout of the request, once its message has been written. Only the first call
+     * has an effect, a message written again after reconnecting keeps its timeout.
+     */
+    void arm() {
+      synchronized (this) {
+        if (mArmed) {
+          return;
+        }
+        mArmed = true;
+      }
+      // The timer runs the timeout one tick later at the earliest, after the entry is published.
+      // A request completed meanwhile is ignored by run()
+      mTimeout = mTimer.newTimeout(this, mDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fails the request, whose message has been dropped before it was written.
+     *
+     * @param cause the cause of the failure
+     */
+    void fail(Throwable cause) {
+      if (remove(this)) {
+        cancelTimeout();
+        mFuture.fail(cause);
+      }
+    }
+
+    void cancelTimeout() {
+      HashedWheelTimer.Timeout timeout = mTimeout;
+      if (timeout != null) {
+        timeout.cancel();
+      }
+    }
+
+    @Override
+    public void run() {
+      if (mSlots.get(mSn & mMask) != this) {
+        return;
+      }
+      if (mFuture.isDone()) {
+        // Cancelled by the caller
+        remove(this);
+        return;
+      }
+      if (mSuspended) {
+        synchronized (this) {
+          mParked = true;
+        }
+        // Resumed meanwhile, the table may have looked at this entry before it was parked
+        if (!mSuspended) {
+          wake();
+        }
+        return;
+      }
+
+      if (mRetries < mMaxRetries) {
+        mRetries++;
+        mDelay *= mRetries + 1;
+        mTimeout = mTimer.newTimeout(this, mDelay, TimeUnit.MILLISECONDS);
+
+        if (mFrames == null) {
+          mFrames = new byte[mPackets.length][];
+          for (int i = 0; i < mPackets.length; i++) {
+            mFrames[i] = mPackets[i].getBytes();
+          }
+          mPackets = null;
+        }
+        if (Log.isLoggable(Log.DEBUG)) {
+          Log.d(TAG, "timeout: Retransmit message " + Integer.toHexString(mId & 0xffff)
+                     + " with serial number " + (mSn & 0xffff) + ", retry " + mRetries + ".");
+        }
+        mRetransmits.incrementAndGet();
+        mRetransmitter.retransmit(mFrames);
+        return;
+      }
+
+      if (remove(this)) {
+        if (mMaxRetries > 0) {
+          mGiveUps.incrementAndGet();
+        }
+        Log.w(TAG, "timeout: No reply to message " + Integer.toHexString(mId & 0xffff)
+                   + " with serial number " + (mSn & 0xffff) + ".");
+        mFuture.fail(new TimeoutException("No reply from the server."));
+      }
+    }
+
+    // Schedules the timeout again if it expired while the table was suspended
+    void wake() {
+      synchronized (this) {
+        if (!mParked) {
+          return;
+        }
+        mParked = false;
+      }
+      mTimeout = mTimer.newTimeout(this, mDelay, TimeUnit.MILLISECONDS);
+    }
+
+  }
+
+}
@@ -0,0 +1,34 @@
+package com.deew.jt808.conn;
+
+/**
+ * Thrown when a message is sent on a full lane of the outbound queue and the connection is
+ * configured with {@link OutboundQueue#OVERFLOW_REJECT}, or when the message is dropped because
+ * its sender cannot wait for space.
+ *
+ */
+public class QueueFullException extends IllegalStateException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int mLane;
+
+  /**
+   * Creates a new exception for the specified lane.
+   *
+   * @param lane the lane which is full
+   */
+  public QueueFullException(int lane) {
+    super("Lane " + lane + " of the outbound queue is full.");
+    mLane = lane;
+  }
+
+  /**
+   * Returns the lane which is full.
+   *
+   * @return the lane, such as {@link OutboundQueue#LANE_BULK}
+   */
+  public int getLane() {
+    return mLane;
+  }
+
+}
@@ -0,0 +1,94 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.util.HashedWheelTimer;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the attempts of a connection to reconnect after it has been lost.
+ * <p>
+ * The delay doubles after every failed attempt, from {@link
+ * ConnectionConfiguration#getReconnectDelay()} up to {@link
+ * ConnectionConfiguration#getMaxReconnectDelay()}, and each attempt waits for a random time
+ * between half of the delay and the delay. Terminals dropped by the same outage of the server thus
+ * spread their attempts instead of reconnecting all at once. The attempts run on the shared {@link
+ * HashedWheelTimer}, no thread waits in between.
+ *
+ */
+class ReconnectionManager implements Runnable {
+
+  private static final String TAG = LogUtils.makeTag(ReconnectionManager.class);
+
+  private final Connection mConnection;
+  private final Random     mRandom = new Random();
+
+  // Guarded by this
+  private int                      mAttempts;
+  private HashedWheelTimer.Timeout mTimeout;
+
+  /**
+   * Creates a new reconnection manager.
+   *
+   * @param conn the connection to reconnect
+   */
+  ReconnectionManager(Connection conn) {
+    mConnection = conn;
+  }
+
+  /**
+   * Returns the delay before the specified attempt, jitter included.
+   *
+   * @param base    the delay before the first attempt
+   * @param max     the maximum delay
+   * @param attempt the number of attempts which failed so far
+   * @param random  the source of the jitter
+   * @return the delay in milliseconds
+   */
+  static long delayOf(long base, long max, int attempt, Random random) {
+    long delay = max;
+    // Past 30 doublings any base is over the max
+    if (attempt < 30 && base < max >> attempt) {
+      delay = base << attempt;
+    }
+    long half = delay / 2;
+    return delay - half + (long) (random.nextDouble() * (half + 1));
+  }
+
+  /** Schedules the next attempt to reconnect, after the delay of the attempts so far. */
+  synchronized void schedule() {
+    ConnectionConfiguration config = mConnection.getConfig();
+    long delay = delayOf(config.getReconnectDelay(), config.getMaxReconnectDelay(), mAttempts,
+                         mRandom);
+    mAttempts++;
+    Log.d(TAG, "schedule: Reconnection attempt " + mAttempts + " in " + delay + " ms.");
+    if (mTimeout != null) {
+      mTimeout.cancel();
+    }
+    mTimeout = HashedWheelTimer.getDefault().newTimeout(this, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /** Cancels the scheduled attempt, if any. */
+  synchronized void cancel() {
+    if (mTimeout != null) {
+      mTimeout.cancel();
+      mTimeout = null;
+    }
+  }
+
+  /** Starts over from the initial delay, once reconnected. */
+  synchronized void reset() {
+    mAttempts = 0;
+  }
+
+  @Override
+  public void run() {
+    synchronized (this) {
+      mTimeout = null;
+    }
+    mConnection.reconnect();
+  }
+
+}
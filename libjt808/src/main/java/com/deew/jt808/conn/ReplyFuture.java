@@ -0,0 +1,213 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending reply of a message sent with {@link Connection#sendAsync}.
+ * <p>
+ * The future either blocks the caller with {@link #get(long, TimeUnit)}, or notifies listeners
+ * registered with {@link #addListener(Listener)} once the reply arrives, the request times out or
+ * the connection is closed. Listeners run on the thread which completes the future, that is the
+ * reader thread or the timer thread, so they should complete quickly.
+ *
+ * @param <T> the type of the reply
+ */
+public class ReplyFuture<T> implements Future<T> {
+
+  private static final String TAG = LogUtils.makeTag(ReplyFuture.class);
+
+  private static final int ST_PENDING   = 0;
+  private static final int ST_DONE      = 1;
+  private static final int ST_FAILED    = 2;
+  private static final int ST_CANCELLED = 3;
+
+  // Guarded by this
+  private int               mState = ST_PENDING;
+  private T                 mReply;
+  private Throwable         mCause;
+  private List<Listener<T>> mListeners;
+
+  ReplyFuture() {
+  }
+
+  /**
+   * Completes the future with the reply.
+   *
+   * @param reply the reply
+   * @return {@code false} if the future has already completed
+   */
+  boolean complete(T reply) {
+    synchronized (this) {
+      if (mState != ST_PENDING) {
+        return false;
+      }
+      mState = ST_DONE;
+      mReply = reply;
+      notifyAll();
+    }
+
+    notifyListeners();
+    return true;
+  }
+
+  /**
+   * Fails the future with the specified cause.
+   *
+   * @param cause the cause of the failure
+   * @return {@code false} if the future has already completed
+   */
+  boolean fail(Throwable cause) {
+    synchronized (this) {
+      if (mState != ST_PENDING) {
+        return false;
+      }
+      mState = cause instanceof CancellationException ? ST_CANCELLED : ST_FAILED;
+      mCause = cause;
+      notifyAll();
+    }
+
+    notifyListeners();
+    return true;
+  }
+
+  /**
+   * Registers a listener which is notified when the future completes. If the future has already
+   * completed, the listener is notified right away on the calling thread.
+   *
+   * @param listener the listener to notify
+   */
+  public void addListener(Listener<T> listener) {
+    if (listener == null) {
+      throw new NullPointerException("Listener is null.");
+    }
+
+    synchronized (this) {
+      if (mState == ST_PENDING) {
+        if (mListeners == null) {
+          mListeners = new ArrayList<>(1);
+        }
+        mListeners.add(listener);
+        return;
+      }
+    }
+
+    notifyListener(listener);
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return fail(new CancellationException("Request cancelled."));
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return mState == ST_CANCELLED;
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return mState != ST_PENDING;
+  }
+
+  @Override
+  public synchronized T get() throws InterruptedException, ExecutionException {
+    while (mState == ST_PENDING) {
+      wait();
+    }
+    return result();
+  }
+
+  @Override
+  public synchronized T get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (mState == ST_PENDING) {
+      long millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (millis <= 0) {
+        throw new TimeoutException("No reply within " + timeout + " " + unit + ".");
+      }
+      wait(millis);
+    }
+    return result();
+  }
+
+  // Must hold the lock
+  private T result() throws ExecutionException {
+    switch (mState) {
+      case ST_DONE:
+        return mReply;
+      case ST_CANCELLED:
+        throw (CancellationException) mCause;
+      default:
+        throw new ExecutionException(mCause);
+    }
+  }
+
+  private void notifyListeners() {
+    List<Listener<T>> listeners;
+    synchronized (this) {
+      listeners = mListeners;
+      mListeners = null;
+    }
+
+    if (listeners != null) {
+      for (Listener<T> listener : listeners) {
+        notifyListener(listener);
+      }
+    }
+  }
+
+  private void notifyListener(Listener<T> listener) {
+    T reply;
+    Throwable cause;
+    synchronized (this) {
+      reply = mReply;
+      cause = mCause;
+    }
+
+    try {
+      if (cause == null) {
+        listener.onReply(reply);
+      } else {
+        listener.onFailure(cause);
+      }
+    } catch (RuntimeException re) {
+      Log.w(TAG, "notifyListener: Listener " + listener + " raised an exception.", re);
+    }
+  }
+
+  /**
+   * Listens for the completion of a {@link ReplyFuture}.
+   *
+   * @param <T> the type of the reply
+   */
+  public interface Listener<T> {
+
+    /**
+     * Called when the reply arrives.
+     *
+     * @param reply the reply
+     */
+    void onReply(T reply);
+
+    /**
+     * Called when the request fails, with a {@link TimeoutException} if no reply arrived in time,
+     * a {@link CancellationException} if it has been cancelled, or an {@link java.io.IOException}
+     * if the connection has been closed.
+     *
+     * @param cause the cause of the failure
+     */
+    void onFailure(Throwable cause);
+
+  }
+
+}
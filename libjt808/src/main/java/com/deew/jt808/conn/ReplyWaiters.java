@@ -0,0 +1,181 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Reply;
+import com.deew.jt808.util.HashedWheelTimer;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Correlates the replies of the server with the requests waiting for them, for the replies other
+ * than the {@link com.deew.jt808.msg.ServerGenericReply} handled by the {@link PendingAckTable}.
+ * <p>
+ * Each request waits for a single reply, identified by the message ID of the reply and the serial
+ * number of the request. The reader thread completes the {@link ReplyFuture} of the request
+ * directly: there is no queue to allocate per request and no collection of collectors to scan, and
+ * no thread blocks unless the caller joins the future. The timeouts run on the shared {@link
+ * HashedWheelTimer}.
+ * <p>
+ * Replies are matched once they have been decoded into a message implementing {@link Reply} by the
+ * {@link com.deew.jt808.msg.DecoderRegistry} of the connection, a reply without a decoder is only
+ * delivered to the listeners and collectors.
+ *
+ */
+public class ReplyWaiters {
+
+  private static final String TAG = LogUtils.makeTag(ReplyWaiters.class);
+
+  // Keyed by the reply ID in the high bits and the serial number of the request in the low bits
+  private final ConcurrentMap<Integer, Waiter> mWaiters = new ConcurrentHashMap<>();
+  private final HashedWheelTimer               mTimer;
+
+  /** Creates a new table whose timeouts run on the shared timer. */
+  public ReplyWaiters() {
+    this(HashedWheelTimer.getDefault());
+  }
+
+  /**
+   * Creates a new table.
+   *
+   * @param timer the timer the timeouts run on
+   */
+  public ReplyWaiters(HashedWheelTimer timer) {
+    if (timer == null) {
+      throw new NullPointerException("Timer is null.");
+    }
+    mTimer = timer;
+  }
+
+  private static int key(short replyId, short reqSn) {
+    return (replyId & 0xffff) << 16 | (reqSn & 0xffff);
+  }
+
+  /**
+   * Registers a request waiting for a reply. A request still waiting for the same reply fails.
+   * <p>
+   * The future is completed with the message decoded for the reply ID, which must be of type
+   * {@code T}. A request cancelled through its future is dropped on its timeout, or when the
+   * connection is closed.
+   *
+   * @param replyId the message ID of the reply
+   * @param reqSn   the serial number of the request, of its last packet for a long message
+   * @param timeout the time to wait for the reply, in milliseconds, or 0 to wait until the
+   *                connection is closed
+   * @param <T>     the type of the reply
+   * @return the future completed by the reply
+   */
+  public <T extends Message> ReplyFuture<T> expect(short replyId, short reqSn, long timeout) {
+    ReplyFuture<T> future = new ReplyFuture<>();
+    @SuppressWarnings("unchecked")
+    ReplyFuture<Message> untyped = (ReplyFuture<Message>) (ReplyFuture<?>) future;
+    Waiter waiter = new Waiter(key(replyId, reqSn), untyped);
+    if (timeout > 0) {
+      // The timer runs the timeout one tick later at the earliest, after the waiter is published
+      waiter.mTimeout = mTimer.newTimeout(waiter, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    Waiter old = mWaiters.put(waiter.mKey, waiter);
+    if (old != null) {
+      old.cancelTimeout();
+      old.mFuture.fail(new TimeoutException("Reply " + Integer.toHexString(replyId & 0xffff)
+                                            + " to serial number " + (reqSn & 0xffff)
+                                            + " awaited again."));
+    }
+    return future;
+  }
+
+  /**
+   * Completes the request the specified message answers, if any.
+   *
+   * @param msg a decoded message of the server
+   * @return {@code true} if a waiting request matches the message
+   */
+  public boolean complete(Message msg) {
+    if (!(msg instanceof Reply) || mWaiters.isEmpty()) {
+      return false;
+    }
+
+    Waiter waiter = mWaiters.remove(key(msg.getId(), ((Reply) msg).getReqSn()));
+    if (waiter == null) {
+      return false;
+    }
+    waiter.cancelTimeout();
+    waiter.mFuture.complete(msg);
+    return true;
+  }
+
+  /**
+   * Fails the request waiting for the specified reply, if any.
+   *
+   * @param replyId the message ID of the reply
+   * @param reqSn   the serial number of the request
+   * @param cause   the cause of the failure
+   */
+  void fail(short replyId, short reqSn, Throwable cause) {
+    Waiter waiter = mWaiters.remove(key(replyId, reqSn));
+    if (waiter != null) {
+      waiter.cancelTimeout();
+      waiter.mFuture.fail(cause);
+    }
+  }
+
+  /**
+   * Fails every waiting request with the specified cause.
+   *
+   * @param cause the cause of the failure
+   */
+  public void failAll(Throwable cause) {
+    for (Waiter waiter : mWaiters.values()) {
+      if (mWaiters.remove(waiter.mKey, waiter)) {
+        waiter.cancelTimeout();
+        waiter.mFuture.fail(cause);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of requests waiting for a reply.
+   *
+   * @return the number of waiting requests
+   */
+  public int size() {
+    return mWaiters.size();
+  }
+
+  /** A request waiting for a reply, which fails it when it runs as a timeout. */
+  private final class Waiter implements Runnable {
+
+    final int                  mKey;
+    final ReplyFuture<Message> mFuture;
+
+    volatile HashedWheelTimer.Timeout mTimeout;
+
+    Waiter(int key, ReplyFuture<Message> future) {
+      mKey = key;
+      mFuture = future;
+    }
+
+    void cancelTimeout() {
+      HashedWheelTimer.Timeout timeout = mTimeout;
+      if (timeout != null) {
+        timeout.cancel();
+      }
+    }
+
+    @Override
+    public void run() {
+      if (mWaiters.remove(mKey, this)) {
+        Log.w(TAG, "timeout: No reply " + Integer.toHexString(mKey >>> 16) + " to serial number "
+                   + (mKey & 0xffff) + ".");
+        mFuture.fail(new TimeoutException("No reply from the server."));
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,287 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single thread which drives the non-blocking sockets of any number of connections.
+ * <p>
+ * A connection whose configuration has a selector loop ({@link
+ * ConnectionConfiguration#setSelectorLoop(SelectorLoop)}) runs no thread of its own: connecting,
+ * reading and writing are all driven by the readiness events of the loop, and incoming messages are
+ * delivered to listeners on the loop thread. Listeners must therefore never block, or they stall
+ * every connection of the loop.
+ * <p>
+ * The loop reads into a single direct buffer, which is shared by its connections since only the
+ * loop thread touches it.
+ * <p>
+ * A loop is also a {@link CallbackExecutor}, a loop without any connection is a dedicated thread
+ * running the state callbacks of connections.
+ *
+ */
+public class SelectorLoop implements CallbackExecutor {
+
+  private static final String TAG = LogUtils.makeTag(SelectorLoop.class);
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private static SelectorLoop sDefault;
+
+  private final String   mName;
+  private final Selector mSelector;
+  // Shared by the connections of the loop, only touched by the loop thread
+  private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+  private final Queue<Runnable> mTasks   = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean   mWakeUp  = new AtomicBoolean();
+  private final AtomicBoolean   mStarted = new AtomicBoolean();
+  private volatile boolean      mStopped;
+  private volatile Thread       mThread;
+
+  // Only written by the loop thread
+  private volatile long mBytesRead;
+  private volatile long mBytesWritten;
+
+  /**
+   * Returns the loop shared by the connections which are configured with it. It is created on first
+   * use, its thread is a daemon thread.
+   *
+   * @return the shared loop
+   */
+  public static synchronized SelectorLoop getDefault() {
+    if (sDefault == null) {
+      sDefault = new SelectorLoop("JT808 Selector");
+    }
+    return sDefault;
+  }
+
+  /**
+   * Creates a new loop. Its thread is started when the first connection is registered.
+   *
+   * @param name the name of the loop thread
+   * @throws IllegalStateException if the selector cannot be opened
+   */
+  public SelectorLoop(String name) {
+    mName = name;
+    try {
+      mSelector = Selector.open();
+    } catch (IOException ioe) {
+      throw new IllegalStateException("Failed to open selector.", ioe);
+    }
+  }
+
+  /**
+   * Runs the specified task on the loop thread.
+   *
+   * @param task the task to run
+   * @throws IllegalStateException if the loop has been shut down
+   */
+  @Override
+  public void execute(Runnable task) {
+    if (mStopped) {
+      throw new IllegalStateException("Selector loop has been shut down.");
+    }
+
+    mTasks.add(task);
+    start();
+    if (!inLoop() && mWakeUp.compareAndSet(false, true)) {
+      mSelector.wakeup();
+    }
+  }
+
+  /**
+   * Returns if the calling thread is the loop thread.
+   *
+   * @return {@code true} if called on the loop thread
+   */
+  public boolean inLoop() {
+    return Thread.currentThread() == mThread;
+  }
+
+  /**
+   * Returns the number of bytes read from the sockets of the loop so far.
+   *
+   * @return the number of bytes read
+   */
+  public long getBytesRead() {
+    return mBytesRead;
+  }
+
+  /**
+   * Returns the number of bytes written to the sockets of the loop so far.
+   *
+   * @return the number of bytes written
+   */
+  public long getBytesWritten() {
+    return mBytesWritten;
+  }
+
+  /**
+   * Shuts the loop down and closes the channels registered with it. The shared loop should never
+   * be shut down.
+   */
+  public void shutdown() {
+    mStopped = true;
+    mSelector.wakeup();
+  }
+
+  /**
+   * Registers a channel with the selector. Must be called on the loop thread.
+   *
+   * @param channel the channel to register
+   * @param ops     the interest set
+   * @param handler the handler of the readiness events
+   * @return the selection key
+   * @throws ClosedChannelException if the channel is closed
+   */
+  SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+      throws ClosedChannelException {
+    return channel.register(mSelector, ops, handler);
+  }
+
+  /**
+   * Returns the buffer channels are read into. Must be used on the loop thread only.
+   *
+   * @return the cleared read buffer
+   */
+  ByteBuffer readBuffer() {
+    mReadBuffer.clear();
+    return mReadBuffer;
+  }
+
+  // Must be called on the loop thread
+  void recordRead(int bytes) {
+    mBytesRead += bytes;
+  }
+
+  // Must be called on the loop thread
+  void recordWritten(int bytes) {
+    mBytesWritten += bytes;
+  }
+
+  private void start() {
+    if (mStarted.compareAndSet(false, true)) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          loop();
+        }
+      }, mName);
+      thread.setDaemon(true);
+      mThread = thread;
+      thread.start();
+    }
+  }
+
+  private void loop() {
+    while (!mStopped) {
+      try {
+        mSelector.select();
+      } catch (IOException ioe) {
+        Log.e(TAG, "loop: Select failed.", ioe);
+        break;
+      }
+      mWakeUp.set(false);
+
+      Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+      while (it.hasNext()) {
+        SelectionKey key = it.next();
+        it.remove();
+        dispatch(key);
+      }
+
+      runTasks();
+    }
+
+    // Run the tasks queued before shutting down, such as closing channels
+    runTasks();
+    for (SelectionKey key : mSelector.keys()) {
+      close(key, (Handler) key.attachment(), new IOException("Selector loop shut down."));
+      try {
+        key.channel().close();
+      } catch (IOException ioe) {
+        // Ignore
+      }
+    }
+    try {
+      mSelector.close();
+    } catch (IOException ioe) {
+      // Ignore
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = mTasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException re) {
+        Log.w(TAG, "runTasks: Task " + task + " raised an exception.", re);
+      }
+    }
+  }
+
+  private void dispatch(SelectionKey key) {
+    Handler handler = (Handler) key.attachment();
+    try {
+      int ready = key.readyOps();
+      if ((ready & SelectionKey.OP_CONNECT) != 0) {
+        handler.onConnectable();
+      }
+      if ((ready & SelectionKey.OP_READ) != 0) {
+        handler.onReadable();
+      }
+      if (key.isValid() && (ready & SelectionKey.OP_WRITE) != 0) {
+        handler.onWritable();
+      }
+    } catch (CancelledKeyException cke) {
+      // Closed while handling the events
+    } catch (IOException ioe) {
+      close(key, handler, ioe);
+    } catch (RuntimeException re) {
+      // Raised by a listener run inline, only the connection of the key is closed
+      Log.e(TAG, "dispatch: Handler " + handler + " raised an exception.", re);
+      close(key, handler, new IOException("Handler raised an exception.", re));
+    }
+  }
+
+  private void close(SelectionKey key, Handler handler, IOException cause) {
+    key.cancel();
+    try {
+      handler.onClosed(cause);
+    } catch (RuntimeException re) {
+      Log.e(TAG, "close: Handler " + handler + " raised an exception.", re);
+    }
+  }
+
+  /** Handles the readiness events of a channel, always called on the loop thread. */
+  interface Handler {
+
+    void onConnectable() throws IOException;
+
+    void onReadable() throws IOException;
+
+    void onWritable() throws IOException;
+
+    /**
+     * Called when an I/O error occurs or the loop is shut down.
+     *
+     * @param cause the cause
+     */
+    void onClosed(IOException cause);
+
+  }
+
+}
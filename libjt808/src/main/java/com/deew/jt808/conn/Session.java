@@ -0,0 +1,140 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.ServerGenericReply;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.Arrays;
+
+/**
+ * A terminal of a {@link SessionHost}, with its own connection to the server.
+ * <p>
+ * Every session has its own serial numbers, pending requests and keep alive, its socket is driven
+ * by one of the selector loops of the host. Once connected, the session authenticates with its
+ * authentication code before other messages are sent. A session that fails to authenticate is
+ * closed and removed from its host.
+ *
+ */
+public class Session {
+
+  private static final String TAG = LogUtils.makeTag(Session.class);
+
+  private final SessionHost mHost;
+  private final byte[]      mPhone;
+  private final String      mAuthCode;
+  private final Connection  mConnection;
+
+  private volatile boolean mAuthenticated;
+  private volatile boolean mClosed;
+
+  private final ConnectionStateCallback mStateCallback = new ConnectionStateCallback() {
+    @Override
+    public void onSuccess() {
+      authenticate();
+    }
+
+    @Override
+    public void onFail() {
+      Log.w(TAG, "onFail: Session " + Arrays.toString(mPhone) + " failed to connect.");
+    }
+  };
+
+  private final ReplyFuture.Listener<ServerGenericReply> mAuthListener =
+      new ReplyFuture.Listener<ServerGenericReply>() {
+        @Override
+        public void onReply(ServerGenericReply reply) {
+          if (reply.getResult() == ServerGenericReply.RESULT_OK) {
+            mAuthenticated = true;
+          } else {
+            Log.w(TAG, "onReply: Session " + Arrays.toString(mPhone) + " failed to authenticate, "
+                       + reply);
+            close();
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+          Log.w(TAG, "onFailure: Session " + Arrays.toString(mPhone)
+                     + " failed to authenticate.", cause);
+          // An unauthenticated session can send nothing, free the terminal for a new one
+          close();
+        }
+      };
+
+  Session(SessionHost host, byte[] phone, String authCode, ConnectionConfiguration config,
+          int ackCapacity) {
+    mHost = host;
+    mPhone = phone;
+    mAuthCode = authCode;
+    mConnection = new Connection(ackCapacity);
+    mConnection.setConfig(config);
+    mConnection.setDirectStateCallback(mStateCallback);
+  }
+
+  /**
+   * Returns the phone number of the terminal.
+   *
+   * @return the phone number in BCD
+   */
+  public byte[] getPhone() {
+    return mPhone.clone();
+  }
+
+  /**
+   * Returns the connection of the session, whose listeners are notified on the selector loop.
+   *
+   * @return the connection
+   */
+  public Connection getConnection() {
+    return mConnection;
+  }
+
+  /**
+   * Returns if the session is connected and authenticated.
+   *
+   * @return {@code true} if messages may be sent
+   */
+  public boolean isAuthenticated() {
+    return mAuthenticated && mConnection.isConnected();
+  }
+
+  /**
+   * Sends a message on behalf of the terminal of the session.
+   *
+   * @param msg the message to send
+   * @return the future of the reply
+   * @throws IllegalStateException if the session is not authenticated
+   * @see Connection#sendAsync(Message)
+   */
+  public ReplyFuture<ServerGenericReply> send(Message msg) {
+    if (!isAuthenticated()) {
+      throw new IllegalStateException("Session not authenticated.");
+    }
+    return mConnection.sendAsync(msg);
+  }
+
+  /** Closes the connection of the session and removes it from its host. */
+  public void close() {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    mAuthenticated = false;
+    mHost.remove(this);
+    mConnection.shutDown();
+  }
+
+  void connect() {
+    mAuthenticated = false;
+    mConnection.connect();
+  }
+
+  // Called on the selector loop once connected
+  private void authenticate() {
+    mAuthenticated = false;
+    // Joins the authentication sent again by the connection itself after reconnecting
+    mConnection.authenticate(mAuthCode).addListener(mAuthListener);
+  }
+
+}
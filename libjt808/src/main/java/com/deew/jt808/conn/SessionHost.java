@@ -0,0 +1,294 @@
+package com.deew.jt808.conn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the sessions of many terminals in one process, over a small fixed pool of I/O threads.
+ * <p>
+ * Every session is a {@link Connection} of its own, with its own serial numbers, pending requests
+ * and keep alive, but no thread: the sessions are spread over the {@link SelectorLoop}s of the host
+ * in turn, and the timeouts of all of them run on the shared {@link
+ * com.deew.jt808.util.HashedWheelTimer}. The host reports the aggregate state of its sessions with
+ * {@link #getMetrics()}.
+ * <p>
+ * A simple usage of this API might looks like the following:
+ * <p>
+ * <pre>
+ *   ConnectionConfiguration cfg = new ConnectionConfiguration("10.1.5.21", 29930);
+ *   SessionHost host = new SessionHost(cfg, 4);
+ *   Session session = host.open(phone, "auth code");
+ *   // Once authenticated
+ *   session.send(msg);
+ *   // Close every session and stop the I/O threads
+ *   host.shutdown();
+ * </pre>
+ *
+ */
+public class SessionHost {
+
+  /** The default number of requests each session may have in flight. */
+  public static final int DEFAULT_ACK_CAPACITY = 256;
+
+  private final ConnectionConfiguration mTemplate;
+  private final SelectorLoop[]          mLoops;
+  private final int                     mAckCapacity;
+  private final AtomicInteger           mNextLoop = new AtomicInteger();
+  private final ConcurrentMap<Long, Session> mSessions = new ConcurrentHashMap<>();
+
+  private volatile boolean mShutdown;
+
+  /**
+   * Creates a new host with an I/O thread per processor.
+   *
+   * @param config the configuration every session is created with
+   */
+  public SessionHost(ConnectionConfiguration config) {
+    this(config, Runtime.getRuntime().availableProcessors(), DEFAULT_ACK_CAPACITY);
+  }
+
+  /**
+   * Creates a new host.
+   *
+   * @param config    the configuration every session is created with
+   * @param ioThreads the number of selector loops
+   */
+  public SessionHost(ConnectionConfiguration config, int ioThreads) {
+    this(config, ioThreads, DEFAULT_ACK_CAPACITY);
+  }
+
+  /**
+   * Creates a new host.
+   *
+   * @param config      the configuration every session is created with, its selector loop and
+   *                    phone number are ignored
+   * @param ioThreads   the number of selector loops
+   * @param ackCapacity the number of requests each session may have in flight, a power of two
+   */
+  public SessionHost(ConnectionConfiguration config, int ioThreads, int ackCapacity) {
+    if (config == null) {
+      throw new NullPointerException("Configuration is null.");
+    }
+    if (ioThreads <= 0) {
+      throw new IllegalArgumentException("Number of I/O threads must be positive.");
+    }
+    if (ackCapacity <= 0 || ackCapacity > PendingAckTable.DEFAULT_CAPACITY
+        || (ackCapacity & (ackCapacity - 1)) != 0) {
+      throw new IllegalArgumentException("Capacity must be a power of two up to 65536.");
+    }
+
+    mTemplate = new ConnectionConfiguration(config);
+    mAckCapacity = ackCapacity;
+    mLoops = new SelectorLoop[ioThreads];
+    for (int i = 0; i < ioThreads; i++) {
+      mLoops[i] = new SelectorLoop("JT808 Session Host " + (i + 1));
+    }
+  }
+
+  /**
+   * Opens a session for the specified terminal and starts connecting it. The session authenticates
+   * once connected.
+   *
+   * @param phone    the phone number of the terminal, in BCD
+   * @param authCode the authentication code of the terminal
+   * @return the new session
+   * @throws IllegalStateException if the terminal already has a session or the host is shut down
+   */
+  public Session open(byte[] phone, String authCode) {
+    if (mShutdown) {
+      throw new IllegalStateException("Session host has been shut down.");
+    }
+    if (authCode == null) {
+      throw new NullPointerException("Authentication code is null.");
+    }
+
+    Long key = key(phone);
+    ConnectionConfiguration config = new ConnectionConfiguration(mTemplate);
+    config.setPhone(phone.clone());
+    config.setSelectorLoop(
+        mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length]);
+
+    Session session = new Session(this, config.getPhone(), authCode, config, mAckCapacity);
+    if (mSessions.putIfAbsent(key, session) != null) {
+      throw new IllegalStateException("Terminal already has a session.");
+    }
+    session.connect();
+    return session;
+  }
+
+  /**
+   * Returns the session of the specified terminal.
+   *
+   * @param phone the phone number of the terminal, in BCD
+   * @return the session, or {@code null} if the terminal has none
+   */
+  public Session getSession(byte[] phone) {
+    return mSessions.get(key(phone));
+  }
+
+  /**
+   * Returns the open sessions.
+   *
+   * @return an unmodifiable snapshot of the sessions
+   */
+  public Collection<Session> getSessions() {
+    return Collections.unmodifiableCollection(new ArrayList<>(mSessions.values()));
+  }
+
+  /**
+   * Returns the number of I/O threads of the host.
+   *
+   * @return the number of selector loops
+   */
+  public int getIoThreadCount() {
+    return mLoops.length;
+  }
+
+  /**
+   * Collects the aggregate state of the sessions and the I/O threads. It walks every session, so it
+   * is meant to be polled on an interval rather than on every message.
+   *
+   * @return a snapshot of the metrics
+   */
+  public Metrics getMetrics() {
+    Metrics metrics = new Metrics();
+    for (Session session : mSessions.values()) {
+      Connection conn = session.getConnection();
+      PendingAckTable acks = conn.getPendingAcks();
+      metrics.mSessions++;
+      if (conn.isConnected()) {
+        metrics.mConnected++;
+      }
+      if (session.isAuthenticated()) {
+        metrics.mAuthenticated++;
+      }
+      metrics.mPendingAcks += acks.size();
+      metrics.mRetransmits += acks.getRetransmitCount();
+      metrics.mGiveUps += acks.getGiveUpCount();
+    }
+    for (SelectorLoop loop : mLoops) {
+      metrics.mBytesRead += loop.getBytesRead();
+      metrics.mBytesWritten += loop.getBytesWritten();
+    }
+    return metrics;
+  }
+
+  /** Closes every session and shuts the I/O threads down. */
+  public void shutdown() {
+    mShutdown = true;
+    for (Session session : mSessions.values()) {
+      session.close();
+    }
+    for (SelectorLoop loop : mLoops) {
+      loop.shutdown();
+    }
+  }
+
+  void remove(Session session) {
+    mSessions.remove(key(session.getPhone()), session);
+  }
+
+  // The 12 BCD digits of a phone number fit in a long
+  private static long key(byte[] phone) {
+    if (phone == null || phone.length != 6) {
+      throw new IllegalArgumentException("Phone number must be 6 bytes.");
+    }
+    long key = 0;
+    for (byte b : phone) {
+      key = key << 8 | (b & 0xff);
+    }
+    return key;
+  }
+
+  /** A snapshot of the aggregate state of the sessions of a host. */
+  public static final class Metrics {
+
+    private int  mSessions;
+    private int  mConnected;
+    private int  mAuthenticated;
+    private int  mPendingAcks;
+    private long mRetransmits;
+    private long mGiveUps;
+    private long mBytesRead;
+    private long mBytesWritten;
+
+    Metrics() {
+    }
+
+    public int getSessionCount() {
+      return mSessions;
+    }
+
+    public int getConnectedCount() {
+      return mConnected;
+    }
+
+    public int getAuthenticatedCount() {
+      return mAuthenticated;
+    }
+
+    /**
+     * Returns the number of requests of every session waiting for a reply.
+     *
+     * @return the number of pending requests
+     */
+    public int getPendingAckCount() {
+      return mPendingAcks;
+    }
+
+    /**
+     * Returns the number of retransmissions of the open sessions so far.
+     *
+     * @return the number of retransmissions
+     */
+    public long getRetransmitCount() {
+      return mRetransmits;
+    }
+
+    /**
+     * Returns the number of requests of the open sessions given up without a reply.
+     *
+     * @return the number of requests given up
+     */
+    public long getGiveUpCount() {
+      return mGiveUps;
+    }
+
+    /**
+     * Returns the number of bytes read by the I/O threads since the host was created.
+     *
+     * @return the number of bytes read
+     */
+    public long getBytesRead() {
+      return mBytesRead;
+    }
+
+    /**
+     * Returns the number of bytes written by the I/O threads since the host was created.
+     *
+     * @return the number of bytes written
+     */
+    public long getBytesWritten() {
+      return mBytesWritten;
+    }
+
+    @Override
+    public String toString() {
+      return new StringBuilder("{ sessions=").append(mSessions)
+          .append(", connected=").append(mConnected)
+          .append(", authenticated=").append(mAuthenticated)
+          .append(", pendingAcks=").append(mPendingAcks)
+          .append(", retransmits=").append(mRetransmits)
+          .append(", giveUps=").append(mGiveUps)
+          .append(", bytesRead=").append(mBytesRead)
+          .append(", bytesWritten=").append(mBytesWritten)
+          .append(" }").toString();
+    }
+
+  }
+
+}
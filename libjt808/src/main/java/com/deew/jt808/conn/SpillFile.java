@@ -0,0 +1,210 @@
+package com.deew.jt808.conn;
+
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+import com.deew.jt808.util.MpscRingBuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * The messages of the bulk lane kept on disk while the lane is full, with {@link
+ * OutboundQueue#OVERFLOW_SPILL_TO_DISK}.
+ * <p>
+ * Once a message has been spilled, every message of the lane goes to the file until it has been
+ * replayed, so the backlog keeps its order. The writer moves the messages back into the lane as it
+ * drains, and truncates the file once it is empty. Each message is a record holding the fields of
+ * its packets, which keep their serial numbers, and is encoded again when it is replayed. The
+ * requests waiting for the replies of the messages stay in memory, and are attached again to the
+ * replayed messages so their timeouts start once written.
+ *
+ */
+class SpillFile {
+
+  private static final String TAG = LogUtils.makeTag(SpillFile.class);
+
+  // Set in the header of a record whose message has a request waiting for its reply
+  private static final byte FLAG_ACK = 1;
+
+  // Message id, flags, cipher, phone, serial number, total, index and payload length
+  private static final int PACKET_HEADER_LENGTH = 2 + 1 + 1 + 6 + 2 + 2 + 2 + 4;
+
+  private final File                         mDir;
+  // The requests of the records which have one, in the order of the records
+  private final Queue<PendingAckTable.Entry> mAcks = new ArrayDeque<>();
+
+  private File             mPath;
+  private RandomAccessFile mFile;
+  // Offsets of the next record to replay and of the end of the file
+  private long mReadPos;
+  private long mWritePos;
+  private int  mCount;
+
+  // Set while the file holds messages, producers then append to it instead of offering to the lane
+  private volatile boolean mActive;
+
+  /**
+   * Creates a new spill file, the file itself is created on the first message.
+   *
+   * @param dir the directory of the file, or {@code null} for the temporary directory
+   */
+  SpillFile(File dir) {
+    mDir = dir;
+  }
+
+  /**
+   * Returns if the file holds messages not replayed yet.
+   *
+   * @return {@code true} if the messages of the lane must be appended to the file
+   */
+  boolean isActive() {
+    return mActive;
+  }
+
+  /**
+   * Returns the number of messages in the file.
+   *
+   * @return the number of messages not replayed yet
+   */
+  synchronized int size() {
+    return mCount;
+  }
+
+  /**
+   * Appends a message to the file.
+   *
+   * @param msg the message
+   * @throws IOException if the file cannot be written
+   */
+  synchronized void append(EncodedMessage msg) throws IOException {
+    Packet[] packets = msg.mPackets;
+    int length = 1 + 4;
+    for (Packet packet : packets) {
+      length += PACKET_HEADER_LENGTH + packet.getPayload().length;
+    }
+
+    ByteBuffer record = ByteBuffer.allocate(4 + length);
+    record.putInt(length);
+    record.put(msg.mAck != null ? FLAG_ACK : 0);
+    record.putInt(packets.length);
+    for (Packet packet : packets) {
+      byte[] payload = packet.getPayload();
+      record.putShort(packet.getMsgId())
+            .put((byte) (packet.isLongMsg() ? 1 : 0))
+            .put(packet.getCipher())
+            .put(packet.getPhone())
+            .putShort(packet.getSn())
+            .putShort(packet.getTotal())
+            .putShort(packet.getIndex())
+            .putInt(payload.length)
+            .put(payload);
+    }
+
+    if (mFile == null) {
+      mPath = File.createTempFile("jt808-spill", ".bin", mDir);
+      mFile = new RandomAccessFile(mPath, "rw");
+    }
+    mFile.seek(mWritePos);
+    mFile.write(record.array());
+    mWritePos += record.capacity();
+    if (msg.mAck != null) {
+      mAcks.add(msg.mAck);
+    }
+    mCount++;
+    mActive = true;
+  }
+
+  /**
+   * Moves messages from the file into the lane, in order, until the lane is full or the file is
+   * empty. Must be called by the consumer of the lane.
+   *
+   * @param lane the lane the messages have been spilled from
+   * @return the number of messages moved
+   * @throws IOException if the file cannot be read
+   */
+  synchronized int drainTo(MpscRingBuffer<EncodedMessage> lane) throws IOException {
+    int moved = 0;
+    while (mCount > 0) {
+      mFile.seek(mReadPos);
+      int length = mFile.readInt();
+      byte[] bytes = new byte[length];
+      mFile.readFully(bytes);
+      ByteBuffer record = ByteBuffer.wrap(bytes);
+      boolean hasAck = record.get() == FLAG_ACK;
+      if (!lane.offer(new EncodedMessage(readPackets(record), hasAck ? mAcks.peek() : null))) {
+        break;
+      }
+      if (hasAck) {
+        mAcks.poll();
+      }
+      mReadPos += 4 + length;
+      mCount--;
+      moved++;
+    }
+
+    if (mCount == 0) {
+      mReadPos = 0;
+      mWritePos = 0;
+      mFile.setLength(0);
+      mActive = false;
+    }
+    return moved;
+  }
+
+  private static Packet[] readPackets(ByteBuffer record) {
+    Packet[] packets = new Packet[record.getInt()];
+    for (int i = 0; i < packets.length; i++) {
+      short id = record.getShort();
+      boolean isLong = record.get() != 0;
+      byte cipher = record.get();
+      byte[] phone = new byte[6];
+      record.get(phone);
+      short sn = record.getShort();
+      short total = record.getShort();
+      short index = record.getShort();
+      byte[] payload = new byte[record.getInt()];
+      record.get(payload);
+      packets[i] = new Packet(id, isLong, cipher, phone, sn, total, index, payload);
+    }
+    return packets;
+  }
+
+  /**
+   * Fails the requests waiting for the replies of the messages in the file, which are dropped.
+   *
+   * @param cause the cause of the failure
+   */
+  synchronized void failAll(Throwable cause) {
+    PendingAckTable.Entry ack;
+    while ((ack = mAcks.poll()) != null) {
+      ack.fail(cause);
+    }
+  }
+
+  /** Drops every message and deletes the file. */
+  synchronized void clear() {
+    mAcks.clear();
+    mActive = false;
+    mCount = 0;
+    mReadPos = 0;
+    mWritePos = 0;
+    if (mFile != null) {
+      try {
+        mFile.close();
+      } catch (IOException ioe) {
+        Log.w(TAG, "clear: " + ioe.getMessage());
+      }
+      if (!mPath.delete()) {
+        Log.w(TAG, "clear: Cannot delete " + mPath);
+      }
+      mFile = null;
+      mPath = null;
+    }
+  }
+
+}
@@ -0,0 +1,22 @@
+package com.deew.jt808.conn;
+
+/**
+ * Provides a mechanism for producers to learn when they may send again. A lane of the outbound
+ * queue becomes unwritable once a message finds it full, the {@link #onWritable(int)} method is
+ * called when the writer has drained it below its low water mark, half of its capacity.
+ *
+ */
+public interface WritabilityListener {
+
+  /**
+   * Called when a lane of the outbound queue which has been full can take messages again.
+   * <p>
+   * It is invoked on the thread writing the messages, the write thread or the selector loop, so
+   * implementation of this method must not block. Sending with {@link
+   * Connection#trySend(com.deew.jt808.msg.Message)} is fine.
+   *
+   * @param lane the lane, such as {@link OutboundQueue#LANE_REALTIME}
+   */
+  void onWritable(int lane);
+
+}
@@ -0,0 +1,115 @@
+package com.deew.jt808.conn;
+
+/**
+ * Counts the batches written to the socket of a connection.
+ * <p>
+ * The writer drains every frame queued, up to a byte budget, into a single buffer and flushes it at
+ * once. A batch is one such flush, its latency the time from taking its first frame off the queue
+ * until the socket accepted it. Only the writing thread updates the counters, any thread may read
+ * them.
+ *
+ */
+public class WriteStats {
+
+  // Only written by the thread which writes to the socket
+  private volatile long mBatches;
+  private volatile long mFrames;
+  private volatile long mBytes;
+  private volatile int  mMaxBatchFrames;
+  private volatile long mLatencyNanos;
+  private volatile long mMaxLatencyNanos;
+
+  WriteStats() {
+  }
+
+  /**
+   * Returns the number of batches written, that is the number of flushes.
+   *
+   * @return the number of batches
+   */
+  public long getBatchCount() {
+    return mBatches;
+  }
+
+  /**
+   * Returns the number of frames written.
+   *
+   * @return the number of frames
+   */
+  public long getFrameCount() {
+    return mFrames;
+  }
+
+  /**
+   * Returns the number of bytes written.
+   *
+   * @return the number of bytes
+   */
+  public long getByteCount() {
+    return mBytes;
+  }
+
+  /**
+   * Returns the average number of frames of a batch.
+   *
+   * @return the average batch size, 0 if nothing has been written
+   */
+  public double getAverageBatchFrames() {
+    long batches = mBatches;
+    return batches == 0 ? 0 : (double) mFrames / batches;
+  }
+
+  /**
+   * Returns the largest number of frames written in a single batch.
+   *
+   * @return the maximum batch size
+   */
+  public int getMaxBatchFrames() {
+    return mMaxBatchFrames;
+  }
+
+  /**
+   * Returns the average latency of a batch.
+   *
+   * @return the average latency in nanoseconds, 0 if nothing has been written
+   */
+  public long getAverageLatencyNanos() {
+    long batches = mBatches;
+    return batches == 0 ? 0 : mLatencyNanos / batches;
+  }
+
+  /**
+   * Returns the largest latency of a batch.
+   *
+   * @return the maximum latency in nanoseconds
+   */
+  public long getMaxLatencyNanos() {
+    return mMaxLatencyNanos;
+  }
+
+  // Must be called by the writing thread only
+  void record(int frames, int bytes, long latencyNanos) {
+    mBatches++;
+    mFrames += frames;
+    mBytes += bytes;
+    mLatencyNanos += latencyNanos;
+    if (frames > mMaxBatchFrames) {
+      mMaxBatchFrames = frames;
+    }
+    if (latencyNanos > mMaxLatencyNanos) {
+      mMaxLatencyNanos = latencyNanos;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("{ batches=").append(mBatches)
+        .append(", frames=").append(mFrames)
+        .append(", bytes=").append(mBytes)
+        .append(", maxBatchFrames=").append(mMaxBatchFrames)
+        .append(", avgLatencyNanos=").append(getAverageLatencyNanos())
+        .append(", maxLatencyNanos=").append(mMaxLatencyNanos)
+        .append(" }").toString();
+  }
+
+}
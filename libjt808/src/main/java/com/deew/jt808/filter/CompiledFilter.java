@@ -0,0 +1,123 @@
+package com.deew.jt808.filter;
+
+import com.deew.jt808.msg.Message;
+
+/**
+ * A message filter flattened by {@link FilterCompiler}. A message passes if its ID is in a set of
+ * accepted IDs, or else if any residual predicate whose ID mask holds the ID accepts it. The sets
+ * are 65536-bit bitsets, so a message rejected or accepted by its ID alone costs a single word
+ * test.
+ * <p>
+ * A compiled filter is immutable and may be shared by any number of threads. It keeps the
+ * residual predicates, which must be safe to share as well.
+ *
+ */
+public final class CompiledFilter implements MessageFilter {
+
+  /** The number of words of a bitset holding every message ID. */
+  static final int WORDS = 0x10000 / 64;
+
+  private final long[]          mAccepted;
+  private final long[][]        mMasks;
+  private final MessageFilter[] mResiduals;
+
+  /**
+   * Creates a compiled filter. The arrays are not copied, they must not be modified afterwards.
+   *
+   * @param accepted  the IDs accepted without testing any predicate
+   * @param masks     the IDs each residual predicate is tested for
+   * @param residuals the residual predicates
+   */
+  CompiledFilter(long[] accepted, long[][] masks, MessageFilter[] residuals) {
+    mAccepted = accepted;
+    mMasks = masks;
+    mResiduals = residuals;
+  }
+
+  /**
+   * Tests whether or not a bit is set.
+   *
+   * @param bits the bitset
+   * @param id   the message ID, unsigned
+   * @return true if the bit of <tt>id</tt> is set
+   */
+  static boolean contains(long[] bits, int id) {
+    return (bits[id >>> 6] & (1L << id)) != 0;
+  }
+
+  @Override
+  public boolean accept(Message msg) {
+    int id = msg.getId() & 0xffff;
+    if (contains(mAccepted, id)) {
+      return true;
+    }
+    for (int i = 0; i < mResiduals.length; i++) {
+      if (contains(mMasks[i], id) && mResiduals[i].accept(msg)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Tests whether or not a message ID passes the filter without any residual predicate. This
+   * allows routing packets before they are turned into messages.
+   *
+   * @param id the message ID to test
+   * @return true if <tt>id</tt> passes the filter whatever the rest of the message
+   */
+  public boolean accept(short id) {
+    return contains(mAccepted, id & 0xffff);
+  }
+
+  /**
+   * Tests whether or not a message with the given ID may pass the filter.
+   *
+   * @param id the message ID to test
+   * @return false if every message with <tt>id</tt> is rejected
+   */
+  public boolean mayAccept(short id) {
+    int i = id & 0xffff;
+    if (contains(mAccepted, i)) {
+      return true;
+    }
+    for (long[] mask : mMasks) {
+      if (contains(mask, i)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of residual predicates, which are tested for some IDs only.
+   *
+   * @return the number of predicates left after compiling the filter
+   */
+  public int getResidualCount() {
+    return mResiduals.length;
+  }
+
+  // For FilterCompiler, which compiles a compiled filter again without copying it
+  long[] getAccepted() {
+    return mAccepted;
+  }
+
+  long[][] getMasks() {
+    return mMasks;
+  }
+
+  MessageFilter[] getResiduals() {
+    return mResiduals;
+  }
+
+  @Override
+  public String toString() {
+    int count = 0;
+    for (long word : mAccepted) {
+      count += Long.bitCount(word);
+    }
+    return "CompiledFilter of " + count + " IDs and " + mResiduals.length + " predicates";
+  }
+
+}
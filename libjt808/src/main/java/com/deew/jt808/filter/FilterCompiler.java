@@ -0,0 +1,244 @@
+package com.deew.jt808.filter;
+
+import com.deew.jt808.msg.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flattens a tree of {@link AndFilter}, {@link OrFilter} and {@link MessageIdFilter} into a {@link
+ * CompiledFilter}. The IDs passing the tree are folded into a bitset, and the other filters of the
+ * tree are kept as residual predicates, each one tested only for the IDs it may still decide.
+ * <p>
+ * For example, an OR of fifty ID filters is compiled into a single bit test, and {@code AND(OR(ID
+ * 0x8001, ID 0x8100), myFilter)} into a predicate which calls {@code myFilter} for these two IDs
+ * only. Only the filter classes of this package are flattened, subclasses may override {@link
+ * MessageFilter#accept(Message)} and are kept as predicates like any other filter.
+ * <p>
+ * The tree is read once when it is compiled: modifying it afterwards does not change the compiled
+ * filter.
+ *
+ */
+public final class FilterCompiler {
+
+  // Every message ID, shared by the masks of the predicates tested for any ID and never modified
+  private static final long[] ALL = new long[CompiledFilter.WORDS];
+
+  static {
+    Arrays.fill(ALL, -1L);
+  }
+
+  private FilterCompiler() {
+  }
+
+  /**
+   * Compiles a message filter.
+   *
+   * @param filter the filter to compile
+   * @return a compiled filter accepting the same messages
+   */
+  public static CompiledFilter compile(MessageFilter filter) {
+    if (filter == null) {
+      throw new NullPointerException("Message filter is null.");
+    }
+    if (filter instanceof CompiledFilter) {
+      return (CompiledFilter) filter;
+    }
+
+    return flatten(filter).toFilter();
+  }
+
+  private static Form flatten(MessageFilter filter) {
+    // Subclasses may override accept(), only the filters of this package are known
+    Class<?> type = filter.getClass();
+    if (type == MessageIdFilter.class) {
+      long[] accepted = new long[CompiledFilter.WORDS];
+      set(accepted, ((MessageIdFilter) filter).getId() & 0xffff);
+      return new Form(accepted);
+    }
+
+    if (type == CompiledFilter.class) {
+      CompiledFilter compiled = (CompiledFilter) filter;
+      Form form = new Form(compiled.getAccepted());
+      form.mMasks.addAll(Arrays.asList(compiled.getMasks()));
+      form.mResiduals.addAll(Arrays.asList(compiled.getResiduals()));
+      return form;
+    }
+
+    if (type == OrFilter.class) {
+      return flattenOr(((OrFilter) filter).getFilters());
+    }
+
+    if (type == AndFilter.class) {
+      return flattenAnd(((AndFilter) filter).getFilters());
+    }
+
+    // Any other filter may accept any ID
+    Form form = new Form(new long[CompiledFilter.WORDS]);
+    form.mMasks.add(ALL);
+    form.mResiduals.add(filter);
+    return form;
+  }
+
+  private static Form flattenOr(List<MessageFilter> operands) {
+    long[] accepted = new long[CompiledFilter.WORDS];
+    List<long[]> masks = new ArrayList<>();
+    List<MessageFilter> residuals = new ArrayList<>();
+    for (MessageFilter operand : operands) {
+      Form form = flatten(operand);
+      or(accepted, form.mAccepted);
+      masks.addAll(form.mMasks);
+      residuals.addAll(form.mResiduals);
+    }
+
+    // The accepted IDs need no predicate, and a predicate shared by several operands is tested
+    // once for all of their IDs
+    Form form = new Form(accepted);
+    for (int i = 0; i < residuals.size(); i++) {
+      long[] mask = andNot(masks.get(i), accepted);
+      if (mask == null) {
+        continue;
+      }
+      int j = indexOf(form.mResiduals, residuals.get(i));
+      if (j < 0) {
+        form.mMasks.add(mask);
+        form.mResiduals.add(residuals.get(i));
+      } else {
+        or(form.mMasks.get(j), mask);
+      }
+    }
+    return form;
+  }
+
+  private static Form flattenAnd(List<MessageFilter> operands) {
+    // The IDs every operand accepts, and the IDs every operand may accept
+    long[] accepted = ALL.clone();
+    long[] possible = ALL.clone();
+    List<MessageFilter> undecided = new ArrayList<>();
+    for (MessageFilter operand : operands) {
+      Form form = flatten(operand);
+      and(accepted, form.mAccepted);
+      long[] mayAccept = form.mAccepted.clone();
+      for (long[] mask : form.mMasks) {
+        or(mayAccept, mask);
+      }
+      and(possible, mayAccept);
+      if (!form.mResiduals.isEmpty()) {
+        undecided.add(form.toPredicate());
+      }
+    }
+
+    // The operands made of IDs only accept the possible IDs, the others decide
+    Form form = new Form(accepted);
+    if (!undecided.isEmpty()) {
+      long[] mask = andNot(possible, accepted);
+      if (mask != null) {
+        form.mMasks.add(mask);
+        form.mResiduals.add(undecided.size() == 1
+                            ? undecided.get(0)
+                            : new Conjunction(undecided.toArray(new MessageFilter[0])));
+      }
+    }
+    return form;
+  }
+
+  private static int indexOf(List<MessageFilter> filters, MessageFilter filter) {
+    for (int i = 0; i < filters.size(); i++) {
+      if (filters.get(i) == filter) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static void set(long[] bits, int id) {
+    bits[id >>> 6] |= 1L << id;
+  }
+
+  private static void or(long[] dst, long[] src) {
+    for (int i = 0; i < dst.length; i++) {
+      dst[i] |= src[i];
+    }
+  }
+
+  private static void and(long[] dst, long[] src) {
+    for (int i = 0; i < dst.length; i++) {
+      dst[i] &= src[i];
+    }
+  }
+
+  private static boolean isEmpty(long[] bits) {
+    for (long word : bits) {
+      if (word != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Returns a new bitset, or null if it would be empty
+  private static long[] andNot(long[] a, long[] b) {
+    long[] out = new long[a.length];
+    long any = 0;
+    for (int i = 0; i < out.length; i++) {
+      out[i] = a[i] & ~b[i];
+      any |= out[i];
+    }
+    return any != 0 ? out : null;
+  }
+
+  /** A filter being flattened. */
+  private static class Form {
+
+    final long[]              mAccepted;
+    final List<long[]>        mMasks     = new ArrayList<>();
+    final List<MessageFilter> mResiduals = new ArrayList<>();
+
+    Form(long[] accepted) {
+      mAccepted = accepted;
+    }
+
+    // Returns the filter itself if it is a single predicate, not something to compile
+    MessageFilter toPredicate() {
+      if (mResiduals.size() == 1 && mMasks.get(0) == ALL && isEmpty(mAccepted)) {
+        return mResiduals.get(0);
+      }
+      return toFilter();
+    }
+
+    CompiledFilter toFilter() {
+      return new CompiledFilter(mAccepted,
+                                mMasks.toArray(new long[mMasks.size()][]),
+                                mResiduals.toArray(new MessageFilter[mResiduals.size()]));
+    }
+
+  }
+
+  /** The residual predicate of an AND, passed by messages passing every operand. */
+  private static final class Conjunction implements MessageFilter {
+
+    private final MessageFilter[] mFilters;
+
+    Conjunction(MessageFilter[] filters) {
+      mFilters = filters;
+    }
+
+    @Override
+    public boolean accept(Message msg) {
+      for (MessageFilter filter : mFilters) {
+        if (!filter.accept(msg)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString(mFilters);
+    }
+
+  }
+
+}
@@ -19,11 +19,31 @@ public class MessageIdFilter implements MessageFilter {
     mId = id;
   }
 
+  /**
+   * Returns the message ID this filter is for.
+   *
+   * @return the message ID
+   */
+  public short getId() {
+    return mId;
+  }
+
   @Override
   public boolean accept(Message msg) {
     return mId == msg.getId();
   }
 
+  /**
+   * Tests whether or not a message ID passes the filter. This allows routing packets before they
+   * are turned into messages, e.g. with {@link com.deew.jt808.msg.PacketView#getMsgId()}.
+   *
+   * @param id the message ID to test
+   * @return true if and only if <tt>id</tt> passes the filter
+   */
+  public boolean accept(short id) {
+    return mId == id;
+  }
+
   @Override
   public String toString() {
     return "MessageIdFilter by ID: " + mId;
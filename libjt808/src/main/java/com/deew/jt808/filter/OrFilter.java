@@ -4,6 +4,7 @@ import com.deew.jt808.msg.Message;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -56,6 +57,15 @@ public class OrFilter implements MessageFilter {
     mFilters.add(filter);
   }
 
+  /**
+   * Returns the filters of the OR operation.
+   *
+   * @return an unmodifiable view of the filter list
+   */
+  public List<MessageFilter> getFilters() {
+    return Collections.unmodifiableList(mFilters);
+  }
+
   @Override
   public boolean accept(Message msg) {
     for (MessageFilter filter : mFilters) {
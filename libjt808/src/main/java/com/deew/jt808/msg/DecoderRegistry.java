@@ -0,0 +1,108 @@
+package com.deew.jt808.msg;
+
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps message IDs to the decoders of the messages received from the server.
+ * <p>
+ * The decoders are held in an array with a slot for every message ID, so finding the decoder of a
+ * message is a single indexed read, whatever the number of decoders registered. A message whose ID
+ * has no decoder, or whose body is malformed, is left as a generic {@link Message}.
+ * <p>
+ * The {@link #getDefault() default registry} decodes the {@link ServerGenericReply}, the {@link
+ * RegisterReply} and the {@link ResendRequest}. Registering decoders is thread safe and takes effect
+ * for the next message received.
+ *
+ */
+public class DecoderRegistry {
+
+  private static final String TAG = LogUtils.makeTag(DecoderRegistry.class);
+
+  private static final int SLOTS = 0x10000;
+
+  private static DecoderRegistry sDefault;
+
+  private final AtomicReferenceArray<MessageDecoder> mDecoders =
+      new AtomicReferenceArray<>(SLOTS);
+
+  /** Creates a new registry without decoders. */
+  public DecoderRegistry() {
+  }
+
+  /**
+   * Returns the registry shared by connections which are not configured with their own, it holds
+   * the decoders of the messages of the server this library handles.
+   *
+   * @return the default registry
+   */
+  public static synchronized DecoderRegistry getDefault() {
+    if (sDefault == null) {
+      DecoderRegistry registry = new DecoderRegistry();
+      registry.register(ServerGenericReply.ID, new MessageDecoder() {
+        @Override
+        public Message decode(Message msg) {
+          return new ServerGenericReply.Builder(msg).build();
+        }
+      });
+      registry.register(RegisterReply.ID, new MessageDecoder() {
+        @Override
+        public Message decode(Message msg) {
+          return new RegisterReply.Builder(msg).build();
+        }
+      });
+      registry.register(ResendRequest.ID, new MessageDecoder() {
+        @Override
+        public Message decode(Message msg) {
+          return new ResendRequest.Builder(msg).build();
+        }
+      });
+      sDefault = registry;
+    }
+    return sDefault;
+  }
+
+  /**
+   * Registers the decoder of a message ID, replacing the previous one.
+   *
+   * @param id      the message ID
+   * @param decoder the decoder, or {@code null} to leave the messages generic
+   */
+  public void register(short id, MessageDecoder decoder) {
+    mDecoders.set(id & 0xffff, decoder);
+  }
+
+  /**
+   * Returns the decoder of a message ID.
+   *
+   * @param id the message ID
+   * @return the decoder, or {@code null} if there is none
+   */
+  public MessageDecoder get(short id) {
+    return mDecoders.get(id & 0xffff);
+  }
+
+  /**
+   * Decodes a message into its typed subclass.
+   *
+   * @param msg the message as assembled from its packets
+   * @return the typed message, or the message itself if its ID has no decoder or its body is
+   * malformed
+   */
+  public Message decode(Message msg) {
+    MessageDecoder decoder = mDecoders.get(msg.getId() & 0xffff);
+    if (decoder == null) {
+      return msg;
+    }
+
+    try {
+      return decoder.decode(msg);
+    } catch (IllegalArgumentException iae) {
+      Log.w(TAG, "decode: Malformed message " + msg + ", " + iae.getMessage());
+      return msg;
+    }
+  }
+
+}
@@ -0,0 +1,188 @@
+package com.deew.jt808.msg;
+
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Retains the encoded frames of recently sent long messages, so that the packets a server asks for
+ * with a {@link ResendRequest} can be written again as they are, instead of resending the whole
+ * message.
+ * <p>
+ * Frames are added in the order they are written. The first packet of a long message opens an
+ * entry keyed by its serial number, the following packets join it. The oldest entries are evicted
+ * once the number of messages or the bytes held exceed the limits.
+ *
+ */
+public class FragmentCache {
+
+  private static final String TAG = LogUtils.makeTag(FragmentCache.class);
+
+  /** Default number of long messages retained. */
+  public static final int DEFAULT_MAX_MESSAGES = 16;
+  /** Default limit of frame bytes retained. */
+  public static final int DEFAULT_MAX_BYTES    = 512 * 1024;
+
+  private final int mMaxMessages;
+  private final int mMaxBytes;
+
+  // Guarded by this, in the order the messages were sent
+  private final Map<Short, Entry> mEntries = new LinkedHashMap<>();
+  // The message whose packets are being written
+  private Entry mOpen;
+  private int   mBytes;
+
+  /** Creates a new cache with the default limits. */
+  public FragmentCache() {
+    this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Creates a new cache.
+   *
+   * @param maxMessages the number of long messages retained
+   * @param maxBytes    the limit of frame bytes retained
+   */
+  public FragmentCache(int maxMessages, int maxBytes) {
+    mMaxMessages = maxMessages;
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Retains the encoded frame of a packet which has just been written. Packets of short messages
+   * and packets which do not follow the previous packet of their message are ignored.
+   *
+   * @param packet the packet written
+   * @param frame  the array holding the encoded frame
+   * @param off    the offset of the frame in the array
+   * @param len    the length of the frame
+   */
+  public synchronized void add(Packet packet, byte[] frame, int off, int len) {
+    if (!packet.isLongMsg()) {
+      return;
+    }
+
+    int total = packet.getTotal() & 0xffff;
+    int index = packet.getIndex() & 0xffff;
+    if (index < 1 || index > total) {
+      return;
+    }
+
+    if (index == 1) {
+      remove(packet.getSn());
+      mOpen = new Entry(packet.getSn(), packet.getMsgId(), total);
+      mEntries.put(mOpen.mFirstSn, mOpen);
+    } else if (mOpen == null || mOpen.mId != packet.getMsgId()
+               || mOpen.mFrames.length != total || mOpen.mFrames[index - 2] == null
+               || mOpen.mFrames[index - 1] != null) {
+      return;
+    }
+
+    mOpen.mFrames[index - 1] = Arrays.copyOfRange(frame, off, off + len);
+    mOpen.mBytes += len;
+    mBytes += len;
+
+    // Evict the oldest messages, which may be the open one if it is too large on its own
+    Iterator<Entry> it = mEntries.values().iterator();
+    while ((mBytes > mMaxBytes || mEntries.size() > mMaxMessages) && it.hasNext()) {
+      Entry entry = it.next();
+      it.remove();
+      mBytes -= entry.mBytes;
+      if (entry == mOpen) {
+        mOpen = null;
+      }
+    }
+  }
+
+  /**
+   * Looks up the frames of the specified packets of a long message.
+   *
+   * @param firstSn the serial number of the first packet of the message
+   * @param indices the indices of the packets, starting from 1, or an empty array for all packets
+   * @param out     the collection the frames found are added to, in the order requested
+   * @return the number of frames added
+   */
+  public synchronized int get(short firstSn, short[] indices, Collection<byte[]> out) {
+    Entry entry = mEntries.get(firstSn);
+    if (entry == null) {
+      Log.w(TAG, "get: Message with first serial number " + firstSn + " not retained.");
+      return 0;
+    }
+
+    int count = 0;
+    if (indices.length == 0) {
+      for (byte[] frame : entry.mFrames) {
+        if (frame != null) {
+          out.add(frame);
+          count++;
+        }
+      }
+    } else {
+      for (short idx : indices) {
+        int index = idx & 0xffff;
+        if (index < 1 || index > entry.mFrames.length || entry.mFrames[index - 1] == null) {
+          Log.w(TAG, "get: Packet " + index + " of message " + firstSn + " not retained.");
+          continue;
+        }
+        out.add(entry.mFrames[index - 1]);
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Returns the number of long messages retained.
+   *
+   * @return the number of messages
+   */
+  public synchronized int size() {
+    return mEntries.size();
+  }
+
+  /**
+   * Returns the number of frame bytes retained.
+   *
+   * @return the number of bytes
+   */
+  public synchronized int getBytes() {
+    return mBytes;
+  }
+
+  /** Discards every retained frame. */
+  public synchronized void clear() {
+    mEntries.clear();
+    mOpen = null;
+    mBytes = 0;
+  }
+
+  private void remove(short firstSn) {
+    Entry entry = mEntries.remove(firstSn);
+    if (entry != null) {
+      mBytes -= entry.mBytes;
+    }
+  }
+
+  /** The frames of a long message. */
+  private static final class Entry {
+
+    final short    mFirstSn;
+    final short    mId;
+    final byte[][] mFrames;
+    int            mBytes;
+
+    Entry(short firstSn, short id, int total) {
+      mFirstSn = firstSn;
+      mId = id;
+      mFrames = new byte[total][];
+    }
+
+  }
+
+}
@@ -84,6 +84,34 @@ public class LocationMessage extends Message {
         this.power_off          = builder.power_off;
     }
 
+    /**
+     * Returns the alarm flags of the location, where bit 0 is the emergency alarm.
+     *
+     * @return the alarm flags
+     */
+    public int getAlarm() {
+        return alarm;
+    }
+
+    public boolean isEmergency() {
+        return emergency;
+    }
+
+    /**
+     * Returns if the body of a location message, built by this class or not, has the emergency
+     * alarm set. The alarm flags are the first DWORD of the body.
+     *
+     * @param msg the message
+     * @return {@code true} if the message is a location with the emergency alarm
+     */
+    public static boolean isEmergency(Message msg) {
+        if (msg.getId() != ID) {
+            return false;
+        }
+        byte[] body = msg.getBody();
+        return body != null && body.length >= 4 && (body[3] & MASK_EMERGENCY_ALARM) != 0;
+    }
+
     public static class Builder extends MessageBuilder {
 
         private int alarm        = 0;
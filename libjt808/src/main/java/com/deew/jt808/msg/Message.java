@@ -1,8 +1,7 @@
 package com.deew.jt808.msg;
 
-import android.util.Log;
-
 import com.deew.jt808.util.ArrayUtils;
+import com.deew.jt808.util.Log;
 import com.deew.jt808.util.LogUtils;
 
 import java.util.Arrays;
@@ -69,18 +68,38 @@ public class Message {// TODO: 10/23/2016 make this class abstract
     mBody = builder.body;
   }
 
-  public Packet[] getPackets() {
+  /**
+   * Splits the message into packets. The packets of a long message take contiguous serial numbers,
+   * which are reserved at once from the specified allocator.
+   *
+   * @param allocator the serial number allocator of the connection
+   * @return the packets of the message
+   */
+  public Packet[] getPackets(SerialNumberAllocator allocator) {
+    return getPackets(allocator, mPhone);
+  }
+
+  /**
+   * Splits the message into packets sent on behalf of the specified terminal, instead of the
+   * terminal the message was built with.
+   *
+   * @param allocator the serial number allocator of the connection
+   * @param phone     the phone number of the terminal, in BCD
+   * @return the packets of the message
+   */
+  public Packet[] getPackets(SerialNumberAllocator allocator, byte[] phone) {
     List<byte[]> payloads = ArrayUtils.divide(mBody, Packet.MAX_LENGTH);
     int size = payloads.size();
     Packet[] packets = new Packet[size];
+    short sn = allocator.reserve(size);
 
     int i = 0;
     for (byte[] payload : payloads) {
       packets[i] = new Packet(mId,
                               mIsLong,
                               mCipher,
-                              mPhone,
-                              PacketManager.getSn(),
+                              phone,
+                              (short) (sn + i),
                               size,
                               ++i,
                               payload);
@@ -159,6 +178,7 @@ public class Message {// TODO: 10/23/2016 make this class abstract
 
       // The head packet is a long message, append other packets' payloads
       List<byte[]> payloads = new LinkedList<>();
+      payloads.add(packets[head].getPayload());
 
       for (int i = head + 1; i < packets.length; i++) {
         if (packets[i] == null) {
@@ -177,14 +197,14 @@ public class Message {// TODO: 10/23/2016 make this class abstract
           Log.w(TAG, "Builder: Packet with different cipher mode, ignore and continue.");
           continue;
         }
-        if (this.phone != packets[i].getPhone()) {
+        if (!Arrays.equals(this.phone, packets[i].getPhone())) {
           Log.w(TAG, "Builder: Packet with different phone number, ignore and continue.");
           continue;
         }
         payloads.add(packets[i].getPayload());
       }
 
-      if (packets[head].getTotal() != payloads.size()) {
+      if ((packets[head].getTotal() & 0xffff) != payloads.size()) {
         throw new IllegalArgumentException("Uncompleted message body.");
       }
 
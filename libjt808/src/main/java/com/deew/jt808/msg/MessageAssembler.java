@@ -0,0 +1,280 @@
+package com.deew.jt808.msg;
+
+import com.deew.jt808.util.HashedWheelTimer;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembles long messages from their packets.
+ * <p>
+ * Packets of a long message are identified by the phone number, the message ID and the serial
+ * number of the first packet, which is derived from the serial number and the index of each
+ * packet. They are filled in by index in any order, and the message is returned once every packet
+ * has arrived. Packets of short messages are turned into messages right away.
+ * <p>
+ * A partial message which does not complete within the timeout is discarded by the shared {@link
+ * HashedWheelTimer}. The payload bytes held by partial messages are limited both in total and per
+ * terminal, packets which would exceed a budget are dropped, so a flood of packets cannot exhaust
+ * the heap.
+ *
+ */
+public class MessageAssembler {
+
+  private static final String TAG = LogUtils.makeTag(MessageAssembler.class);
+
+  /** Default time a partial message is kept, in milliseconds. */
+  public static final long DEFAULT_TIMEOUT = 60 * 1000L;
+  /** Default limit of payload bytes held by all partial messages. */
+  public static final int  DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+  /** Default limit of payload bytes held by the partial messages of one terminal. */
+  public static final int  DEFAULT_MAX_BYTES_PER_TERMINAL = 2 * 1024 * 1024;
+
+  // Approximate cost of a packet slot of a partial message
+  private static final int SLOT_BYTES = 4;
+
+  private final long             mTimeout;
+  private final int              mMaxBytes;
+  private final int              mMaxTerminalBytes;
+  private final HashedWheelTimer mTimer;
+
+  // Guarded by this
+  private final Map<Key, Partial> mPartials      = new HashMap<>();
+  private final Map<Long, int[]>  mTerminalBytes = new HashMap<>();
+  private final Key               mProbe         = new Key();
+  private int                     mBytes;
+
+  /** Creates a new assembler with the default timeout and budgets. */
+  public MessageAssembler() {
+    this(DEFAULT_TIMEOUT, DEFAULT_MAX_BYTES, DEFAULT_MAX_BYTES_PER_TERMINAL,
+         HashedWheelTimer.getDefault());
+  }
+
+  /**
+   * Creates a new assembler.
+   *
+   * @param timeout          the time a partial message is kept, in milliseconds
+   * @param maxBytes         the limit of payload bytes held by all partial messages
+   * @param maxTerminalBytes the limit of payload bytes held by the partial messages of a terminal
+   * @param timer            the timer which discards the partial messages
+   */
+  public MessageAssembler(long timeout, int maxBytes, int maxTerminalBytes,
+                          HashedWheelTimer timer) {
+    if (timer == null) {
+      throw new NullPointerException("Timer is null.");
+    }
+
+    mTimeout = timeout;
+    mMaxBytes = maxBytes;
+    mMaxTerminalBytes = maxTerminalBytes;
+    mTimer = timer;
+  }
+
+  /**
+   * Adds a packet to the assembler.
+   *
+   * @param packet the packet to add
+   * @return the message if the packet completes one, {@code null} otherwise
+   */
+  public Message add(Packet packet) {
+    if (!packet.isLongMsg()) {
+      return new Message.Builder(packet).build();
+    }
+
+    int total = packet.getTotal() & 0xffff;
+    int index = packet.getIndex() & 0xffff;
+    if (index < 1 || index > total) {
+      Log.w(TAG, "add: Packet index " + index + " out of range, drop " + packet);
+      return null;
+    }
+
+    long phone = toLong(packet.getPhone());
+    Packet[] packets;
+
+    synchronized (this) {
+      mProbe.set(phone, packet.getMsgId(), (short) (packet.getSn() - (index - 1)));
+      Partial partial = mPartials.get(mProbe);
+
+      if (partial != null && partial.mPackets.length != total) {
+        Log.w(TAG, "add: Packet total " + total + " not match, drop " + packet);
+        return null;
+      }
+      if (partial != null && partial.mPackets[index - 1] != null) {
+        // Retransmitted packet
+        return null;
+      }
+      // A new partial message is charged for its packet slots as well
+      int charge = packet.length() + (partial == null ? total * SLOT_BYTES : 0);
+      if (!reserve(phone, charge)) {
+        Log.w(TAG, "add: Reassembly budget exceeded, drop " + packet);
+        return null;
+      }
+
+      if (partial == null) {
+        partial = new Partial(mProbe.copy(), total);
+        partial.mTimeout = mTimer.newTimeout(new ExpireTask(partial), mTimeout,
+                                             TimeUnit.MILLISECONDS);
+        mPartials.put(partial.mKey, partial);
+      }
+      partial.mPackets[index - 1] = packet;
+      partial.mBytes += charge;
+
+      if (++partial.mReceived < total) {
+        return null;
+      }
+
+      discard(partial);
+      packets = partial.mPackets;
+    }
+
+    try {
+      return new Message.Builder(packets).build();
+    } catch (IllegalArgumentException iae) {
+      Log.w(TAG, "add: Drop inconsistent long message, " + iae.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Returns the number of partial messages.
+   *
+   * @return the number of partial messages
+   */
+  public synchronized int size() {
+    return mPartials.size();
+  }
+
+  /**
+   * Returns the number of payload bytes held by partial messages.
+   *
+   * @return the number of payload bytes held
+   */
+  public synchronized int getBufferedBytes() {
+    return mBytes;
+  }
+
+  /** Discards every partial message. */
+  public synchronized void clear() {
+    for (Partial partial : mPartials.values()) {
+      partial.mTimeout.cancel();
+    }
+    mPartials.clear();
+    mTerminalBytes.clear();
+    mBytes = 0;
+  }
+
+  /** Charges the budgets with the bytes of a packet, returns false if one would be exceeded. */
+  private boolean reserve(long phone, int len) {
+    int[] terminal = mTerminalBytes.get(phone);
+    int terminalBytes = terminal == null ? 0 : terminal[0];
+    if (mBytes + len > mMaxBytes || terminalBytes + len > mMaxTerminalBytes) {
+      return false;
+    }
+
+    if (terminal == null) {
+      terminal = new int[1];
+      mTerminalBytes.put(phone, terminal);
+    }
+    terminal[0] += len;
+    mBytes += len;
+    return true;
+  }
+
+  /** Removes a partial message and releases the bytes it holds. */
+  private void discard(Partial partial) {
+    mPartials.remove(partial.mKey);
+    partial.mTimeout.cancel();
+
+    mBytes -= partial.mBytes;
+    int[] terminal = mTerminalBytes.get(partial.mKey.mPhone);
+    if (terminal != null && (terminal[0] -= partial.mBytes) <= 0) {
+      mTerminalBytes.remove(partial.mKey.mPhone);
+    }
+  }
+
+  /** Packs a 6 bytes BCD phone number into a long. */
+  private static long toLong(byte[] phone) {
+    long value = 0;
+    for (byte b : phone) {
+      value = value << 8 | (b & 0xff);
+    }
+    return value;
+  }
+
+  /** Identifies the packets of a long message. */
+  private static final class Key {
+
+    private long  mPhone;
+    private short mId;
+    private short mFirstSn;
+
+    void set(long phone, short id, short firstSn) {
+      mPhone = phone;
+      mId = id;
+      mFirstSn = firstSn;
+    }
+
+    Key copy() {
+      Key key = new Key();
+      key.set(mPhone, mId, mFirstSn);
+      return key;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return mPhone == other.mPhone && mId == other.mId && mFirstSn == other.mFirstSn;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (mPhone ^ (mPhone >>> 32)) * 31 + (mId << 16 | (mFirstSn & 0xffff));
+    }
+
+  }
+
+  /** The packets of a long message received so far. */
+  private static final class Partial {
+
+    final Key      mKey;
+    final Packet[] mPackets;
+    int            mReceived;
+    int            mBytes;
+    HashedWheelTimer.Timeout mTimeout;
+
+    Partial(Key key, int total) {
+      mKey = key;
+      mPackets = new Packet[total];
+    }
+
+  }
+
+  /** Discards a partial message which did not complete in time. */
+  private class ExpireTask implements Runnable {
+
+    private final Partial mPartial;
+
+    ExpireTask(Partial partial) {
+      mPartial = partial;
+    }
+
+    @Override
+    public void run() {
+      synchronized (MessageAssembler.this) {
+        if (mPartials.get(mPartial.mKey) == mPartial) {
+          Log.w(TAG, "expire: Discard partial message, " + mPartial.mReceived + " of "
+                     + mPartial.mPackets.length + " packets received.");
+          discard(mPartial);
+        }
+      }
+    }
+
+  }
+
+}
@@ -1,7 +1,6 @@
 package com.deew.jt808.msg;
 
-import android.util.Log;
-
+import com.deew.jt808.util.Log;
 import com.deew.jt808.util.LogUtils;
 
 public abstract class MessageBuilder {
@@ -0,0 +1,19 @@
+package com.deew.jt808.msg;
+
+/**
+ * Decodes a generic message received from the server into its typed subclass.
+ *
+ * @see DecoderRegistry
+ */
+public interface MessageDecoder {
+
+  /**
+   * Decodes the specified message.
+   *
+   * @param msg the message as assembled from its packets
+   * @return the typed message
+   * @throws IllegalArgumentException if the body of the message is malformed
+   */
+  Message decode(Message msg);
+
+}
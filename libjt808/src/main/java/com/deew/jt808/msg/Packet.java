@@ -1,11 +1,11 @@
 package com.deew.jt808.msg;
 
-import android.util.Log;
-
 import com.deew.jt808.util.ArrayUtils;
-import com.deew.jt808.util.IntegerUtils;
+import com.deew.jt808.util.Log;
 import com.deew.jt808.util.LogUtils;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -28,10 +28,17 @@ public class Packet {
 
   static final short MAX_LENGTH = 0x03ff;
 
+  // Header length without and with the packet segmentation fields
+  static final int HEADER_LENGTH      = 12;
+  static final int LONG_HEADER_LENGTH = 16;
+
+  /** The longest possible frame, a long message packet with a full payload, all bytes escaped. */
+  public static final int MAX_FRAME_LENGTH = 2 + 2 * (LONG_HEADER_LENGTH + MAX_LENGTH + 1);
+
   //Beginning Marker
-  private static final byte PREFIX = 0x7e;
+  static final byte PREFIX = 0x7e;
   //Ending Marker
-  private static final byte SUFFIX = 0x7e;
+  static final byte SUFFIX = 0x7e;
 
   //Packet Header @{
     //消息ID
@@ -92,62 +99,99 @@ public class Packet {
     mIndex = (short) (isLong ? index : 0);
   }
 
-  // TODO: 2016/10/25 replace with packet pull parser
-  @Deprecated
-  public Packet(byte[] raw) {
-    if (raw[0] != PREFIX || raw[raw.length - 1] != SUFFIX) {
-      throw new IllegalArgumentException("Packet prefix or suffix not found.");
-    }
+  /**
+   * Returns the escaped frame of this packet, including both delimiters.
+   *
+   * @return a new byte array holding the frame
+   */
+  public byte[] getBytes() {
+    ByteBuffer buf = ByteBuffer.allocate(maxEncodedLength());
+    encodeTo(buf);
+    return Arrays.copyOf(buf.array(), buf.position());
+  }
 
-    byte[] main = ArrayUtils.unescape(Arrays.copyOfRange(raw, 1, raw.length - 1));
-    if (main.length < 13) {
-      throw new IllegalArgumentException("Insufficient packet length.");
-    }
+  /**
+   * Returns the upper bound of the frame length of this packet, which is reached when every byte
+   * between the delimiters has to be escaped.
+   *
+   * @return the maximum number of bytes {@link #encodeTo(ByteBuffer)} writes
+   */
+  public int maxEncodedLength() {
+    int header = mIsLongMsg ? LONG_HEADER_LENGTH : HEADER_LENGTH;
+    return 2 + 2 * (header + mPayload.length + 1);
+  }
 
-    mCipher = (byte) (main[2] & 0x1c);
-    if (mCipher != Message.CIPHER_NONE && mCipher != Message.CIPHER_RSA) {
-      throw new IllegalArgumentException("Unknown cipher mode.");
-    }
+  /**
+   * Writes the escaped frame of this packet, including both delimiters, into the specified buffer
+   * at its current position. The checksum and the escaping are computed while the bytes are
+   * written, no intermediate array is allocated.
+   *
+   * @param dst the buffer to write into, it should have {@link #maxEncodedLength()} bytes remaining
+   * @return the number of bytes written
+   * @throws BufferOverflowException if the buffer has not enough space remaining
+   */
+  public int encodeTo(ByteBuffer dst) {
+    int start = dst.position();
+    short attr = (short) ((mIsLongMsg ? 1 << 13 : 0) | (mCipher << 8) | (mPayload.length));
+    byte checksum = 0;
 
-    mIsLongMsg = (main[2] & 0x20) == 0x20;
-    int len = (IntegerUtils.parseInt(Arrays.copyOfRange(main, 2, 4)) & MAX_LENGTH);
-    if ((isLongMsg() && len != main.length - 17) || (!isLongMsg() && len != main.length - 13)) {
-      throw new IllegalArgumentException("Incorrect packet length.");
+    dst.put(PREFIX);
+    checksum ^= putEscaped(dst, mMsgId);
+    checksum ^= putEscaped(dst, attr);
+    for (byte b : mPhone) {
+      checksum ^= putEscaped(dst, b);
     }
-
-    byte checksum = main[main.length - 1];
-    if (checksum != ArrayUtils.xorCheck(Arrays.copyOfRange(main, 0, main.length - 1))) {
-      throw new IllegalArgumentException("XOR check failed.");
+    checksum ^= putEscaped(dst, mSn);
+    if (mIsLongMsg) {
+      checksum ^= putEscaped(dst, mTotal);
+      checksum ^= putEscaped(dst, mIndex);
     }
+    checksum ^= putEscaped(dst, mPayload);
+    putEscaped(dst, checksum);
+    dst.put(SUFFIX);
 
-    mMsgId = IntegerUtils.parseShort(Arrays.copyOfRange(main, 0, 2));
-    mPhone = Arrays.copyOfRange(main, 4, 10);
-    mSn = IntegerUtils.parseShort(Arrays.copyOfRange(main, 10, 12));
-    mTotal = isLongMsg() ? IntegerUtils.parseShort(Arrays.copyOfRange(main, 12, 14)) : 0;
-    mIndex = isLongMsg() ? IntegerUtils.parseShort(Arrays.copyOfRange(main, 14, 16)) : 0;
-    mPayload = Arrays.copyOfRange(main, main.length - 1 - len, main.length - 1);
+    return dst.position() - start;
   }
 
-  public byte[] getBytes() {
-    short attr = (short) ((mIsLongMsg ? 1 << 13 : 0) | (mCipher << 8) | (mPayload.length));
-
-    byte[] header = ArrayUtils.concatenate(IntegerUtils.asBytes(mMsgId),
-                                           IntegerUtils.asBytes(attr),
-                                           mPhone,
-                                           IntegerUtils.asBytes(mSn));
-    if (mIsLongMsg) {
-      header = ArrayUtils.concatenate(header,
-                                      IntegerUtils.asBytes(mTotal),
-                                      IntegerUtils.asBytes(mIndex));
+  /** Writes a byte using JT/T808 escaping rules and returns it for the checksum. */
+  private static byte putEscaped(ByteBuffer dst, byte b) {
+    switch (b) {
+      case 0x7d:
+        dst.put((byte) 0x7d).put((byte) 0x01);
+        break;
+      case 0x7e:
+        dst.put((byte) 0x7d).put((byte) 0x02);
+        break;
+      default:
+        dst.put(b);
     }
+    return b;
+  }
 
-    byte checksum = ArrayUtils.xorCheck(ArrayUtils.concatenate(header, mPayload));
+  /**
+   * Writes a byte array using JT/T808 escaping rules and returns its XOR. The XOR is computed in
+   * the same pass, and runs of bytes which need no escaping are copied at once.
+   */
+  private static byte putEscaped(ByteBuffer dst, byte[] src) {
+    byte checksum = 0;
+    int run = 0;
+    for (int i = 0; i < src.length; i++) {
+      byte b = src[i];
+      checksum ^= b;
+      if (b == 0x7d || b == 0x7e) {
+        dst.put(src, run, i - run);
+        putEscaped(dst, b);
+        run = i + 1;
+      }
+    }
+    dst.put(src, run, src.length - run);
 
-    byte[] main = ArrayUtils.concatenate(header, mPayload, IntegerUtils.asBytes(checksum));
+    return checksum;
+  }
 
-    return ArrayUtils.concatenate(IntegerUtils.asBytes(PREFIX),
-                                  ArrayUtils.escape(main),
-                                  IntegerUtils.asBytes(SUFFIX));
+  /** Writes a WORD in big-endian order using JT/T808 escaping rules and returns its XOR. */
+  private static byte putEscaped(ByteBuffer dst, short s) {
+    return (byte) (putEscaped(dst, (byte) (s >> 8)) ^ putEscaped(dst, (byte) s));
   }
 
   public int length() {
@@ -0,0 +1,380 @@
+package com.deew.jt808.msg;
+
+import com.deew.jt808.util.ArrayUtils;
+import com.deew.jt808.util.Log;
+import com.deew.jt808.util.LogUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Incremental decoder which splits a JT/T808 byte stream into packets.
+ * <p>
+ * Bytes are read straight into a growable ring buffer. Complete {@code 0x7e} delimited frames are
+ * unescaped directly into the fields of a new {@link Packet}, so every byte is copied out of the
+ * ring buffer exactly once. Partial frames are kept between reads, which means frames split across
+ * several TCP segments or coalesced into a single read are both handled.
+ * <p>
+ * A decoder is not thread safe, it is meant to be owned by a single reader thread.
+ *
+ */
+public class PacketDecoder {
+
+  private static final String TAG = LogUtils.makeTag(PacketDecoder.class);
+
+  private static final int DEFAULT_CAPACITY = 4096;
+
+  private byte[]     mBuf;
+  private int        mMask;
+  // Word view of the buffer for scanning eight bytes per step
+  private ByteBuffer mWords;
+
+  // Free running positions, mapped into the buffer with the mask
+  private int mHead;
+  private int mTail;
+  // Position to resume the search for the closing delimiter from
+  private int mScan;
+  // Flag that indicates if the byte at head is an opening delimiter
+  private boolean mInFrame;
+
+  // Bounds of the last frame found
+  private int mFrameFrom;
+  private int mFrameTo;
+  // Holds frames which wrap around the end of the ring buffer
+  private final byte[] mScratch = new byte[Packet.MAX_FRAME_LENGTH];
+
+  // Position of the next escaped byte while a frame is being unpacked
+  private int  mCursor;
+  private byte mChecksum;
+
+  /** Creates a new decoder with the default capacity. */
+  public PacketDecoder() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a new decoder with the specified initial capacity. The capacity is rounded up to a
+   * power of two, the buffer grows when needed.
+   *
+   * @param capacity the initial capacity of the ring buffer
+   */
+  public PacketDecoder(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+    mBuf = new byte[size];
+    mMask = size - 1;
+    mWords = ByteBuffer.wrap(mBuf).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Returns the number of buffered bytes which have not been decoded yet.
+   *
+   * @return the number of pending bytes
+   */
+  public int pending() {
+    return mTail - mHead;
+  }
+
+  /**
+   * Discards any buffered data, including a partially received frame. It should be called when the
+   * underlying stream is replaced.
+   */
+  public void reset() {
+    mHead = mTail = mScan = 0;
+    mInFrame = false;
+  }
+
+  /**
+   * Reads available bytes from the specified stream directly into the ring buffer. The call blocks
+   * only as long as the stream's {@code read} does.
+   *
+   * @param in the stream to read from
+   * @return the number of bytes read, or {@code -1} if the end of the stream has been reached
+   * @throws IOException if an I/O error occurs
+   */
+  public int readFrom(InputStream in) throws IOException {
+    if (pending() == mBuf.length) {
+      grow(mBuf.length + 1);
+    }
+
+    int idx = mTail & mMask;
+    int room = Math.min(mBuf.length - pending(), mBuf.length - idx);
+    int len = in.read(mBuf, idx, room);
+    if (len > 0) {
+      mTail += len;
+    }
+
+    return len;
+  }
+
+  /**
+   * Appends bytes to the ring buffer.
+   *
+   * @param src the source array
+   * @param off the offset of the first byte in the source array
+   * @param len the number of bytes to append
+   */
+  public void feed(byte[] src, int off, int len) {
+    if (off < 0 || len < 0 || off + len > src.length) {
+      throw new IndexOutOfBoundsException("Illegal offset or length.");
+    }
+    if (pending() + len > mBuf.length) {
+      grow(pending() + len);
+    }
+
+    while (len > 0) {
+      int idx = mTail & mMask;
+      int n = Math.min(len, mBuf.length - idx);
+      System.arraycopy(src, off, mBuf, idx, n);
+      mTail += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Appends the remaining bytes of a buffer to the ring buffer. The position of the source buffer
+   * is moved to its limit.
+   *
+   * @param src the source buffer, which may be a direct buffer
+   */
+  public void feed(ByteBuffer src) {
+    int len = src.remaining();
+    if (pending() + len > mBuf.length) {
+      grow(pending() + len);
+    }
+
+    while (len > 0) {
+      int idx = mTail & mMask;
+      int n = Math.min(len, mBuf.length - idx);
+      src.get(mBuf, idx, n);
+      mTail += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Decodes every complete frame in the buffer and adds the resulting packets to the given list.
+   * Malformed frames are dropped. Trailing bytes of an incomplete frame are kept until more data
+   * arrive.
+   *
+   * @param out the list the decoded packets are added to
+   * @return the number of packets added
+   */
+  public int decode(List<Packet> out) {
+    int count = 0;
+
+    while (nextFrame()) {
+      Packet packet = unpack(mFrameFrom, mFrameTo);
+      if (packet != null) {
+        out.add(packet);
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Points the specified view at the next complete frame in the buffer, without allocating. The
+   * frame is unescaped in place when it is contiguous in the ring buffer, otherwise it is moved to
+   * a scratch array first. Malformed frames are dropped.
+   * <p>
+   * The view is only valid until the next call of any method of this decoder.
+   *
+   * @param view the view to wrap the frame with
+   * @return {@code true} if the view holds a frame, {@code false} if no complete frame is left
+   */
+  public boolean next(PacketView view) {
+    while (nextFrame()) {
+      int idx = mFrameFrom & mMask;
+      int len = mFrameTo - mFrameFrom;
+      byte[] buf = mBuf;
+      int off = idx;
+      if (idx + len > mBuf.length) {
+        int n = mBuf.length - idx;
+        System.arraycopy(mBuf, idx, mScratch, 0, n);
+        System.arraycopy(mBuf, 0, mScratch, n, len - n);
+        buf = mScratch;
+        off = 0;
+      }
+
+      try {
+        view.wrap(buf, off, ArrayUtils.unescapeInPlace(buf, off, len));
+        return true;
+      } catch (IllegalArgumentException iae) {
+        Log.w(TAG, "next: Drop malformed frame, " + iae.getMessage());
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Locates the next non-empty frame and consumes it. Its content lies between {@code mFrameFrom}
+   * (inclusive) and {@code mFrameTo} (exclusive) afterwards, and stays untouched until more data
+   * are read into the buffer.
+   *
+   * @return {@code true} if a frame is found, {@code false} if no complete frame is left
+   */
+  private boolean nextFrame() {
+    while (mHead != mTail) {
+      if (!mInFrame) {
+        // Skip everything up to the next opening delimiter
+        int start = indexOfDelimiter(mHead);
+        if (start < 0) {
+          mHead = mScan = mTail;
+          return false;
+        }
+        mHead = start;
+        mScan = start + 1;
+        mInFrame = true;
+      }
+
+      int end = indexOfDelimiter(mScan);
+      if (end < 0) {
+        mScan = mTail;
+        if (pending() > Packet.MAX_FRAME_LENGTH) {
+          Log.w(TAG, "nextFrame: Frame too long, discard " + pending() + " bytes.");
+          mHead = mScan = mTail;
+          mInFrame = false;
+        }
+        return false;
+      }
+
+      int from = mHead + 1;
+      // The closing delimiter may be the opening delimiter of the next frame as well
+      mHead = end;
+      mScan = end + 1;
+
+      if (end - from > Packet.MAX_FRAME_LENGTH - 2) {
+        Log.w(TAG, "nextFrame: Frame too long, discard " + (end - from) + " bytes.");
+      } else if (end - from > 0) {
+        mFrameFrom = from;
+        mFrameTo = end;
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /** Returns the position of the next delimiter from the given position, or -1 if not found. */
+  private int indexOfDelimiter(int from) {
+    // Scan the contiguous parts of the ring, the second one starts at the beginning of the array
+    for (int pos = from; pos != mTail; ) {
+      int idx = pos & mMask;
+      int len = Math.min(mTail - pos, mBuf.length - idx);
+      int found = ArrayUtils.indexOf(mWords, idx, len, Packet.PREFIX);
+      if (found >= 0) {
+        return pos + (found - idx);
+      }
+      pos += len;
+    }
+    return -1;
+  }
+
+  /**
+   * Unescapes the frame between the given positions straight into the fields of a new packet.
+   *
+   * @param from the position of the first byte after the opening delimiter
+   * @param to   the position of the closing delimiter
+   * @return the packet, or {@code null} if the frame is malformed
+   */
+  private Packet unpack(int from, int to) {
+    mCursor = from;
+    mChecksum = 0;
+
+    try {
+      short id = nextShort(to);
+      short attr = nextShort(to);
+      byte cipher = (byte) ((attr >> 8) & 0x1c);
+      if (cipher != Message.CIPHER_NONE && cipher != Message.CIPHER_RSA) {
+        throw new IllegalArgumentException("Unknown cipher mode.");
+      }
+      boolean isLong = (attr & 0x2000) != 0;
+
+      byte[] phone = new byte[6];
+      for (int i = 0; i < phone.length; i++) {
+        phone[i] = nextByte(to);
+      }
+      short sn = nextShort(to);
+      short total = isLong ? nextShort(to) : 0;
+      short index = isLong ? nextShort(to) : 0;
+
+      byte[] payload = new byte[attr & Packet.MAX_LENGTH];
+      for (int i = 0; i < payload.length; i++) {
+        payload[i] = nextByte(to);
+      }
+
+      byte expected = mChecksum;
+      byte checksum = nextByte(to);
+      if (mCursor != to) {
+        throw new IllegalArgumentException("Incorrect packet length.");
+      }
+      if (checksum != expected) {
+        throw new IllegalArgumentException("XOR check failed.");
+      }
+
+      return new Packet(id, isLong, cipher, phone, sn, total, index, payload);
+    } catch (IllegalArgumentException iae) {
+      Log.w(TAG, "unpack: Drop malformed frame, " + iae.getMessage());
+      return null;
+    }
+  }
+
+  private byte nextByte(int to) {
+    if (mCursor == to) {
+      throw new IllegalArgumentException("Insufficient packet length.");
+    }
+
+    byte b = mBuf[mCursor++ & mMask];
+    if (b == 0x7d) {
+      if (mCursor == to) {
+        throw new IllegalArgumentException("Incomplete escape sequence.");
+      }
+      switch (mBuf[mCursor++ & mMask]) {
+        case 0x01:
+          b = 0x7d;
+          break;
+        case 0x02:
+          b = 0x7e;
+          break;
+        default:
+          throw new IllegalArgumentException("Illegal escape sequence.");
+      }
+    }
+
+    mChecksum ^= b;
+    return b;
+  }
+
+  private short nextShort(int to) {
+    return (short) ((nextByte(to) & 0xff) << 8 | (nextByte(to) & 0xff));
+  }
+
+  /** Moves the pending bytes into a larger buffer, which is able to hold at least min bytes. */
+  private void grow(int min) {
+    int size = mBuf.length;
+    while (size < min) {
+      size <<= 1;
+    }
+
+    byte[] buf = new byte[size];
+    int pending = pending();
+    int idx = mHead & mMask;
+    int n = Math.min(pending, mBuf.length - idx);
+    System.arraycopy(mBuf, idx, buf, 0, n);
+    System.arraycopy(mBuf, 0, buf, n, pending - n);
+
+    mScan -= mHead;
+    mHead = 0;
+    mTail = pending;
+    mBuf = buf;
+    mMask = size - 1;
+    mWords = ByteBuffer.wrap(mBuf).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+}
@@ -0,0 +1,162 @@
+package com.deew.jt808.msg;
+
+import com.deew.jt808.util.ArrayUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A read-only, reusable view of an unescaped JT/T808 packet held in a shared buffer.
+ * <p>
+ * Wrapping a frame only validates it, every header field is decoded from the buffer when it is
+ * asked for, and the payload is exposed as a range of the buffer instead of a copy. This allows
+ * packets to be routed, e.g. by their message ID, without allocating anything per packet:
+ * <p>
+ * <pre>
+ *   PacketView view = new PacketView();
+ *   while (decoder.next(view)) {
+ *     if (filter.accept(view.getMsgId())) {
+ *       handle(view.toPacket());
+ *     }
+ *   }
+ * </pre>
+ * <p>
+ * A view is only valid as long as the wrapped buffer region is left untouched. It is not thread
+ * safe.
+ *
+ */
+public final class PacketView {
+
+  private byte[] mBuf = ArrayUtils.EMPTY_BYTE_ARRAY;
+  private int    mOff;
+  private int    mLen;
+
+  // Little endian view of the last array checked word by word, replaced when the array changes
+  private ByteBuffer mWords;
+
+  /**
+   * Points this view at an unescaped frame, i.e. the bytes between the delimiters of a frame with
+   * the escape sequences removed. The header, the length and the checksum are validated.
+   *
+   * @param buf the buffer holding the frame
+   * @param off the index of the first byte of the frame
+   * @param len the length of the frame, including the checksum
+   * @return this view
+   * @throws IllegalArgumentException if the frame is malformed
+   */
+  public PacketView wrap(byte[] buf, int off, int len) {
+    if (off < 0 || len < 0 || off > buf.length - len) {
+      throw new IndexOutOfBoundsException("Illegal offset or length.");
+    }
+    if (len < Packet.HEADER_LENGTH + 1) {
+      throw new IllegalArgumentException("Insufficient packet length.");
+    }
+
+    int attr = (buf[off + 2] & 0xff) << 8 | (buf[off + 3] & 0xff);
+    byte cipher = (byte) ((attr >> 8) & 0x1c);
+    if (cipher != Message.CIPHER_NONE && cipher != Message.CIPHER_RSA) {
+      throw new IllegalArgumentException("Unknown cipher mode.");
+    }
+    int header = (attr & 0x2000) != 0 ? Packet.LONG_HEADER_LENGTH : Packet.HEADER_LENGTH;
+    if (len != header + (attr & Packet.MAX_LENGTH) + 1) {
+      throw new IllegalArgumentException("Incorrect packet length.");
+    }
+    if (mWords == null || mWords.array() != buf) {
+      mWords = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    if (buf[off + len - 1] != ArrayUtils.xorCheck(mWords, off, len - 1)) {
+      throw new IllegalArgumentException("XOR check failed.");
+    }
+
+    mBuf = buf;
+    mOff = off;
+    mLen = len;
+    return this;
+  }
+
+  public short getMsgId() {
+    return getShort(0);
+  }
+
+  public boolean isLongMsg() {
+    return (mBuf[mOff + 2] & 0x20) != 0;
+  }
+
+  public byte getCipher() {
+    return (byte) (mBuf[mOff + 2] & 0x1c);
+  }
+
+  /**
+   * Copies the phone number of the packet into the specified array.
+   *
+   * @param dst an array of at least 6 bytes
+   * @return the destination array
+   */
+  public byte[] getPhone(byte[] dst) {
+    System.arraycopy(mBuf, mOff + 4, dst, 0, 6);
+    return dst;
+  }
+
+  public short getSn() {
+    return getShort(10);
+  }
+
+  public short getTotal() {
+    return isLongMsg() ? getShort(12) : 0;
+  }
+
+  public short getIndex() {
+    return isLongMsg() ? getShort(14) : 0;
+  }
+
+  /**
+   * Returns the buffer holding the packet. Use {@link #getPayloadOffset()} and {@link
+   * #getPayloadLength()} to locate the payload in it.
+   *
+   * @return the wrapped buffer
+   */
+  public byte[] array() {
+    return mBuf;
+  }
+
+  public int getPayloadOffset() {
+    return mOff + (isLongMsg() ? Packet.LONG_HEADER_LENGTH : Packet.HEADER_LENGTH);
+  }
+
+  public int getPayloadLength() {
+    return (getShort(2) & Packet.MAX_LENGTH);
+  }
+
+  /**
+   * Creates a packet holding copies of the phone number and the payload of this view.
+   *
+   * @return a new packet
+   */
+  public Packet toPacket() {
+    int from = getPayloadOffset();
+    return new Packet(getMsgId(),
+                      isLongMsg(),
+                      getCipher(),
+                      getPhone(new byte[6]),
+                      getSn(),
+                      getTotal(),
+                      getIndex(),
+                      Arrays.copyOfRange(mBuf, from, from + getPayloadLength()));
+  }
+
+  private short getShort(int pos) {
+    return (short) ((mBuf[mOff + pos] & 0xff) << 8 | (mBuf[mOff + pos + 1] & 0xff));
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder()
+        .append("{ id=").append(Integer.toHexString(getMsgId() & 0xffff))
+        .append(", lng=").append(isLongMsg())
+        .append(", sn=").append(getSn())
+        .append(", len=").append(getPayloadLength())
+        .append(" }").toString();
+  }
+
+}
@@ -1,14 +1,13 @@
 package com.deew.jt808.msg;
 
-import android.util.Log;
-
 import com.deew.jt808.util.IntegerUtils;
+import com.deew.jt808.util.Log;
 import com.deew.jt808.util.LogUtils;
 
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 
-public class RegisterReply extends Message {
+public class RegisterReply extends Message implements Reply {
 
   private static final String TAG = LogUtils.makeTag(RegisterReply.class);
 
@@ -32,6 +31,7 @@ public class RegisterReply extends Message {
     mAuthCode = builder.authCode;
   }
 
+  @Override
   public short getReqSn() {
     return mReqSn;
   }
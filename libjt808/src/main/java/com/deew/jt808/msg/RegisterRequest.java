@@ -1,10 +1,9 @@
 package com.deew.jt808.msg;
 
-import android.util.Log;
-
 import com.deew.jt808.Jtt415Constants;
 import com.deew.jt808.util.ArrayUtils;
 import com.deew.jt808.util.IntegerUtils;
+import com.deew.jt808.util.Log;
 import com.deew.jt808.util.LogUtils;
 
 import java.io.UnsupportedEncodingException;
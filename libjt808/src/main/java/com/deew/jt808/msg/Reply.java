@@ -0,0 +1,17 @@
+package com.deew.jt808.msg;
+
+/**
+ * A message of the server which answers a request of the terminal, matched by the serial number of
+ * the request.
+ *
+ */
+public interface Reply {
+
+  /**
+   * Returns the serial number of the request this message answers.
+   *
+   * @return the serial number of the request
+   */
+  short getReqSn();
+
+}
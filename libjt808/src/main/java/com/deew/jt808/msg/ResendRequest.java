@@ -0,0 +1,87 @@
+package com.deew.jt808.msg;
+
+import com.deew.jt808.util.IntegerUtils;
+import com.deew.jt808.util.LogUtils;
+
+import java.util.Arrays;
+
+/**
+ * Request of the server to resend some packets of a long message. The packets are identified by
+ * the serial number of the first packet of the message and their indices, an empty list of indices
+ * asks for the whole message.
+ */
+public class ResendRequest extends Message {
+
+  private static final String TAG = LogUtils.makeTag(ResendRequest.class);
+
+  public static final short ID = (short) 0x8003;
+
+  private final short   mFirstSn;
+  private final short[] mIndices;
+
+  private ResendRequest(Builder builder) {
+    super(ID, builder.cipher, builder.phone, builder.body);
+
+    mFirstSn = builder.firstSn;
+    mIndices = builder.indices;
+  }
+
+  public short getFirstSn() {
+    return mFirstSn;
+  }
+
+  public short[] getIndices() {
+    return mIndices;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("{ id=8003")
+        .append(", firstSn=").append(mFirstSn)
+        .append(", indices=").append(Arrays.toString(mIndices))
+        .append(" }").toString();
+  }
+
+  public static class Builder extends MessageBuilder {
+
+    // Required parameters
+    private final short   firstSn;
+    private final short[] indices;
+
+    public Builder(Message msg) {
+      if (msg == null) {
+        throw new NullPointerException("Message is null.");
+      }
+      if (ID != msg.getId()) {
+        throw new IllegalArgumentException("Wrong message ID.");
+      }
+
+      this.cipher = msg.getCipher();
+      this.phone = msg.getPhone();
+      this.body = msg.getBody();
+      if (this.body.length < 3) {
+        throw new IllegalArgumentException("Message body incomplete.");
+      }
+
+      this.firstSn = IntegerUtils.parseShort(Arrays.copyOf(this.body, 2));
+
+      int count = this.body[2] & 0xff;
+      if (this.body.length != 3 + 2 * count) {
+        throw new IllegalArgumentException("Message body incorrect.");
+      }
+
+      this.indices = new short[count];
+      for (int i = 0; i < count; i++) {
+        this.indices[i] = IntegerUtils.parseShort(Arrays.copyOfRange(this.body, 3 + 2 * i,
+                                                                     5 + 2 * i));
+      }
+    }
+
+    @Override
+    public ResendRequest build() {
+      return new ResendRequest(this);
+    }
+
+  }
+
+}
@@ -0,0 +1,66 @@
+package com.deew.jt808.msg;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Allocates the serial numbers of outgoing packets.
+ * <p>
+ * Serial numbers cycle through the whole 16-bit range. Allocation is lock free: the counter runs
+ * freely and is only masked when read, so a single atomic add hands out a range of contiguous
+ * serial numbers, which the packets of a long message need. Each connection owns an allocator, the
+ * serial numbers of a connection are unique until the counter wraps around.
+ *
+ */
+public class SerialNumberAllocator {
+
+  private final AtomicInteger mNext;
+
+  /** Creates a new allocator which starts from 0. */
+  public SerialNumberAllocator() {
+    this(0);
+  }
+
+  /**
+   * Creates a new allocator.
+   *
+   * @param initial the first serial number to hand out
+   */
+  public SerialNumberAllocator(int initial) {
+    mNext = new AtomicInteger(initial & 0xffff);
+  }
+
+  /**
+   * Allocates a single serial number.
+   *
+   * @return the serial number
+   */
+  public short next() {
+    return (short) mNext.getAndIncrement();
+  }
+
+  /**
+   * Allocates a range of contiguous serial numbers. The range wraps from {@code 0xffff} to {@code
+   * 0}.
+   *
+   * @param n the number of serial numbers, from 1 to 65536
+   * @return the first serial number of the range
+   */
+  public short reserve(int n) {
+    if (n < 1 || n > 0x10000) {
+      throw new IllegalArgumentException("Illegal number of serial numbers: " + n);
+    }
+
+    // The counter wraps at 2^32, which is a multiple of 2^16, so masking keeps ranges contiguous
+    return (short) mNext.getAndAdd(n);
+  }
+
+  /**
+   * Returns the serial number which will be allocated next, without allocating it.
+   *
+   * @return the next serial number
+   */
+  public short peek() {
+    return (short) mNext.get();
+  }
+
+}
@@ -5,7 +5,7 @@ import com.deew.jt808.util.LogUtils;
 
 import java.util.Arrays;
 
-public class ServerGenericReply extends Message {
+public class ServerGenericReply extends Message implements Reply {
 
   private static final String TAG = LogUtils.makeTag(ServerGenericReply.class);
 
@@ -29,6 +29,7 @@ public class ServerGenericReply extends Message {
     mResult = builder.result;
   }
 
+  @Override
   public short getReqSn() {
     return mReqSn;
   }
@@ -0,0 +1,31 @@
+package com.deew.jt808.util;
+
+/**
+ * Writes the messages of the {@link Log} facade to the Android LogCat. It is the only class of the
+ * library which calls {@code android.util.Log}.
+ *
+ */
+public class AndroidLogBackend implements Log.Backend {
+
+  @Override
+  public void println(int level, String tag, String msg, Throwable tr) {
+    switch (level) {
+      case Log.VERBOSE:
+        android.util.Log.v(tag, msg, tr);
+        break;
+      case Log.DEBUG:
+        android.util.Log.d(tag, msg, tr);
+        break;
+      case Log.INFO:
+        android.util.Log.i(tag, msg, tr);
+        break;
+      case Log.WARN:
+        android.util.Log.w(tag, msg, tr);
+        break;
+      default:
+        android.util.Log.e(tag, msg, tr);
+        break;
+    }
+  }
+
+}
@@ -1,5 +1,7 @@
 package com.deew.jt808.util;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -23,6 +25,27 @@ public class ArrayUtils {
   /** An empty immutable long array. */
   public static final long[]  EMPTY_LONG_ARRAY  = new long[0];
 
+  // Second byte of the escape sequence of each byte value, zero if the value is not escaped
+  private static final byte[] ESCAPE_CODES   = new byte[256];
+  // Original byte value of each second byte of an escape sequence, zero if the sequence is illegal
+  private static final byte[] UNESCAPE_CODES = new byte[256];
+
+  // Ranges shorter than this are handled bytewise, wrapping them is not worth it
+  private static final int SWAR_THRESHOLD = 16;
+
+  // Word constants for processing eight bytes per step
+  private static final long LANES_LOW   = 0x0101010101010101L;
+  private static final long LANES_LOW_7 = 0x7f7f7f7f7f7f7f7fL;
+  private static final long LANES_7D    = 0x7d7d7d7d7d7d7d7dL;
+  private static final long LANES_7E    = 0x7e7e7e7e7e7e7e7eL;
+
+  static {
+    ESCAPE_CODES[0x7d] = 0x01;
+    ESCAPE_CODES[0x7e] = 0x02;
+    UNESCAPE_CODES[0x01] = 0x7d;
+    UNESCAPE_CODES[0x02] = 0x7e;
+  }
+
   /**
    * Checks if an array of primitive bytes is null or empty.
    *
@@ -150,15 +173,187 @@ public class ArrayUtils {
       return 0;
     }
 
+    return xorCheck(data, 0, data.length);
+  }
+
+  /**
+   * Returns the XOR of a range of bytes in a byte array, which is the JT/T808 packet checksum.
+   *
+   * @param data the byte array
+   * @param off  the index of the first byte
+   * @param len  the number of bytes
+   * @return the XOR of the bytes, {@code 0} for an empty range
+   * @see #xorCheck(ByteBuffer, int, int)
+   */
+  public static byte xorCheck(byte[] data, int off, int len) {
+    checkRange(data, off, len);
+
+    if (len >= SWAR_THRESHOLD) {
+      return xorCheck(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN), off, len);
+    }
+
     byte checksum = 0;
+    for (int i = off; i < off + len; i++) {
+      checksum ^= data[i];
+    }
+
+    return checksum;
+  }
+
+  /**
+   * Returns the XOR of a range of bytes in a buffer, which is the JT/T808 packet checksum. The
+   * position and limit of the buffer are not used nor changed.
+   * <p>
+   * The range is processed eight bytes per step, the lanes of the accumulated word are folded
+   * together at the end.
+   *
+   * @param buf the buffer, heap or direct and of any byte order
+   * @param off the absolute index of the first byte
+   * @param len the number of bytes
+   * @return the XOR of the bytes, {@code 0} for an empty range
+   */
+  public static byte xorCheck(ByteBuffer buf, int off, int len) {
+    int end = off + len;
+    long acc = 0;
+    for (; off <= end - 8; off += 8) {
+      acc ^= buf.getLong(off);
+    }
+    acc ^= acc >>> 32;
+    acc ^= acc >>> 16;
+    acc ^= acc >>> 8;
 
-    for (byte b : data) {
-      checksum ^= b;
+    byte checksum = (byte) acc;
+    for (; off < end; off++) {
+      checksum ^= buf.get(off);
     }
 
     return checksum;
   }
 
+  /**
+   * Finds the first occurrence of a byte value in a range of a byte array.
+   *
+   * @param data   the byte array to search
+   * @param off    the index to start searching from
+   * @param len    the number of bytes to search
+   * @param target the value to find
+   * @return the index of the first occurrence, or {@code -1} if not found
+   * @see #indexOf(ByteBuffer, int, int, byte)
+   */
+  public static int indexOf(byte[] data, int off, int len, byte target) {
+    checkRange(data, off, len);
+
+    if (len >= SWAR_THRESHOLD) {
+      return indexOf(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN), off, len, target);
+    }
+
+    for (int i = off; i < off + len; i++) {
+      if (data[i] == target) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Finds the first occurrence of a byte value in a range of a buffer, eight bytes per step. The
+   * position and limit of the buffer are not used nor changed.
+   *
+   * @param buf    the buffer to search, heap or direct and of any byte order
+   * @param off    the absolute index to start searching from
+   * @param len    the number of bytes to search
+   * @param target the value to find
+   * @return the absolute index of the first occurrence, or {@code -1} if not found
+   */
+  public static int indexOf(ByteBuffer buf, int off, int len, byte target) {
+    int end = off + len;
+    long pattern = LANES_LOW * (target & 0xff);
+    for (; off <= end - 8; off += 8) {
+      long found = zeroLanes(buf.getLong(off) ^ pattern);
+      if (found != 0) {
+        return off + firstLane(buf, found);
+      }
+    }
+
+    for (; off < end; off++) {
+      if (buf.get(off) == target) {
+        return off;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Finds the first byte which needs escaping, i.e. {@code 0x7d} or {@code 0x7e}, in a range of a
+   * byte array.
+   *
+   * @param data the byte array to search
+   * @param off  the index to start searching from
+   * @param len  the number of bytes to search
+   * @return the index of the first byte which needs escaping, or {@code -1} if not found
+   * @see #indexOfEscapable(ByteBuffer, int, int)
+   */
+  public static int indexOfEscapable(byte[] data, int off, int len) {
+    checkRange(data, off, len);
+
+    if (len >= SWAR_THRESHOLD) {
+      return indexOfEscapable(ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN), off, len);
+    }
+
+    for (int i = off; i < off + len; i++) {
+      if (ESCAPE_CODES[data[i] & 0xff] != 0) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Finds the first byte which needs escaping, i.e. {@code 0x7d} or {@code 0x7e}, in a range of a
+   * buffer, eight bytes per step. The position and limit of the buffer are not used nor changed.
+   *
+   * @param buf the buffer to search, heap or direct and of any byte order
+   * @param off the absolute index to start searching from
+   * @param len the number of bytes to search
+   * @return the absolute index of the first byte which needs escaping, or {@code -1} if not found
+   */
+  public static int indexOfEscapable(ByteBuffer buf, int off, int len) {
+    int end = off + len;
+    for (; off <= end - 8; off += 8) {
+      long word = buf.getLong(off);
+      long found = zeroLanes(word ^ LANES_7D) | zeroLanes(word ^ LANES_7E);
+      if (found != 0) {
+        return off + firstLane(buf, found);
+      }
+    }
+
+    for (; off < end; off++) {
+      if (ESCAPE_CODES[buf.get(off) & 0xff] != 0) {
+        return off;
+      }
+    }
+
+    return -1;
+  }
+
+  /** Returns the offset of the lowest addressed lane marked in a word read from the buffer. */
+  private static int firstLane(ByteBuffer buf, long marked) {
+    return (buf.order() == ByteOrder.LITTLE_ENDIAN
+            ? Long.numberOfTrailingZeros(marked)
+            : Long.numberOfLeadingZeros(marked)) >>> 3;
+  }
+
+  /**
+   * Marks the zero bytes of a word with their high bit. Adding the low seven bits of a lane never
+   * carries into the next lane, so every lane is marked exactly, whatever the byte order.
+   */
+  private static long zeroLanes(long word) {
+    return ~(((word & LANES_LOW_7) + LANES_LOW_7) | word | LANES_LOW_7);
+  }
+
   /**
    * Returns a byte array representation of the XOR result of each pair of bytes in the given
    * arrays. The higher bytes will be aligned.
@@ -237,24 +432,89 @@ public class ArrayUtils {
       return EMPTY_BYTE_ARRAY;
     }
 
-    List<Byte> out = new LinkedList<>();
-
-    for (byte b : in) {
-      switch (b) {
-        case 0x7d:
-          out.add((byte) 0x7d);
-          out.add((byte) 0x01);
-          break;
-        case 0x7e:
-          out.add((byte) 0x7d);
-          out.add((byte) 0x02);
-          break;
-        default:
-          out.add(b);
+    return escape(in, 0, in.length);
+  }
+
+  /**
+   * Escapes a range of bytes in a byte array using JT/T808 rules. The result array is sized exactly
+   * after counting the bytes which need escaping.
+   *
+   * @param in  the byte array to escape values in, may be {@code null}
+   * @param off the index of the first byte to escape
+   * @param len the number of bytes to escape
+   * @return an array with escaped values, {@link #EMPTY_BYTE_ARRAY} if null or empty array input
+   */
+  public static byte[] escape(byte[] in, int off, int len) {
+    if (isEmpty(in) || len <= 0) {
+      return EMPTY_BYTE_ARRAY;
+    }
+    checkRange(in, off, len);
+
+    byte[] out = new byte[len + countEscapes(in, off, len)];
+    escape(in, off, len, out, 0);
+
+    return out;
+  }
+
+  /**
+   * Escapes a range of bytes using JT/T808 rules into a destination array. The destination must be
+   * able to hold the length plus {@link #countEscapes(byte[], int, int)} bytes.
+   *
+   * @param src    the source array
+   * @param off    the index of the first byte to escape
+   * @param len    the number of bytes to escape
+   * @param dst    the destination array
+   * @param dstOff the index in the destination array to write the first byte to
+   * @return the number of bytes written to the destination array
+   * @throws IndexOutOfBoundsException if a range is out of the bounds of its array
+   */
+  public static int escape(byte[] src, int off, int len, byte[] dst, int dstOff) {
+    checkRange(src, off, len);
+    if (dstOff < 0 || dstOff > dst.length) {
+      throw new IndexOutOfBoundsException("Illegal destination offset.");
+    }
+
+    ByteBuffer words = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN);
+    int end = off + len;
+    int pos = dstOff;
+    while (off < end) {
+      // Copy the run of plain bytes up to the next byte which needs escaping at once
+      int next = indexOfEscapable(words, off, end - off);
+      int run = (next < 0 ? end : next) - off;
+      System.arraycopy(src, off, dst, pos, run);
+      pos += run;
+      off += run;
+      if (next >= 0) {
+        dst[pos++] = 0x7d;
+        dst[pos++] = ESCAPE_CODES[src[off++] & 0xff];
       }
     }
 
-    return ListUtils.toPrimitives(out);
+    return pos - dstOff;
+  }
+
+  /**
+   * Counts the bytes in a range of a byte array which need escaping, i.e. {@code 0x7d} and {@code
+   * 0x7e}.
+   *
+   * @param in  the byte array to test
+   * @param off the index of the first byte to test
+   * @param len the number of bytes to test
+   * @return the number of bytes which need escaping
+   */
+  public static int countEscapes(byte[] in, int off, int len) {
+    checkRange(in, off, len);
+
+    ByteBuffer words = ByteBuffer.wrap(in).order(ByteOrder.LITTLE_ENDIAN);
+    int end = off + len;
+    int count = 0;
+    int next;
+    while (off < end && (next = indexOfEscapable(words, off, end - off)) >= 0) {
+      count++;
+      off = next + 1;
+    }
+
+    return count;
   }
 
   /**
@@ -265,27 +525,87 @@ public class ArrayUtils {
    *
    * @param in the byte array to unescape, may be {@code null}
    * @return a new unescaped byte array, {@link #EMPTY_BYTE_ARRAY} if null or empty array input
+   * @throws IllegalArgumentException if an illegal escape sequence is found
    */
   public static byte[] unescape(byte[] in) {
     if (isEmpty(in)) {
       return EMPTY_BYTE_ARRAY;
     }
 
-    List<Byte> out = new LinkedList<>();
+    return unescape(in, 0, in.length);
+  }
 
-    for (int i = 0; i < in.length; i++) {
-      if (in[i] != 0x7d) {
-        out.add(in[i]);
+  /**
+   * Unescape any JT/T808 pattern found in a range of the byte array. The result array is sized
+   * exactly after counting the escape sequences.
+   *
+   * @param in  the byte array to unescape, may be {@code null}
+   * @param off the index of the first byte to unescape
+   * @param len the number of bytes to unescape
+   * @return a new unescaped byte array, {@link #EMPTY_BYTE_ARRAY} if null or empty array input
+   * @throws IllegalArgumentException if an illegal escape sequence is found
+   */
+  public static byte[] unescape(byte[] in, int off, int len) {
+    if (isEmpty(in) || len <= 0) {
+      return EMPTY_BYTE_ARRAY;
+    }
+    checkRange(in, off, len);
+
+    int escapes = 0;
+    for (int i = off; i < off + len; i++) {
+      if (in[i] == 0x7d) {
+        escapes++;
+      }
+    }
+
+    byte[] out = new byte[len - escapes];
+    unescape(in, off, len, out, 0);
+
+    return out;
+  }
+
+  /**
+   * Unescape any JT/T808 pattern found in a range of the byte array, and moves the result to the
+   * beginning of the range. Since unescaping never makes data longer, no other array is needed.
+   *
+   * @param buf the byte array to unescape
+   * @param off the index of the first byte to unescape
+   * @param len the number of bytes to unescape
+   * @return the length of the unescaped data starting at {@code off}
+   * @throws IllegalArgumentException if an illegal escape sequence is found
+   */
+  public static int unescapeInPlace(byte[] buf, int off, int len) {
+    checkRange(buf, off, len);
+
+    return unescape(buf, off, len, buf, off);
+  }
+
+  private static int unescape(byte[] src, int off, int len, byte[] dst, int dstOff) {
+    int end = off + len;
+    int pos = dstOff;
+    for (int i = off; i < end; i++) {
+      byte b = src[i];
+      if (b != 0x7d) {
+        dst[pos++] = b;
         continue;
       }
-      if (in[++i] == 0x01) {
-        out.add((byte) 0x7d);
-      } else {
-        out.add((byte) 0x7e);
+      if (++i == end) {
+        throw new IllegalArgumentException("Incomplete escape sequence.");
+      }
+      byte raw = UNESCAPE_CODES[src[i] & 0xff];
+      if (raw == 0) {
+        throw new IllegalArgumentException("Illegal escape sequence.");
       }
+      dst[pos++] = raw;
     }
 
-    return ListUtils.toPrimitives(out);
+    return pos - dstOff;
+  }
+
+  private static void checkRange(byte[] arr, int off, int len) {
+    if (off < 0 || len < 0 || off > arr.length - len) {
+      throw new IndexOutOfBoundsException("Illegal offset or length.");
+    }
   }
 
   /**
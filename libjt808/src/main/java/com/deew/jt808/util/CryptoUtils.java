@@ -1,7 +1,5 @@
 package com.deew.jt808.util;
 
-import android.util.Log;
-
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -0,0 +1,308 @@
+package com.deew.jt808.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer optimized for a large number of short timeouts which are mostly cancelled before they
+ * expire, like the timeouts of replies and partial messages.
+ * <p>
+ * Timeouts are hashed into the buckets of a wheel by their deadline. A single worker thread
+ * advances the wheel one bucket per tick and runs the tasks which have expired, so scheduling and
+ * cancelling are O(1) and the accuracy is one tick. Tasks run on the worker thread, they should
+ * complete quickly or hand the work over to another thread.
+ *
+ */
+public class HashedWheelTimer {
+
+  private static final String TAG = LogUtils.makeTag(HashedWheelTimer.class);
+
+  private static final long DEFAULT_TICK_MILLIS = 100;
+  private static final int  DEFAULT_WHEEL_SIZE  = 512;
+
+  private static HashedWheelTimer sDefault;
+
+  private final String   mName;
+  private final long     mTickNanos;
+  private final Bucket[] mWheel;
+  private final int      mMask;
+
+  // Timeouts are handed over to the worker thread through these queues, so only the worker thread
+  // touches the buckets
+  private final Queue<TimeoutImpl> mAdded     = new ConcurrentLinkedQueue<>();
+  private final Queue<TimeoutImpl> mCancelled = new ConcurrentLinkedQueue<>();
+
+  private final Object mStartLock = new Object();
+  private Thread       mWorker;
+
+  private volatile long    mStartTime;
+  private volatile boolean mStopped;
+
+  // The number of ticks elapsed, only touched by the worker thread
+  private long mTick;
+
+  /**
+   * Returns the timer shared by all connections of the library. It is created on first use, its
+   * worker is a daemon thread which ticks every 100 milliseconds.
+   *
+   * @return the shared timer
+   */
+  public static synchronized HashedWheelTimer getDefault() {
+    if (sDefault == null) {
+      sDefault = new HashedWheelTimer("JT808 Timer", DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS,
+                                      DEFAULT_WHEEL_SIZE);
+    }
+    return sDefault;
+  }
+
+  /**
+   * Creates a new timer. The worker thread is started when the first timeout is scheduled.
+   *
+   * @param name          the name of the worker thread
+   * @param tickDuration  the duration between ticks
+   * @param unit          the time unit of the tick duration
+   * @param ticksPerWheel the number of buckets, rounded up to a power of two
+   */
+  public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+    if (tickDuration <= 0) {
+      throw new IllegalArgumentException("Tick duration must be positive.");
+    }
+    if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+      throw new IllegalArgumentException("Illegal number of ticks per wheel.");
+    }
+
+    int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+    mName = name;
+    mTickNanos = unit.toNanos(tickDuration);
+    mWheel = new Bucket[Math.max(size, 1)];
+    for (int i = 0; i < mWheel.length; i++) {
+      mWheel[i] = new Bucket();
+    }
+    mMask = mWheel.length - 1;
+  }
+
+  /**
+   * Schedules the specified task for one-time execution after the specified delay.
+   *
+   * @param task  the task to run
+   * @param delay the delay before the task runs
+   * @param unit  the time unit of the delay
+   * @return a handle which can cancel the task
+   * @throws IllegalStateException if the timer has been stopped
+   */
+  public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+    if (task == null) {
+      throw new NullPointerException("Task is null.");
+    }
+    if (mStopped) {
+      throw new IllegalStateException("Timer has been stopped.");
+    }
+
+    start();
+
+    long deadline = System.nanoTime() - mStartTime + Math.max(unit.toNanos(delay), 0);
+    TimeoutImpl timeout = new TimeoutImpl(task, deadline);
+    mAdded.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * Stops the worker thread. Pending timeouts are dropped without being run. The shared timer
+   * should never be stopped.
+   */
+  public void stop() {
+    mStopped = true;
+    synchronized (mStartLock) {
+      if (mWorker != null) {
+        mWorker.interrupt();
+      }
+    }
+  }
+
+  private void start() {
+    synchronized (mStartLock) {
+      if (mWorker == null) {
+        mStartTime = System.nanoTime();
+        mWorker = new Thread(new Worker(), mName);
+        mWorker.setDaemon(true);
+        mWorker.start();
+      }
+    }
+  }
+
+  /** A handle associated with a task scheduled by a {@link HashedWheelTimer}. */
+  public interface Timeout {
+
+    /**
+     * Attempts to cancel the associated task. It fails if the task has already run or has already
+     * been cancelled.
+     *
+     * @return {@code true} if the task has been cancelled by this call
+     */
+    boolean cancel();
+
+    /**
+     * Returns if the associated task has already run.
+     *
+     * @return {@code true} if the task has expired
+     */
+    boolean isExpired();
+
+  }
+
+  private class Worker implements Runnable {
+
+    @Override
+    public void run() {
+      while (!mStopped) {
+        if (!waitForNextTick()) {
+          break;
+        }
+
+        removeCancelled();
+        transferAdded();
+        mWheel[(int) (mTick & mMask)].expire(mTick);
+        mTick++;
+      }
+    }
+
+    /** Sleeps until the end of the current tick, returns false if interrupted by stop(). */
+    private boolean waitForNextTick() {
+      long deadline = mTickNanos * (mTick + 1);
+      while (true) {
+        long sleepNanos = deadline - (System.nanoTime() - mStartTime);
+        if (sleepNanos <= 0) {
+          return true;
+        }
+        try {
+          Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos + 999999));
+        } catch (InterruptedException ie) {
+          if (mStopped) {
+            return false;
+          }
+        }
+      }
+    }
+
+    private void transferAdded() {
+      TimeoutImpl timeout;
+      while ((timeout = mAdded.poll()) != null) {
+        if (timeout.mState.get() != TimeoutImpl.ST_INIT) {
+          continue;
+        }
+        long ticks = Math.max(timeout.mDeadline / mTickNanos, mTick);
+        timeout.mRounds = (ticks - mTick) / mWheel.length;
+        mWheel[(int) (ticks & mMask)].add(timeout);
+      }
+    }
+
+    private void removeCancelled() {
+      TimeoutImpl timeout;
+      while ((timeout = mCancelled.poll()) != null) {
+        if (timeout.mBucket != null) {
+          timeout.mBucket.remove(timeout);
+        }
+      }
+    }
+
+  }
+
+  /** A doubly linked list of timeouts, only touched by the worker thread. */
+  private static final class Bucket {
+
+    private TimeoutImpl mHead;
+    private TimeoutImpl mTail;
+
+    void add(TimeoutImpl timeout) {
+      timeout.mBucket = this;
+      if (mHead == null) {
+        mHead = mTail = timeout;
+      } else {
+        mTail.mNext = timeout;
+        timeout.mPrev = mTail;
+        mTail = timeout;
+      }
+    }
+
+    void remove(TimeoutImpl timeout) {
+      if (timeout.mPrev != null) {
+        timeout.mPrev.mNext = timeout.mNext;
+      } else {
+        mHead = timeout.mNext;
+      }
+      if (timeout.mNext != null) {
+        timeout.mNext.mPrev = timeout.mPrev;
+      } else {
+        mTail = timeout.mPrev;
+      }
+      timeout.mPrev = timeout.mNext = null;
+      timeout.mBucket = null;
+    }
+
+    void expire(long tick) {
+      TimeoutImpl timeout = mHead;
+      while (timeout != null) {
+        TimeoutImpl next = timeout.mNext;
+        if (timeout.mRounds <= 0) {
+          remove(timeout);
+          timeout.expire();
+        } else {
+          timeout.mRounds--;
+        }
+        timeout = next;
+      }
+    }
+
+  }
+
+  private final class TimeoutImpl implements Timeout {
+
+    static final int ST_INIT      = 0;
+    static final int ST_CANCELLED = 1;
+    static final int ST_EXPIRED   = 2;
+
+    private final Runnable      mTask;
+    private final long          mDeadline;
+    private final AtomicInteger mState = new AtomicInteger(ST_INIT);
+
+    // Worker thread only
+    private long        mRounds;
+    private Bucket      mBucket;
+    private TimeoutImpl mPrev;
+    private TimeoutImpl mNext;
+
+    TimeoutImpl(Runnable task, long deadline) {
+      mTask = task;
+      mDeadline = deadline;
+    }
+
+    @Override
+    public boolean cancel() {
+      if (!mState.compareAndSet(ST_INIT, ST_CANCELLED)) {
+        return false;
+      }
+      mCancelled.add(this);
+      return true;
+    }
+
+    @Override
+    public boolean isExpired() {
+      return mState.get() == ST_EXPIRED;
+    }
+
+    void expire() {
+      if (!mState.compareAndSet(ST_INIT, ST_EXPIRED)) {
+        return;
+      }
+      try {
+        mTask.run();
+      } catch (Throwable t) {
+        Log.w(TAG, "expire: Task " + mTask + " raised an exception.", t);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,190 @@
+package com.deew.jt808.util;
+
+/**
+ * Logging facade of the library, which mirrors {@code android.util.Log} and costs nothing for a
+ * disabled level.
+ * <p>
+ * Every method compares the level with {@link #getLevel()} before anything else. Messages made of
+ * a text and a single value, like the packet read or written, are logged with {@link #d(String,
+ * String, Object)}, which concatenates the value only if the level is enabled. Other messages are
+ * built by a {@link Supplier}, or guarded with {@link #isLoggable(int)}, on the paths run for every
+ * packet.
+ * <p>
+ * Messages go to a {@link Backend}: {@link AndroidLogBackend} from {@link #INFO} on a device, and
+ * {@link #NOOP} with every level disabled on a plain JVM.
+ *
+ */
+public final class Log {
+
+  public static final int VERBOSE = 2;
+  public static final int DEBUG   = 3;
+  public static final int INFO    = 4;
+  public static final int WARN    = 5;
+  public static final int ERROR   = 6;
+  /** Disables every level. */
+  public static final int NONE    = 8;
+
+  /** Receives the messages of the enabled levels. */
+  public interface Backend {
+
+    /**
+     * Writes a message.
+     *
+     * @param level the level of the message
+     * @param tag   the tag of the class logging the message
+     * @param msg   the message
+     * @param tr    the exception to log along, or {@code null}
+     */
+    void println(int level, String tag, String msg, Throwable tr);
+
+  }
+
+  /** Builds a message once its level is known to be enabled. */
+  public interface Supplier {
+
+    /**
+     * Returns the message.
+     *
+     * @return the message to log
+     */
+    String get();
+
+  }
+
+  /** Drops every message. */
+  public static final Backend NOOP = new Backend() {
+    @Override
+    public void println(int level, String tag, String msg, Throwable tr) {
+    }
+  };
+
+  private static volatile Backend sBackend;
+  private static volatile int     sLevel;
+
+  static {
+    // ART still reports itself as Dalvik
+    String vm = System.getProperty("java.vm.name");
+    if (vm != null && vm.startsWith("Dalvik")) {
+      sBackend = new AndroidLogBackend();
+      sLevel = INFO;
+    } else {
+      sBackend = NOOP;
+      sLevel = NONE;
+    }
+  }
+
+  private Log() {
+  }
+
+  /**
+   * Sets the backend which receives the messages.
+   *
+   * @param backend the backend, or {@code null} for {@link #NOOP}
+   */
+  public static void setBackend(Backend backend) {
+    sBackend = backend != null ? backend : NOOP;
+  }
+
+  /**
+   * Returns the lowest level logged.
+   *
+   * @return the lowest enabled level, {@link #NONE} if every level is disabled
+   */
+  public static int getLevel() {
+    return sLevel;
+  }
+
+  /**
+   * Sets the lowest level logged, such as {@link #DEBUG} to log every packet.
+   *
+   * @param level the lowest enabled level, or {@link #NONE} to disable every level
+   */
+  public static void setLevel(int level) {
+    sLevel = level;
+  }
+
+  /**
+   * Returns if messages of the specified level are logged.
+   *
+   * @param level the level
+   * @return {@code true} if the level is enabled
+   */
+  public static boolean isLoggable(int level) {
+    return level >= sLevel;
+  }
+
+  public static void v(String tag, String msg) {
+    if (VERBOSE >= sLevel) {
+      sBackend.println(VERBOSE, tag, msg, null);
+    }
+  }
+
+  public static void d(String tag, String msg) {
+    if (DEBUG >= sLevel) {
+      sBackend.println(DEBUG, tag, msg, null);
+    }
+  }
+
+  /**
+   * Logs a debug message followed by a value, which is only turned into a string if the level is
+   * enabled.
+   *
+   * @param tag the tag of the class logging the message
+   * @param msg the beginning of the message
+   * @param arg the value ending the message
+   */
+  public static void d(String tag, String msg, Object arg) {
+    if (DEBUG >= sLevel) {
+      sBackend.println(DEBUG, tag, msg + arg, null);
+    }
+  }
+
+  /**
+   * Logs a debug message, which is only built if the level is enabled.
+   *
+   * @param tag      the tag of the class logging the message
+   * @param supplier builds the message
+   */
+  public static void d(String tag, Supplier supplier) {
+    if (DEBUG >= sLevel) {
+      sBackend.println(DEBUG, tag, supplier.get(), null);
+    }
+  }
+
+  public static void d(String tag, String msg, Throwable tr) {
+    if (DEBUG >= sLevel) {
+      sBackend.println(DEBUG, tag, msg, tr);
+    }
+  }
+
+  public static void i(String tag, String msg) {
+    if (INFO >= sLevel) {
+      sBackend.println(INFO, tag, msg, null);
+    }
+  }
+
+  public static void w(String tag, String msg) {
+    if (WARN >= sLevel) {
+      sBackend.println(WARN, tag, msg, null);
+    }
+  }
+
+  public static void w(String tag, String msg, Throwable tr) {
+    if (WARN >= sLevel) {
+      sBackend.println(WARN, tag, msg, tr);
+    }
+  }
+
+  public static void e(String tag, String msg) {
+    if (ERROR >= sLevel) {
+      sBackend.println(ERROR, tag, msg, null);
+    }
+  }
+
+  public static void e(String tag, String msg, Throwable tr) {
+    if (ERROR >= sLevel) {
+      sBackend.println(ERROR, tag, msg, tr);
+    }
+  }
+
+}
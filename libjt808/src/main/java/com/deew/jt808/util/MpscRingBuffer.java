@@ -0,0 +1,253 @@
+package com.deew.jt808.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free queue for many producer threads and a single consumer thread.
+ * <p>
+ * Every slot of the ring carries a sequence number telling whose turn it is: a producer claims the
+ * next position with a single CAS and publishes its element by advancing the sequence of the slot,
+ * the consumer frees a slot by advancing its sequence by a lap. Producers never wait for each other
+ * and never take a lock, nor does the consumer.
+ * <p>
+ * The consumer waits for elements with {@link #await(long, TimeUnit)}, which spins a little, then
+ * parks until a producer offers an element or {@link #signal()} is called. Rings sharing a {@link
+ * Parker} wake up the same consumer, which then waits on all of them at once. A producer finding the
+ * ring full in {@link #put(Object)} backs off by yielding, then by parking for short periods, so the
+ * consumer never has to wake producers up.
+ * <p>
+ * {@link #poll()}, {@link #peek()}, {@link #await(long, TimeUnit)} and {@link #clear()} must only
+ * be called by the consumer thread. Producers may however drop the oldest element with {@link
+ * #evict()} to make room, the head is taken with a CAS so it is never consumed twice.
+ *
+ * @param <E> the type of the elements
+ */
+public class MpscRingBuffer<E> {
+
+  // Number of times a producer finding the ring full yields to the consumer before parking
+  private static final int  YIELDS          = 256;
+  // Time a producer parks while the ring is full
+  private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  private final int                     mMask;
+  private final AtomicReferenceArray<E> mElements;
+  private final AtomicLongArray         mSequences;
+  private final AtomicLong              mTail = new AtomicLong();
+  private final Parker                  mParker;
+
+  // The next position to consume, advanced by the consumer or by a producer evicting the head
+  private final AtomicLong mHead = new AtomicLong();
+
+  private final Parker.Condition mNotEmpty = new Parker.Condition() {
+    @Override
+    public boolean isMet() {
+      return !isEmpty();
+    }
+  };
+
+  /**
+   * Creates a new ring buffer.
+   *
+   * @param capacity the maximum number of elements, rounded up to a power of two
+   */
+  public MpscRingBuffer(int capacity) {
+    this(capacity, new Parker());
+  }
+
+  /**
+   * Creates a new ring buffer whose consumer is woken up with the specified parker.
+   *
+   * @param capacity the maximum number of elements, rounded up to a power of two
+   * @param parker   the parker of the consumer, which may be shared with other rings
+   */
+  public MpscRingBuffer(int capacity, Parker parker) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Illegal capacity.");
+    }
+
+    int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    mParker = parker;
+    mMask = size - 1;
+    mElements = new AtomicReferenceArray<>(size);
+    mSequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      mSequences.set(i, i);
+    }
+  }
+
+  /**
+   * Returns the number of elements the ring holds.
+   *
+   * @return the capacity
+   */
+  public int capacity() {
+    return mMask + 1;
+  }
+
+  /**
+   * Inserts an element if the ring is not full, without waiting.
+   *
+   * @param e the element to insert
+   * @return {@code true} if the element was inserted, {@code false} if the ring is full
+   */
+  public boolean offer(E e) {
+    if (e == null) {
+      throw new NullPointerException("Element is null.");
+    }
+
+    while (true) {
+      long pos = mTail.get();
+      int idx = (int) pos & mMask;
+      long diff = mSequences.get(idx) - pos;
+      if (diff == 0) {
+        if (mTail.compareAndSet(pos, pos + 1)) {
+          mElements.lazySet(idx, e);
+          // A full barrier, so the consumer parking concurrently either sees the element or is seen
+          mSequences.set(idx, pos + 1);
+          mParker.wake();
+          return true;
+        }
+      } else if (diff < 0) {
+        // The consumer has not freed the slot a lap ago yet
+        return false;
+      }
+      // Another producer claimed the position, try the next one
+    }
+  }
+
+  /**
+   * Inserts an element, waiting for space if the ring is full.
+   *
+   * @param e the element to insert
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void put(E e) throws InterruptedException {
+    offer(e, 0, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Inserts an element, waiting up to the specified time for space if the ring is full.
+   *
+   * @param e       the element to insert
+   * @param timeout the maximum time to wait, 0 to wait without timeout
+   * @param unit    the time unit of the timeout
+   * @return {@code true} if the element was inserted, {@code false} if the timeout elapsed
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = timeout > 0 ? System.nanoTime() + unit.toNanos(timeout) : 0;
+    int spins = 0;
+    while (!offer(e)) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+      if (++spins < YIELDS) {
+        // Let the consumer run
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(this, FULL_PARK_NANOS);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Retrieves and removes the head of the ring. Must be called by the consumer thread.
+   *
+   * @return the head, or {@code null} if the ring is empty
+   */
+  public E poll() {
+    while (true) {
+      long pos = mHead.get();
+      int idx = (int) pos & mMask;
+      if (mSequences.get(idx) != pos + 1) {
+        return null;
+      }
+      if (mHead.compareAndSet(pos, pos + 1)) {
+        E e = mElements.get(idx);
+        mElements.lazySet(idx, null);
+        // Frees the slot for the producers of the next lap
+        mSequences.lazySet(idx, pos + mMask + 1);
+        return e;
+      }
+      // Evicted by a producer, try the next one
+    }
+  }
+
+  /**
+   * Removes the oldest element of the ring to make room. Unlike {@link #poll()}, it may be called by
+   * any thread.
+   *
+   * @return the element removed, or {@code null} if the ring is empty
+   */
+  public E evict() {
+    return poll();
+  }
+
+  /**
+   * Retrieves the head of the ring without removing it. Must be called by the consumer thread.
+   *
+   * @return the head, or {@code null} if the ring is empty
+   */
+  public E peek() {
+    long pos = mHead.get();
+    int idx = (int) pos & mMask;
+    return mSequences.get(idx) == pos + 1 ? mElements.get(idx) : null;
+  }
+
+  /**
+   * Returns if the ring has no element ready to be consumed.
+   *
+   * @return {@code true} if the ring is empty
+   */
+  public boolean isEmpty() {
+    long pos = mHead.get();
+    return mSequences.get((int) pos & mMask) != pos + 1;
+  }
+
+  /**
+   * Returns the number of elements in the ring, including the ones still being inserted.
+   *
+   * @return the number of elements
+   */
+  public int size() {
+    long size = mTail.get() - mHead.get();
+    return size < 0 ? 0 : (int) Math.min(size, mMask + 1);
+  }
+
+  /** Removes every element of the ring. Must be called by the consumer thread. */
+  public void clear() {
+    while (poll() != null) {
+      // Drop it
+    }
+  }
+
+  /**
+   * Waits until the ring is not empty, {@link #signal()} is called or the timeout elapses. It
+   * spins before parking the thread, so a busy producer is picked up without a context switch. It
+   * may also return spuriously, the caller should check again what it is waiting for. Must be
+   * called by the consumer thread.
+   *
+   * @param timeout the maximum time to wait, 0 to wait without timeout
+   * @param unit    the time unit of the timeout
+   */
+  public void await(long timeout, TimeUnit unit) {
+    mParker.await(mNotEmpty, timeout, unit);
+  }
+
+  /**
+   * Wakes the consumer up if it is waiting in {@link #await(long, TimeUnit)}, or makes its next
+   * wait return at once. It is used to tell the consumer about anything else than elements.
+   */
+  public void signal() {
+    mParker.signal();
+  }
+
+}
@@ -0,0 +1,94 @@
+package com.deew.jt808.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks a single consumer thread until producers have something for it, without a lock.
+ * <p>
+ * The consumer waits with {@link #await(Condition, long, TimeUnit)}, producers call {@link #wake()}
+ * once they published their work, or {@link #signal()} to make the consumer check again something
+ * the condition does not cover. Only the first producer to find the consumer parked unparks it,
+ * the next ones pay for a single read. Several queues may share a parker, so the consumer waits on
+ * all of them at once.
+ *
+ */
+public class Parker {
+
+  // Number of times the consumer checks the condition before parking, spinning is pointless on a
+  // single processor since the producers cannot run meanwhile
+  static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 128 : 0;
+
+  // The consumer while it is parked, taken by the first producer which wakes it up
+  private final AtomicReference<Thread> mConsumer = new AtomicReference<>();
+  private volatile boolean              mSignalled;
+
+  /**
+   * Waits until the condition is met, {@link #signal()} is called or the timeout elapses. It spins
+   * before parking the thread, so a busy producer is picked up without a context switch. It may
+   * also return spuriously, the caller should check again what it is waiting for.
+   *
+   * @param condition what the consumer waits for, it must become true before producers wake it
+   * @param timeout   the maximum time to wait, 0 to wait without timeout
+   * @param unit      the time unit of the timeout
+   */
+  public void await(Condition condition, long timeout, TimeUnit unit) {
+    for (int i = 0; i < SPINS; i++) {
+      if (condition.isMet() || mSignalled) {
+        mSignalled = false;
+        return;
+      }
+    }
+
+    mConsumer.set(Thread.currentThread());
+    // Check again once registered, producers unpark only a registered consumer
+    if (!condition.isMet() && !mSignalled) {
+      if (timeout > 0) {
+        LockSupport.parkNanos(this, unit.toNanos(timeout));
+      } else {
+        LockSupport.park(this);
+      }
+    }
+    mConsumer.lazySet(null);
+    mSignalled = false;
+    if (SPINS == 0) {
+      // Woken up by the first element, let the producers add more before draining them all at once
+      // instead of switching threads for every element
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Wakes the consumer up if it is waiting. The producer must have made the condition true before,
+   * with a volatile write, so the consumer parking concurrently either sees it or is seen.
+   */
+  public void wake() {
+    Thread consumer = mConsumer.get();
+    if (consumer != null && mConsumer.compareAndSet(consumer, null)) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  /**
+   * Wakes the consumer up if it is waiting, or makes its next wait return at once. It is used to
+   * tell the consumer about anything else than the condition.
+   */
+  public void signal() {
+    mSignalled = true;
+    wake();
+  }
+
+  /** What the consumer waits for. */
+  public interface Condition {
+
+    /**
+     * Returns if the consumer has something to do. Called on the consumer thread.
+     *
+     * @return {@code true} if the wait is over
+     */
+    boolean isMet();
+
+  }
+
+}
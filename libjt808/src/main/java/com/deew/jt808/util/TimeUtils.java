@@ -1,7 +1,5 @@
 package com.deew.jt808.util;
 
-import android.util.Log;
-
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -2,6 +2,8 @@ package ml.that.jt808;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -86,6 +88,53 @@ public class ArrayUtilsTest {
     assertEquals(0x6e, ArrayUtils.xorCheck(new byte[]{ 0x30, 0x7e, 0x08, 0x7d, 0x55 }));
   }
 
+  @Test
+  public void testXorCheckRange() {
+    byte[] sample = new byte[100];
+    byte expected = 0;
+    for (int i = 0; i < sample.length; i++) {
+      sample[i] = (byte) (i * 37 + 11);
+      if (i >= 3 && i < 94) {
+        expected ^= sample[i];
+      }
+    }
+
+    assertEquals(expected, ArrayUtils.xorCheck(sample, 3, 91));
+    assertEquals(expected, ArrayUtils.xorCheck(ByteBuffer.wrap(sample), 3, 91));
+    assertEquals(0, ArrayUtils.xorCheck(sample, 3, 0));
+  }
+
+  @Test
+  public void testIndexOf() {
+    byte[] sample = new byte[64];
+    sample[0] = 0x7e;
+    sample[41] = 0x7e;
+    sample[40] = 0x01;
+    sample[42] = 0x7e;
+
+    assertEquals(41, ArrayUtils.indexOf(sample, 1, 63, (byte) 0x7e));
+    assertEquals(41, ArrayUtils.indexOf(ByteBuffer.wrap(sample), 1, 63, (byte) 0x7e));
+    assertEquals(-1, ArrayUtils.indexOf(sample, 1, 40, (byte) 0x7e));
+    assertEquals(0, ArrayUtils.indexOf(sample, 0, 4, (byte) 0x7e));
+  }
+
+  @Test
+  public void testIndexOfEscapable() {
+    byte[] sample = new byte[64];
+    for (int i = 0; i < sample.length; i++) {
+      sample[i] = 0x7c;
+    }
+    sample[29] = 0x7d;
+    sample[30] = 0x7e;
+    sample[61] = 0x7e;
+
+    assertEquals(29, ArrayUtils.indexOfEscapable(sample, 0, 64));
+    assertEquals(30, ArrayUtils.indexOfEscapable(sample, 30, 34));
+    assertEquals(61, ArrayUtils.indexOfEscapable(ByteBuffer.wrap(sample), 31, 33));
+    assertEquals(-1, ArrayUtils.indexOfEscapable(sample, 31, 30));
+    assertEquals(61, ArrayUtils.indexOfEscapable(sample, 60, 4));
+  }
+
   @Test
   public void testEscape() {
     assertArrayEquals(new byte[]{ 0x30, 0x7d, 0x02, 0x08, 0x7d, 0x01, 0x55 },
@@ -98,6 +147,40 @@ public class ArrayUtilsTest {
                       ArrayUtils.unescape(new byte[]{ 0x30, 0x7d, 0x02, 0x08, 0x7d, 0x01, 0x55 }));
   }
 
+  @Test
+  public void testEscapeRange() {
+    byte[] sample = new byte[]{ 0x11, 0x30, 0x7e, 0x08, 0x7d, 0x55, 0x11 };
+
+    assertEquals(2, ArrayUtils.countEscapes(sample, 1, 5));
+    assertArrayEquals(new byte[]{ 0x30, 0x7d, 0x02, 0x08, 0x7d, 0x01, 0x55 },
+                      ArrayUtils.escape(sample, 1, 5));
+
+    byte[] dst = new byte[9];
+    assertEquals(7, ArrayUtils.escape(sample, 1, 5, dst, 1));
+    assertArrayEquals(new byte[]{ 0x00, 0x30, 0x7d, 0x02, 0x08, 0x7d, 0x01, 0x55, 0x00 }, dst);
+  }
+
+  @Test
+  public void testUnescapeRange() {
+    assertArrayEquals(new byte[]{ 0x30, 0x7e, 0x08, 0x7d, 0x55 },
+                      ArrayUtils.unescape(new byte[]{ 0x7e, 0x30, 0x7d, 0x02, 0x08, 0x7d, 0x01,
+                                                      0x55, 0x7e }, 1, 7));
+  }
+
+  @Test
+  public void testUnescapeInPlace() {
+    byte[] sample = new byte[]{ 0x7e, 0x30, 0x7d, 0x02, 0x08, 0x7d, 0x01, 0x55, 0x7e };
+
+    assertEquals(5, ArrayUtils.unescapeInPlace(sample, 1, 7));
+    assertArrayEquals(new byte[]{ 0x7e, 0x30, 0x7e, 0x08, 0x7d, 0x55 },
+                      Arrays.copyOf(sample, 6));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnescapeIllegalSequence() {
+    ArrayUtils.unescape(new byte[]{ 0x30, 0x7d, 0x03 });
+  }
+
   @Test
   public void testShortsToBytes() {
     assertArrayEquals(new byte[]{ 0x30, 0x7e, 0x08, 0x7d },
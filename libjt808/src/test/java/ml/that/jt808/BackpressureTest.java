@@ -0,0 +1,313 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.deew.jt808.conn.Connection;
+import com.deew.jt808.conn.ConnectionConfiguration;
+import com.deew.jt808.conn.OutboundQueue;
+import com.deew.jt808.conn.QueueFullException;
+import com.deew.jt808.conn.ReplyFuture;
+import com.deew.jt808.conn.WritabilityListener;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.PacketDecoder;
+import com.deew.jt808.msg.ServerGenericReply;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit test for the backpressure of {@link Connection}, will execute on the development
+ * machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class BackpressureTest {
+
+  // Multimedia data upload, a bulk message of 65 packets
+  private static final Message UPLOAD =
+      new Message.Builder((short) 0x0801).body(new byte[0x10000]).build();
+
+  @Test
+  public void testRejectAndWritability() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    ConnectionConfiguration cfg = new ConnectionConfiguration("127.0.0.1", server.getLocalPort());
+    cfg.setLaneCapacity(OutboundQueue.LANE_BULK, 4);
+    cfg.setOverflowPolicy(OutboundQueue.OVERFLOW_REJECT);
+    Connection conn = new Connection();
+    conn.setConfig(cfg);
+    Socket peer = connect(conn, server);
+
+    // The peer does not read, the socket fills up then the lane
+    int sent = 0;
+    try {
+      for (; sent < 2000; sent++) {
+        conn.sendMessage(UPLOAD);
+      }
+      fail("Lane never full.");
+    } catch (QueueFullException qfe) {
+      assertEquals(OutboundQueue.LANE_BULK, qfe.getLane());
+    }
+    // Let the writer block on the socket, then fill the lane again
+    awaitStalled(conn);
+    final CountDownLatch writable = new CountDownLatch(1);
+    conn.setWritabilityListener(new WritabilityListener() {
+      @Override
+      public void onWritable(int lane) {
+        if (lane == OutboundQueue.LANE_BULK) {
+          writable.countDown();
+        }
+      }
+    });
+    while (conn.trySend(UPLOAD)) {
+      sent++;
+    }
+    OutboundQueue queue = conn.getOutboundQueue();
+    assertFalse(queue.isWritable(OutboundQueue.LANE_BULK));
+    assertEquals(sent, queue.getEnqueuedCount(OutboundQueue.LANE_BULK));
+    // Other lanes are not affected
+    assertTrue(conn.trySend(new Message.Builder((short) 0x0900).body(new byte[1]).build()));
+
+    drain(peer);
+    assertTrue(writable.await(5, TimeUnit.SECONDS));
+    assertTrue(queue.isWritable(OutboundQueue.LANE_BULK));
+    assertTrue(conn.offer(UPLOAD, 5, TimeUnit.SECONDS));
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+  @Test
+  public void testSpillToDisk() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    ConnectionConfiguration cfg = new ConnectionConfiguration("127.0.0.1", server.getLocalPort());
+    cfg.setLaneCapacity(OutboundQueue.LANE_BULK, 4);
+    cfg.setOverflowPolicy(OutboundQueue.OVERFLOW_SPILL_TO_DISK);
+    Connection conn = new Connection();
+    conn.setConfig(cfg);
+    Socket peer = connect(conn, server);
+
+    OutboundQueue queue = conn.getOutboundQueue();
+    int sent = 0;
+    while (queue.getSpilledCount() < 20 && sent < 2000) {
+      // Never waits
+      conn.sendMessage(UPLOAD, OutboundQueue.LANE_BULK);
+      sent++;
+    }
+    assertEquals(20, queue.getSpilledCount());
+    assertTrue(queue.getSpillDepth() > 0);
+    assertFalse(conn.trySend(UPLOAD));
+
+    drain(peer);
+    for (int i = 0; i < 500 && (queue.getSpillDepth() > 0
+                                || queue.getDepth(OutboundQueue.LANE_BULK) > 0); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, queue.getSpillDepth());
+    assertEquals(0, queue.getDepth(OutboundQueue.LANE_BULK));
+    assertEquals(0, queue.getDroppedCount(OutboundQueue.LANE_BULK));
+    assertEquals(sent, queue.getEnqueuedCount(OutboundQueue.LANE_BULK) + queue.getSpilledCount());
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+  @Test
+  public void testTimeoutStartsOnceWritten() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    ConnectionConfiguration cfg = new ConnectionConfiguration("127.0.0.1", server.getLocalPort());
+    cfg.setLaneCapacity(OutboundQueue.LANE_BULK, 4);
+    Connection conn = new Connection();
+    conn.setConfig(cfg);
+    Socket peer = connect(conn, server);
+
+    // The peer does not read, the writer blocks on the socket
+    fillUntilStalled(conn);
+    ReplyFuture<ServerGenericReply> future =
+        conn.sendAsync(new Message.Builder((short) 0x0200).body(new byte[1]).build(), 200, 1);
+
+    // Waiting in the queue longer than the timeouts neither retransmits nor fails the request
+    Thread.sleep(1000);
+    assertFalse(future.isDone());
+    assertEquals(0, conn.getPendingAcks().getRetransmitCount());
+
+    drain(peer);
+    assertTimedOut(future);
+    assertEquals(1, conn.getPendingAcks().getRetransmitCount());
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+  @Test
+  public void testDropOldestBulk() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    ConnectionConfiguration cfg = new ConnectionConfiguration("127.0.0.1", server.getLocalPort());
+    cfg.setLaneCapacity(OutboundQueue.LANE_BULK, 4);
+    cfg.setOverflowPolicy(OutboundQueue.OVERFLOW_DROP_OLDEST_BULK);
+    cfg.setReconnectDelay(60000);
+    Connection conn = new Connection();
+    conn.setConfig(cfg);
+    Socket peer = connect(conn, server);
+
+    // Messages sent while the connection is lost wait in the queue
+    peer.close();
+    for (int i = 0; i < 500 && conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertFalse(conn.isConnected());
+    List<ReplyFuture<ServerGenericReply>> futures = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      futures.add(conn.sendAsync(new Message.Builder((short) 0x0704).body(new byte[1]).build(),
+                                 200, 1, OutboundQueue.LANE_BULK));
+    }
+
+    // The requests evicted by the last ones fail at once, the other ones keep waiting
+    for (int i = 0; i < 4; i++) {
+      assertTrue(futures.get(i).isDone());
+      try {
+        futures.get(i).get();
+        fail("Evicted request not failed.");
+      } catch (ExecutionException ee) {
+        assertTrue(ee.getCause() instanceof QueueFullException);
+      }
+    }
+    for (int i = 4; i < 8; i++) {
+      assertFalse(futures.get(i).isDone());
+    }
+    assertEquals(4, conn.getPendingAcks().size());
+    assertEquals(4, conn.getOutboundQueue().getDroppedCount(OutboundQueue.LANE_BULK));
+
+    conn.shutDown();
+    server.close();
+  }
+
+  @Test
+  public void testSpilledRequests() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    ConnectionConfiguration cfg = new ConnectionConfiguration("127.0.0.1", server.getLocalPort());
+    cfg.setLaneCapacity(OutboundQueue.LANE_BULK, 4);
+    cfg.setOverflowPolicy(OutboundQueue.OVERFLOW_SPILL_TO_DISK);
+    cfg.setReconnectDelay(1000);
+    Connection conn = new Connection();
+    conn.setConfig(cfg);
+    Socket peer = connect(conn, server);
+
+    // Messages sent while the connection is lost wait in the queue, then on disk
+    peer.close();
+    for (int i = 0; i < 500 && conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertFalse(conn.isConnected());
+    List<ReplyFuture<ServerGenericReply>> futures = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      futures.add(conn.sendAsync(new Message.Builder((short) 0x0704).body(new byte[1]).build(),
+                                 200, 1, OutboundQueue.LANE_BULK));
+    }
+    assertEquals(4, conn.getOutboundQueue().getSpilledCount());
+
+    // Once reconnected, every request is written in order then retransmitted once
+    peer = server.accept();
+    peer.setSoTimeout(5000);
+    PacketDecoder decoder = new PacketDecoder();
+    List<Packet> packets = new ArrayList<>();
+    List<Short> sns = new ArrayList<>();
+    while (sns.size() < 16) {
+      assertTrue(decoder.readFrom(peer.getInputStream()) > 0);
+      decoder.decode(packets);
+      for (Packet packet : packets) {
+        if (packet.getMsgId() == (short) 0x0704) {
+          sns.add(packet.getSn());
+        }
+      }
+      packets.clear();
+    }
+    for (int i = 1; i < 8; i++) {
+      assertEquals(sns.get(i - 1) + 1, (int) sns.get(i));
+    }
+    for (ReplyFuture<ServerGenericReply> future : futures) {
+      assertTimedOut(future);
+    }
+    assertEquals(8, conn.getPendingAcks().getRetransmitCount());
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+  private static void assertTimedOut(ReplyFuture<ServerGenericReply> future) throws Exception {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      fail("Request replied.");
+    } catch (ExecutionException ee) {
+      assertTrue(ee.getCause() instanceof TimeoutException);
+    }
+  }
+
+  private static Socket connect(Connection conn, ServerSocket server) throws Exception {
+    conn.connect();
+    Socket peer = server.accept();
+    for (int i = 0; i < 500 && !conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(conn.isConnected());
+    return peer;
+  }
+
+  // Fills the socket then the bulk lane, until the writer takes nothing from the full lane
+  private static void fillUntilStalled(Connection conn) throws Exception {
+    OutboundQueue queue = conn.getOutboundQueue();
+    do {
+      while (conn.trySend(UPLOAD)) {
+        // Fill the bulk lane
+      }
+      awaitStalled(conn);
+    } while (queue.getDepth(OutboundQueue.LANE_BULK) < queue.getCapacity(OutboundQueue.LANE_BULK));
+  }
+
+  // Waits until the writer makes no progress, the socket is full
+  private static void awaitStalled(Connection conn) throws Exception {
+    long written;
+    do {
+      written = conn.getWriteStats().getByteCount();
+      Thread.sleep(200);
+    } while (conn.getWriteStats().getByteCount() != written);
+  }
+
+  // Reads everything the connection writes from now on
+  private static void drain(Socket peer) throws Exception {
+    final InputStream in = peer.getInputStream();
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buf = new byte[8192];
+        try {
+          while (in.read(buf) >= 0) {
+            // Discard
+          }
+        } catch (Exception e) {
+          // Closed
+        }
+      }
+    });
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+}
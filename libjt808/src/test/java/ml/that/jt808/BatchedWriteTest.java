@@ -0,0 +1,140 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.deew.jt808.conn.Connection;
+import com.deew.jt808.conn.ConnectionConfiguration;
+import com.deew.jt808.conn.WriteStats;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.PacketDecoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for the batched writes of a blocking connection, will execute on the development
+ * machine (host) against a server socket on the loopback interface.
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class BatchedWriteTest {
+
+  @Test
+  public void testBacklog() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    Connection conn = new Connection();
+    conn.setConfig(new ConnectionConfiguration("127.0.0.1", server.getLocalPort()));
+    conn.connect();
+    Socket peer = server.accept();
+    peer.setSoTimeout(5000);
+    for (int i = 0; i < 500 && !conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(conn.isConnected());
+
+    int count = 300;
+    for (int i = 0; i < count; i++) {
+      conn.sendMessage(new Message.Builder((short) 0x0200).body(new byte[]{ (byte) i }).build());
+    }
+
+    PacketDecoder decoder = new PacketDecoder();
+    InputStream in = peer.getInputStream();
+    List<Packet> packets = new ArrayList<>();
+    int bytes = 0;
+    while (packets.size() < count) {
+      if (decoder.decode(packets) == 0) {
+        int len = decoder.readFrom(in);
+        assertTrue(len > 0);
+        bytes += len;
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      assertEquals((byte) i, packets.get(i).getPayload()[0]);
+    }
+
+    // The batch is counted once the flush returns, which may be after the peer read it
+    WriteStats stats = conn.getWriteStats();
+    for (int i = 0; i < 500 && stats.getFrameCount() < count; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, stats.getFrameCount());
+    assertEquals(bytes, stats.getByteCount());
+    assertTrue(stats.getBatchCount() <= count);
+    assertTrue(stats.getMaxBatchFrames() >= 1);
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    final Connection conn = new Connection();
+    conn.setConfig(new ConnectionConfiguration("127.0.0.1", server.getLocalPort()));
+    conn.connect();
+    Socket peer = server.accept();
+    peer.setSoTimeout(5000);
+    for (int i = 0; i < 500 && !conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(conn.isConnected());
+
+    // Long messages of 3 packets, encoded by the sending threads
+    final int producers = 4;
+    final int count = 25;
+    final CountDownLatch start = new CountDownLatch(1);
+    for (int p = 0; p < producers; p++) {
+      final byte tag = (byte) p;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException ie) {
+            return;
+          }
+          byte[] body = new byte[3000];
+          body[0] = tag;
+          for (int i = 0; i < count; i++) {
+            conn.sendMessage(new Message.Builder((short) 0x0801).body(body).build());
+          }
+        }
+      }).start();
+    }
+    start.countDown();
+
+    PacketDecoder decoder = new PacketDecoder();
+    InputStream in = peer.getInputStream();
+    List<Packet> packets = new ArrayList<>();
+    while (packets.size() < 3 * producers * count) {
+      if (decoder.decode(packets) == 0) {
+        assertTrue(decoder.readFrom(in) > 0);
+      }
+    }
+    // The packets of a message are never interleaved with the ones of another message
+    for (int i = 0; i < packets.size(); i += 3) {
+      for (int j = 0; j < 3; j++) {
+        Packet packet = packets.get(i + j);
+        assertTrue(packet.isLongMsg());
+        assertEquals(3, packet.getTotal());
+        assertEquals(j + 1, packet.getIndex());
+        assertEquals((short) (packets.get(i).getSn() + j), packet.getSn());
+      }
+    }
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+}
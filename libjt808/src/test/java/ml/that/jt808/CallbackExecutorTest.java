@@ -0,0 +1,72 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.deew.jt808.conn.CallbackExecutor;
+import com.deew.jt808.conn.Connection;
+import com.deew.jt808.conn.ConnectionConfiguration;
+import com.deew.jt808.conn.ConnectionStateCallback;
+import com.deew.jt808.conn.SelectorLoop;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for {@link CallbackExecutor}, will execute on the development machine (host)
+ * against a server socket on the loopback interface.
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class CallbackExecutorTest {
+
+  // Connects with the specified executor and returns the name of the thread notified of success
+  private static String connect(CallbackExecutor executor) throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    ConnectionConfiguration cfg = new ConnectionConfiguration("127.0.0.1", server.getLocalPort());
+    cfg.setCallbackExecutor(executor);
+
+    Connection conn = new Connection();
+    conn.setConfig(cfg);
+    final CountDownLatch connected = new CountDownLatch(1);
+    final AtomicReference<String> thread = new AtomicReference<>();
+    conn.setStateCallback(new ConnectionStateCallback() {
+      @Override
+      public void onSuccess() {
+        thread.set(Thread.currentThread().getName());
+        connected.countDown();
+      }
+
+      @Override
+      public void onFail() {
+      }
+    });
+    conn.connect();
+    Socket peer = server.accept();
+    assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+    return thread.get();
+  }
+
+  @Test
+  public void testDirect() throws Exception {
+    assertEquals("Connect thread", connect(CallbackExecutor.DIRECT));
+  }
+
+  @Test
+  public void testEventLoop() throws Exception {
+    SelectorLoop loop = new SelectorLoop("Test Callbacks");
+    assertEquals("Test Callbacks", connect(loop));
+    loop.shutdown();
+  }
+
+}
@@ -0,0 +1,128 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.deew.jt808.conn.Connection;
+import com.deew.jt808.conn.ConnectionConfiguration;
+import com.deew.jt808.conn.MessageListener;
+import com.deew.jt808.filter.MessageIdFilter;
+import com.deew.jt808.msg.DecoderRegistry;
+import com.deew.jt808.msg.LocationMessage;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.MessageDecoder;
+import com.deew.jt808.msg.RegisterReply;
+import com.deew.jt808.msg.SerialNumberAllocator;
+import com.deew.jt808.msg.ServerGenericReply;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for {@link DecoderRegistry}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class DecoderRegistryTest {
+
+  private static Message registerReply() {
+    return new Message.Builder(RegisterReply.ID)
+        .body(new byte[]{ 0x00, 0x07, RegisterReply.RESULT_OK, 'a', 'b', 'c' })
+        .build();
+  }
+
+  @Test
+  public void testDefault() {
+    DecoderRegistry registry = DecoderRegistry.getDefault();
+    assertSame(registry, DecoderRegistry.getDefault());
+
+    Message decoded = registry.decode(registerReply());
+    assertTrue(decoded instanceof RegisterReply);
+    assertEquals(7, ((RegisterReply) decoded).getReqSn());
+    assertEquals("abc", ((RegisterReply) decoded).getAuthCode());
+
+    Message reply = new Message.Builder(ServerGenericReply.ID)
+        .body(new byte[]{ 0x00, 0x01, 0x01, 0x02, ServerGenericReply.RESULT_OK })
+        .build();
+    assertTrue(registry.decode(reply) instanceof ServerGenericReply);
+
+    // No decoder
+    Message unknown = new Message.Builder((short) 0x8888).body(new byte[1]).build();
+    assertSame(unknown, registry.decode(unknown));
+    // Malformed body
+    Message malformed = new Message.Builder(ServerGenericReply.ID).body(new byte[2]).build();
+    assertSame(malformed, registry.decode(malformed));
+  }
+
+  @Test
+  public void testRegister() {
+    DecoderRegistry registry = new DecoderRegistry();
+    Message msg = new LocationMessage.Builder().build();
+    Message generic = new Message.Builder(LocationMessage.ID).body(msg.getBody()).build();
+    assertNull(registry.get(LocationMessage.ID));
+    assertSame(generic, registry.decode(generic));
+
+    MessageDecoder decoder = new MessageDecoder() {
+      @Override
+      public Message decode(Message msg) {
+        return new ServerGenericReply.Builder(
+            new Message.Builder(ServerGenericReply.ID).body(new byte[5]).build()).build();
+      }
+    };
+    registry.register(LocationMessage.ID, decoder);
+    assertSame(decoder, registry.get(LocationMessage.ID));
+    assertTrue(registry.decode(generic) instanceof ServerGenericReply);
+    // The highest IDs have a slot too
+    assertNull(registry.get((short) 0xffff));
+
+    registry.register(LocationMessage.ID, null);
+    assertSame(generic, registry.decode(generic));
+  }
+
+  @Test
+  public void testListenerReceivesTypedMessage() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    Connection conn = new Connection();
+    conn.setConfig(new ConnectionConfiguration("127.0.0.1", server.getLocalPort()));
+    final Message[] received = new Message[2];
+    final CountDownLatch latch = new CountDownLatch(2);
+    MessageIdFilter filter = new MessageIdFilter(RegisterReply.ID);
+    for (int i = 0; i < received.length; i++) {
+      final int idx = i;
+      conn.addRcvListener(new MessageListener() {
+        @Override
+        public void processMessage(Message msg) {
+          received[idx] = msg;
+          latch.countDown();
+        }
+      }, filter);
+    }
+    conn.connect();
+    Socket peer = server.accept();
+    for (int i = 0; i < 500 && !conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(conn.isConnected());
+
+    OutputStream out = peer.getOutputStream();
+    out.write(registerReply().getPackets(new SerialNumberAllocator())[0].getBytes());
+    out.flush();
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    // Decoded once, both listeners get the same object
+    assertTrue(received[0] instanceof RegisterReply);
+    assertSame(received[0], received[1]);
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+}
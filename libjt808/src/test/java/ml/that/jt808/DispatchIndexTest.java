@@ -0,0 +1,164 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.deew.jt808.conn.Connection;
+import com.deew.jt808.conn.ConnectionConfiguration;
+import com.deew.jt808.conn.MessageCollector;
+import com.deew.jt808.conn.MessageListener;
+import com.deew.jt808.filter.AndFilter;
+import com.deew.jt808.filter.MessageFilter;
+import com.deew.jt808.filter.MessageIdFilter;
+import com.deew.jt808.filter.OrFilter;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.SerialNumberAllocator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for the dispatch of received messages by {@link Connection}, will execute on the
+ * development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class DispatchIndexTest {
+
+  private static final short ID_A = (short) 0x8a01;
+  private static final short ID_B = (short) 0x8a02;
+  private static final short ID_C = (short) 0x8a03;
+
+  /** Records the IDs of the messages it gets. */
+  private static class Recorder implements MessageListener {
+
+    final List<Short>    ids   = Collections.synchronizedList(new ArrayList<Short>());
+    final CountDownLatch latch;
+
+    Recorder(int count) {
+      latch = new CountDownLatch(count);
+    }
+
+    @Override
+    public void processMessage(Message msg) {
+      ids.add(msg.getId());
+      latch.countDown();
+    }
+
+  }
+
+  @Test
+  public void testDispatchByMessageId() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    Connection conn = new Connection();
+    conn.setConfig(new ConnectionConfiguration("127.0.0.1", server.getLocalPort()));
+
+    final AtomicInteger evaluated = new AtomicInteger();
+    MessageFilter counting = new MessageFilter() {
+      @Override
+      public boolean accept(Message msg) {
+        evaluated.incrementAndGet();
+        return true;
+      }
+    };
+
+    Recorder byId = new Recorder(1);
+    Recorder byOr = new Recorder(2);
+    Recorder byAnd = new Recorder(1);
+    Recorder all = new Recorder(3);
+    Recorder removed = new Recorder(1);
+    conn.addRcvListener(byId, new MessageIdFilter(ID_A));
+    conn.addRcvListener(byOr, new OrFilter(new MessageIdFilter(ID_A), new MessageIdFilter(ID_B)));
+    conn.addRcvListener(byAnd, new AndFilter(new MessageIdFilter(ID_C), counting));
+    conn.addRcvListener(all, null);
+    conn.addRcvListener(removed, new MessageIdFilter(ID_A));
+    conn.removeRcvListener(removed);
+    MessageCollector collector = conn.createMessageCollector(
+        new OrFilter(new MessageIdFilter(ID_B), new MessageIdFilter(ID_C)));
+
+    conn.connect();
+    Socket peer = server.accept();
+    for (int i = 0; i < 500 && !conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(conn.isConnected());
+
+    OutputStream out = peer.getOutputStream();
+    SerialNumberAllocator sn = new SerialNumberAllocator();
+    for (short id : new short[]{ ID_A, ID_B, ID_C }) {
+      out.write(new Message.Builder(id).body(new byte[1]).build().getPackets(sn)[0].getBytes());
+    }
+    out.flush();
+    assertTrue(all.latch.await(5, TimeUnit.SECONDS));
+    assertTrue(byAnd.latch.await(5, TimeUnit.SECONDS));
+
+    assertEquals(Collections.singletonList(ID_A), byId.ids);
+    assertEquals(2, byOr.ids.size());
+    assertEquals(Collections.singletonList(ID_C), byAnd.ids);
+    assertEquals(3, all.ids.size());
+    assertTrue(removed.ids.isEmpty());
+    // The predicate of the AND filter is only tested for the message with its ID
+    assertEquals(1, evaluated.get());
+
+    Message first = collector.nextResult(5000);
+    assertNotNull(first);
+    assertEquals(ID_B, first.getId());
+    Message second = collector.nextResult(5000);
+    assertNotNull(second);
+    assertEquals(ID_C, second.getId());
+    assertNull(collector.pollResult());
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+  @Test
+  public void testSubscriberException() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    Connection conn = new Connection();
+    conn.setConfig(new ConnectionConfiguration("127.0.0.1", server.getLocalPort()));
+
+    conn.addRcvListener(new MessageListener() {
+      @Override
+      public void processMessage(Message msg) {
+        throw new IllegalStateException("Broken listener.");
+      }
+    }, new MessageIdFilter(ID_A));
+    Recorder after = new Recorder(2);
+    conn.addRcvListener(after, new MessageIdFilter(ID_A));
+
+    conn.connect();
+    Socket peer = server.accept();
+    for (int i = 0; i < 500 && !conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(conn.isConnected());
+
+    // Both messages reach the listener added after the one which throws
+    OutputStream out = peer.getOutputStream();
+    SerialNumberAllocator sn = new SerialNumberAllocator();
+    for (int i = 0; i < 2; i++) {
+      out.write(new Message.Builder(ID_A).body(new byte[1]).build().getPackets(sn)[0].getBytes());
+    }
+    out.flush();
+    assertTrue(after.latch.await(5, TimeUnit.SECONDS));
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+}
@@ -0,0 +1,123 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.deew.jt808.filter.AndFilter;
+import com.deew.jt808.filter.CompiledFilter;
+import com.deew.jt808.filter.FilterCompiler;
+import com.deew.jt808.filter.MessageFilter;
+import com.deew.jt808.filter.MessageIdFilter;
+import com.deew.jt808.filter.OrFilter;
+import com.deew.jt808.msg.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for {@link FilterCompiler}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class FilterCompilerTest {
+
+  private static Message message(int id, int first) {
+    return new Message.Builder((short) id).body(new byte[]{ (byte) first }).build();
+  }
+
+  /** Accepts messages whose body starts with an odd byte. */
+  private static class OddBody implements MessageFilter {
+
+    @Override
+    public boolean accept(Message msg) {
+      return (msg.getBody()[0] & 1) != 0;
+    }
+
+  }
+
+  @Test
+  public void testIdsOnly() {
+    OrFilter tree = new OrFilter();
+    for (int i = 0; i < 50; i++) {
+      tree.addFilter(new MessageIdFilter((short) (0x8000 + i * 3)));
+    }
+    CompiledFilter compiled = FilterCompiler.compile(tree);
+    assertEquals(0, compiled.getResidualCount());
+    for (int id = 0; id < 0x10000; id++) {
+      assertEquals(tree.accept(message(id, 0)), compiled.accept((short) id));
+      assertEquals(compiled.accept((short) id), compiled.mayAccept((short) id));
+    }
+    assertSame(compiled, FilterCompiler.compile(compiled));
+
+    // Read once, adding to the tree does not change the compiled filter
+    tree.addFilter(new MessageIdFilter((short) 0x0001));
+    assertFalse(compiled.accept(message(0x0001, 0)));
+
+    assertTrue(FilterCompiler.compile(new AndFilter()).accept(message(0x1234, 0)));
+    assertFalse(FilterCompiler.compile(new OrFilter()).accept(message(0x1234, 0)));
+    assertFalse(FilterCompiler.compile(new AndFilter(new MessageIdFilter((short) 1),
+                                                     new MessageIdFilter((short) 2)))
+                              .mayAccept((short) 1));
+  }
+
+  @Test
+  public void testResidualTestedForItsIdsOnly() {
+    final AtomicInteger evaluated = new AtomicInteger();
+    MessageFilter counting = new OddBody() {
+      @Override
+      public boolean accept(Message msg) {
+        evaluated.incrementAndGet();
+        return super.accept(msg);
+      }
+    };
+    CompiledFilter compiled = FilterCompiler.compile(new AndFilter(
+        new OrFilter(new MessageIdFilter((short) 0x8001), new MessageIdFilter((short) 0x8100)),
+        counting));
+    assertEquals(1, compiled.getResidualCount());
+    assertFalse(compiled.accept((short) 0x8001));
+    assertTrue(compiled.mayAccept((short) 0x8001));
+    assertFalse(compiled.mayAccept((short) 0x8002));
+
+    assertFalse(compiled.accept(message(0x8002, 1)));
+    assertFalse(compiled.accept(message(0x0200, 1)));
+    assertEquals(0, evaluated.get());
+    assertTrue(compiled.accept(message(0x8001, 1)));
+    assertFalse(compiled.accept(message(0x8100, 2)));
+    assertEquals(2, evaluated.get());
+  }
+
+  @Test
+  public void testRandomTrees() {
+    Random random = new Random(808);
+    for (int t = 0; t < 200; t++) {
+      MessageFilter tree = randomTree(random, 3);
+      CompiledFilter compiled = FilterCompiler.compile(tree);
+      for (int i = 0; i < 500; i++) {
+        Message msg = message(random.nextInt(16), random.nextInt(256));
+        assertEquals(tree + " " + msg, tree.accept(msg), compiled.accept(msg));
+      }
+    }
+  }
+
+  // A tree over 16 IDs, so that most messages hit some of them
+  private static MessageFilter randomTree(Random random, int depth) {
+    int kind = depth == 0 ? random.nextInt(2) : random.nextInt(4);
+    switch (kind) {
+      case 0:
+        return new MessageIdFilter((short) random.nextInt(16));
+      case 1:
+        return new OddBody();
+      default:
+        MessageFilter[] operands = new MessageFilter[random.nextInt(4)];
+        for (int i = 0; i < operands.length; i++) {
+          operands[i] = randomTree(random, depth - 1);
+        }
+        return kind == 2 ? new AndFilter(operands) : new OrFilter(operands);
+    }
+  }
+
+}
@@ -0,0 +1,77 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.deew.jt808.msg.FragmentCache;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.ResendRequest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit test for {@link FragmentCache}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class FragmentCacheTest {
+
+  private static final byte[] PHONE = new byte[]{ 0x01, 0x38, 0x00, 0x13, (byte) 0x80, 0x00 };
+
+  private static Packet[] send(FragmentCache cache, int firstSn, int total) {
+    Packet[] packets = new Packet[total];
+    for (int i = 0; i < total; i++) {
+      packets[i] = new Packet((short) 0x0801, true, Message.CIPHER_NONE, PHONE,
+                              (short) (firstSn + i), total, i + 1, new byte[]{ (byte) i });
+      byte[] frame = packets[i].getBytes();
+      cache.add(packets[i], frame, 0, frame.length);
+    }
+    return packets;
+  }
+
+  @Test
+  public void testGetRequested() {
+    FragmentCache cache = new FragmentCache();
+    Packet[] packets = send(cache, 100, 4);
+
+    Message msg = new Message.Builder((short) 0x8003)
+        .body(new byte[]{ 0x00, 0x64, 0x02, 0x00, 0x04, 0x00, 0x02 })
+        .build();
+    ResendRequest req = new ResendRequest.Builder(msg).build();
+    assertEquals(100, req.getFirstSn());
+
+    List<byte[]> out = new ArrayList<>();
+    assertEquals(2, cache.get(req.getFirstSn(), req.getIndices(), out));
+    assertArrayEquals(packets[3].getBytes(), out.get(0));
+    assertArrayEquals(packets[1].getBytes(), out.get(1));
+
+    out.clear();
+    assertEquals(4, cache.get((short) 100, new short[0], out));
+    assertEquals(0, cache.get((short) 101, new short[]{ 1 }, out));
+  }
+
+  @Test
+  public void testEviction() {
+    int frameLength = send(new FragmentCache(), 0, 1)[0].getBytes().length;
+    FragmentCache cache = new FragmentCache(2, 5 * frameLength);
+
+    send(cache, 10, 2);
+    send(cache, 20, 2);
+    send(cache, 30, 2);
+    assertEquals(2, cache.size());
+    assertEquals(4 * frameLength, cache.getBytes());
+
+    List<byte[]> out = new ArrayList<>();
+    assertEquals(0, cache.get((short) 10, new short[0], out));
+
+    // Larger than the byte limit on its own
+    send(cache, 40, 6);
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getBytes());
+  }
+
+}
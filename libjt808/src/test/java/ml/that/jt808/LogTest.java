@@ -0,0 +1,75 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.deew.jt808.util.Log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for {@link Log}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class LogTest {
+
+  @Test
+  public void testLevelGuards() {
+    final List<String> lines = new ArrayList<>();
+    final int[] formatted = new int[1];
+    Object value = new Object() {
+      @Override
+      public String toString() {
+        formatted[0]++;
+        return "value";
+      }
+    };
+    Log.Supplier supplier = new Log.Supplier() {
+      @Override
+      public String get() {
+        formatted[0]++;
+        return "supplied";
+      }
+    };
+
+    int level = Log.getLevel();
+    Log.setBackend(new Log.Backend() {
+      @Override
+      public void println(int level, String tag, String msg, Throwable tr) {
+        lines.add(level + " " + tag + " " + msg);
+      }
+    });
+    try {
+      // Nothing is formatted for a disabled level
+      Log.setLevel(Log.INFO);
+      assertFalse(Log.isLoggable(Log.DEBUG));
+      Log.d("Tag", "read: ", value);
+      Log.d("Tag", supplier);
+      Log.i("Tag", "info");
+      assertEquals(0, formatted[0]);
+      assertEquals(1, lines.size());
+      assertEquals(Log.INFO + " Tag info", lines.get(0));
+
+      Log.setLevel(Log.DEBUG);
+      assertTrue(Log.isLoggable(Log.DEBUG));
+      Log.d("Tag", "read: ", value);
+      Log.d("Tag", supplier);
+      assertEquals(2, formatted[0]);
+      assertEquals(Log.DEBUG + " Tag read: value", lines.get(1));
+      assertEquals(Log.DEBUG + " Tag supplied", lines.get(2));
+
+      Log.setLevel(Log.NONE);
+      Log.e("Tag", "error");
+      assertEquals(3, lines.size());
+    } finally {
+      Log.setLevel(level);
+      Log.setBackend(null);
+    }
+  }
+
+}
@@ -0,0 +1,95 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.MessageAssembler;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.util.HashedWheelTimer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Local unit test for {@link MessageAssembler}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class MessageAssemblerTest {
+
+  private static final byte[] PHONE = new byte[]{ 0x01, 0x38, 0x00, 0x13, (byte) 0x80, 0x00 };
+
+  private static Packet fragment(int sn, int total, int index, byte... payload) {
+    return new Packet((short) 0x0801, true, Message.CIPHER_NONE, PHONE, (short) sn, total, index,
+                      payload);
+  }
+
+  @Test
+  public void testAddShortMessage() {
+    MessageAssembler assembler = new MessageAssembler();
+    Packet packet = new Packet((short) 0x0002, false, Message.CIPHER_NONE, PHONE, (short) 1, 0, 0,
+                               new byte[0]);
+
+    Message msg = assembler.add(packet);
+    assertNotNull(msg);
+    assertEquals(0x0002, msg.getId());
+    assertEquals(0, assembler.size());
+  }
+
+  @Test
+  public void testAddOutOfOrder() {
+    MessageAssembler assembler = new MessageAssembler();
+
+    // The first serial number wraps around
+    assertNull(assembler.add(fragment(0x0001, 3, 3, (byte) 5, (byte) 6)));
+    assertNull(assembler.add(fragment(0xffff, 3, 1, (byte) 1, (byte) 2)));
+    assertNull(assembler.add(fragment(0xffff, 3, 1, (byte) 1, (byte) 2)));
+    assertEquals(1, assembler.size());
+
+    Message msg = assembler.add(fragment(0x0000, 3, 2, (byte) 3, (byte) 4));
+    assertNotNull(msg);
+    assertArrayEquals(new byte[]{ 1, 2, 3, 4, 5, 6 }, msg.getBody());
+    assertEquals(0, assembler.size());
+    assertEquals(0, assembler.getBufferedBytes());
+  }
+
+  @Test
+  public void testTerminalBudget() {
+    MessageAssembler assembler =
+        new MessageAssembler(MessageAssembler.DEFAULT_TIMEOUT, 1024, 64,
+                             HashedWheelTimer.getDefault());
+
+    assertNull(assembler.add(fragment(1, 2, 1, new byte[16])));
+    // Would exceed the budget of the terminal
+    assertNull(assembler.add(fragment(1, 2, 2, new byte[64])));
+    // A message which could never fit is refused right away
+    assertNull(assembler.add(fragment(100, 100, 1, new byte[1])));
+    assertEquals(1, assembler.size());
+
+    assembler.clear();
+    assertEquals(0, assembler.getBufferedBytes());
+  }
+
+  @Test
+  public void testExpire() throws InterruptedException {
+    HashedWheelTimer timer = new HashedWheelTimer("Test Timer", 10, TimeUnit.MILLISECONDS, 8);
+    MessageAssembler assembler =
+        new MessageAssembler(50, MessageAssembler.DEFAULT_MAX_BYTES,
+                             MessageAssembler.DEFAULT_MAX_BYTES_PER_TERMINAL, timer);
+
+    assertNull(assembler.add(fragment(1, 2, 1, (byte) 1)));
+    assertEquals(1, assembler.size());
+
+    for (int i = 0; i < 100 && assembler.size() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, assembler.size());
+    assertEquals(0, assembler.getBufferedBytes());
+    timer.stop();
+  }
+
+}
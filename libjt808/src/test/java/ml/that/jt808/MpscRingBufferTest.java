@@ -0,0 +1,113 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import com.deew.jt808.util.MpscRingBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for {@link MpscRingBuffer}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class MpscRingBufferTest {
+
+  @Test
+  public void testOfferPoll() {
+    MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(3);
+    assertEquals(4, ring.capacity());
+    assertTrue(ring.isEmpty());
+    assertNull(ring.poll());
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ring.offer(i));
+    }
+    assertFalse(ring.offer(4));
+    assertEquals(4, ring.size());
+
+    assertEquals(Integer.valueOf(0), ring.peek());
+    assertEquals(Integer.valueOf(0), ring.poll());
+    // The freed slot is reused by the next lap
+    assertTrue(ring.offer(4));
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(Integer.valueOf(i), ring.poll());
+    }
+    assertTrue(ring.isEmpty());
+    assertEquals(0, ring.size());
+  }
+
+  @Test
+  public void testProducers() throws Exception {
+    final int producers = 4;
+    final int count = 100000;
+    final MpscRingBuffer<int[]> ring = new MpscRingBuffer<>(64);
+
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final int id = p;
+      threads[p] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < count; i++) {
+              ring.put(new int[]{ id, i });
+            }
+          } catch (InterruptedException ie) {
+            // Fails the test below
+          }
+        }
+      });
+      threads[p].start();
+    }
+
+    int[] next = new int[producers];
+    int received = 0;
+    while (received < producers * count) {
+      int[] e = ring.poll();
+      if (e == null) {
+        ring.await(100, TimeUnit.MILLISECONDS);
+        continue;
+      }
+      // Each producer's elements are consumed in order
+      assertEquals(next[e[0]]++, e[1]);
+      received++;
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(ring.isEmpty());
+  }
+
+  @Test
+  public void testSignal() throws Exception {
+    final MpscRingBuffer<Integer> ring = new MpscRingBuffer<>(8);
+    ring.signal();
+    long start = System.nanoTime();
+    // Returns at once, the signal was not consumed yet
+    ring.await(0, TimeUnit.MILLISECONDS);
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException ie) {
+          // Do nothing
+        }
+        ring.offer(1);
+      }
+    }).start();
+    while (ring.isEmpty()) {
+      ring.await(0, TimeUnit.MILLISECONDS);
+    }
+    assertEquals(Integer.valueOf(1), ring.poll());
+  }
+
+}
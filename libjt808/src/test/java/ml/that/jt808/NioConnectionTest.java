@@ -0,0 +1,139 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.deew.jt808.conn.Connection;
+import com.deew.jt808.conn.ConnectionConfiguration;
+import com.deew.jt808.conn.MessageListener;
+import com.deew.jt808.conn.ReplyFuture;
+import com.deew.jt808.conn.SelectorLoop;
+import com.deew.jt808.filter.MessageFilter;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.PacketDecoder;
+import com.deew.jt808.msg.ServerGenericReply;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for connections driven by a {@link SelectorLoop}, will execute on the
+ * development machine (host) against a server socket on the loopback interface.
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class NioConnectionTest {
+
+  private static void awaitConnected(Connection conn) throws InterruptedException {
+    for (int i = 0; i < 500 && !conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(conn.isConnected());
+  }
+
+  private static Packet readPacket(PacketDecoder decoder, InputStream in) throws Exception {
+    List<Packet> out = new ArrayList<>();
+    while (decoder.decode(out) == 0) {
+      assertTrue(decoder.readFrom(in) > 0);
+    }
+    return out.get(0);
+  }
+
+  // Sends a message and answers it from the peer
+  private static void roundTrip(Connection conn, Socket peer) throws Exception {
+    ReplyFuture<ServerGenericReply> future =
+        conn.sendAsync(new Message.Builder((short) 0x0200).body(new byte[]{ 1, 0x7e, 3 }).build(),
+                       5000, 0);
+    Packet request = readPacket(new PacketDecoder(), peer.getInputStream());
+    assertEquals((short) 0x0200, request.getMsgId());
+
+    short sn = request.getSn();
+    Packet reply = new Packet(ServerGenericReply.ID, false, Message.CIPHER_NONE,
+                              request.getPhone(), (short) 1, 0, 0,
+                              new byte[]{ (byte) (sn >> 8), (byte) sn, 0x02, 0x00,
+                                          ServerGenericReply.RESULT_OK });
+    peer.getOutputStream().write(reply.getBytes());
+
+    assertEquals(sn, future.get(5, TimeUnit.SECONDS).getReqSn());
+  }
+
+  @Test
+  public void testSendAsync() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    SelectorLoop loop = new SelectorLoop("Test Selector");
+    ConnectionConfiguration cfg = new ConnectionConfiguration("127.0.0.1", server.getLocalPort());
+    cfg.setSelectorLoop(loop);
+
+    Connection conn = new Connection();
+    conn.setConfig(cfg);
+    conn.connect();
+    Socket peer = server.accept();
+    peer.setSoTimeout(5000);
+    awaitConnected(conn);
+
+    roundTrip(conn, peer);
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+    loop.shutdown();
+  }
+
+  @Test
+  public void testHandlerException() throws Exception {
+    ServerSocket server = new ServerSocket(0, 2, InetAddress.getByName("127.0.0.1"));
+    SelectorLoop loop = new SelectorLoop("Test Selector");
+    ConnectionConfiguration cfg = new ConnectionConfiguration("127.0.0.1", server.getLocalPort());
+    cfg.setSelectorLoop(loop);
+    cfg.setReconnectionAllowed(false);
+
+    Connection failing = new Connection();
+    failing.setConfig(cfg);
+    final CountDownLatch thrown = new CountDownLatch(1);
+    failing.addRcvListener(new MessageListener() {
+      @Override
+      public void processMessage(Message msg) {
+      }
+    }, new MessageFilter() {
+      @Override
+      public boolean accept(Message msg) {
+        thrown.countDown();
+        throw new IllegalStateException("Broken filter.");
+      }
+    });
+    failing.connect();
+    Socket failingPeer = server.accept();
+    awaitConnected(failing);
+
+    Connection conn = new Connection();
+    conn.setConfig(cfg);
+    conn.connect();
+    Socket peer = server.accept();
+    peer.setSoTimeout(5000);
+    awaitConnected(conn);
+
+    // The exception is raised on the loop thread, which must keep serving the other connection
+    failingPeer.getOutputStream().write(
+        new Packet((short) 0x8300, false, Message.CIPHER_NONE, new byte[6], (short) 1, 0, 0,
+                   new byte[]{ 0 }).getBytes());
+    assertTrue(thrown.await(5, TimeUnit.SECONDS));
+    roundTrip(conn, peer);
+
+    failing.shutDown();
+    conn.shutDown();
+    failingPeer.close();
+    peer.close();
+    server.close();
+    loop.shutdown();
+  }
+
+}
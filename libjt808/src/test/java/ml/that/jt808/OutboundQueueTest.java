@@ -0,0 +1,86 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.deew.jt808.conn.Connection;
+import com.deew.jt808.conn.ConnectionConfiguration;
+import com.deew.jt808.conn.OutboundQueue;
+import com.deew.jt808.msg.HeartbeatMessage;
+import com.deew.jt808.msg.LocationMessage;
+import com.deew.jt808.msg.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for {@link OutboundQueue}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class OutboundQueueTest {
+
+  @Test
+  public void testLaneOf() {
+    assertEquals(OutboundQueue.LANE_CONTROL,
+                 OutboundQueue.laneOf(new HeartbeatMessage.Builder().build()));
+
+    LocationMessage.Builder builder = new LocationMessage.Builder();
+    LocationMessage location = builder.build();
+    assertFalse(location.isEmergency());
+    assertEquals(OutboundQueue.LANE_REALTIME, OutboundQueue.laneOf(location));
+
+    builder.setEmergency(true);
+    LocationMessage alarm = builder.build();
+    assertTrue(alarm.isEmergency());
+    assertEquals(1, alarm.getAlarm() & 1);
+    assertEquals(OutboundQueue.LANE_ALARM, OutboundQueue.laneOf(alarm));
+    // A location which was not built by LocationMessage
+    assertEquals(OutboundQueue.LANE_ALARM, OutboundQueue.laneOf(
+        new Message.Builder(LocationMessage.ID).body(alarm.getBody()).build()));
+
+    assertEquals(OutboundQueue.LANE_BULK, OutboundQueue.laneOf(
+        new Message.Builder((short) 0x0704).body(new byte[3]).build()));
+  }
+
+  @Test
+  public void testLaneMetrics() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    ConnectionConfiguration cfg = new ConnectionConfiguration("127.0.0.1", server.getLocalPort());
+    cfg.setLaneCapacity(OutboundQueue.LANE_BULK, 100);
+    Connection conn = new Connection();
+    conn.setConfig(cfg);
+    conn.connect();
+    Socket peer = server.accept();
+    for (int i = 0; i < 500 && !conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(conn.isConnected());
+
+    Message point = new LocationMessage.Builder().build();
+    for (int i = 0; i < 10; i++) {
+      conn.sendMessage(point, OutboundQueue.LANE_BULK);
+    }
+    conn.sendMessage(point);
+
+    OutboundQueue queue = conn.getOutboundQueue();
+    assertEquals(128, queue.getCapacity(OutboundQueue.LANE_BULK));
+    assertEquals(10, queue.getEnqueuedCount(OutboundQueue.LANE_BULK));
+    assertEquals(1, queue.getEnqueuedCount(OutboundQueue.LANE_REALTIME));
+    assertTrue(queue.getMaxDepth(OutboundQueue.LANE_BULK) >= 1);
+    for (int i = 0; i < 500 && conn.getWriteStats().getFrameCount() < 11; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, queue.getDepth(OutboundQueue.LANE_BULK));
+    assertEquals(0, queue.getDroppedCount(OutboundQueue.LANE_BULK));
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+}
@@ -0,0 +1,132 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.PacketDecoder;
+import com.deew.jt808.msg.PacketView;
+import com.deew.jt808.util.ArrayUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Local unit test for {@link PacketDecoder}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class PacketDecoderTest {
+
+  private static final byte[] PHONE = new byte[]{ 0x01, 0x38, 0x00, 0x13, (byte) 0x80, 0x00 };
+
+  private static Packet packet(int sn, byte... payload) {
+    return new Packet((short) 0x8001, false, Message.CIPHER_NONE, PHONE, (short) sn, 0, 0, payload);
+  }
+
+  private static void assertPacket(Packet expected, Packet actual) {
+    assertEquals(expected.getMsgId(), actual.getMsgId());
+    assertEquals(expected.getSn(), actual.getSn());
+    assertArrayEquals(expected.getPhone(), actual.getPhone());
+    assertArrayEquals(expected.getPayload(), actual.getPayload());
+  }
+
+  @Test
+  public void testSingleFrame() {
+    Packet sample = packet(1, (byte) 0x30, (byte) 0x7e, (byte) 0x08, (byte) 0x7d, (byte) 0x55);
+    byte[] raw = sample.getBytes();
+    PacketDecoder decoder = new PacketDecoder();
+    List<Packet> out = new ArrayList<>();
+
+    decoder.feed(raw, 0, raw.length);
+
+    assertEquals(1, decoder.decode(out));
+    assertPacket(sample, out.get(0));
+  }
+
+  @Test
+  public void testSplitFrame() {
+    Packet sample = packet(2, (byte) 0x7e, (byte) 0x7d, (byte) 0x7e);
+    byte[] raw = sample.getBytes();
+    PacketDecoder decoder = new PacketDecoder();
+    List<Packet> out = new ArrayList<>();
+
+    // Deliver the frame one byte at a time
+    for (int i = 0; i < raw.length - 1; i++) {
+      decoder.feed(raw, i, 1);
+      assertEquals(0, decoder.decode(out));
+    }
+    decoder.feed(raw, raw.length - 1, 1);
+
+    assertEquals(1, decoder.decode(out));
+    assertPacket(sample, out.get(0));
+  }
+
+  @Test
+  public void testCoalescedFrames() {
+    Packet fir = packet(3, (byte) 0x01);
+    Packet sec = packet(4, (byte) 0x02, (byte) 0x7d);
+    Packet thr = packet(5);
+    byte[] raw = ArrayUtils.concatenate(new byte[]{ 0x11, 0x22 },
+                                        fir.getBytes(),
+                                        sec.getBytes(),
+                                        thr.getBytes());
+    PacketDecoder decoder = new PacketDecoder(64);
+    List<Packet> out = new ArrayList<>();
+
+    decoder.feed(raw, 0, raw.length);
+
+    assertEquals(3, decoder.decode(out));
+    assertPacket(fir, out.get(0));
+    assertPacket(sec, out.get(1));
+    assertPacket(thr, out.get(2));
+    assertEquals(1, decoder.pending());
+  }
+
+  @Test
+  public void testMalformedFrameDropped() {
+    byte[] bad = packet(6, (byte) 0x01).getBytes();
+    // Break the checksum
+    bad[bad.length - 2] ^= 0x01;
+    byte[] good = packet(7, (byte) 0x02).getBytes();
+    byte[] raw = ArrayUtils.concatenate(bad, good);
+    PacketDecoder decoder = new PacketDecoder();
+    List<Packet> out = new ArrayList<>();
+
+    decoder.feed(raw, 0, raw.length);
+
+    assertEquals(1, decoder.decode(out));
+    assertEquals(7, out.get(0).getSn());
+  }
+
+  @Test
+  public void testNextView() {
+    PacketDecoder decoder = new PacketDecoder(64);
+    PacketView view = new PacketView();
+
+    // Push enough frames through the small ring buffer to make some of them wrap around its end
+    for (int sn = 0; sn < 20; sn++) {
+      Packet sample = packet(sn, (byte) 0x7e, (byte) sn, (byte) 0x7d, (byte) 0x55);
+      byte[] raw = sample.getBytes();
+      decoder.feed(raw, 0, raw.length);
+
+      assertTrue(decoder.next(view));
+      assertEquals(sample.getMsgId(), view.getMsgId());
+      assertEquals(sample.getSn(), view.getSn());
+      assertArrayEquals(PHONE, view.getPhone(new byte[6]));
+      assertEquals(4, view.getPayloadLength());
+      assertArrayEquals(sample.getPayload(),
+                        Arrays.copyOfRange(view.array(), view.getPayloadOffset(),
+                                           view.getPayloadOffset() + view.getPayloadLength()));
+      assertPacket(sample, view.toPacket());
+      assertFalse(decoder.next(view));
+    }
+  }
+
+}
@@ -0,0 +1,68 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.PacketDecoder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Local unit test for {@link Packet}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class PacketTest {
+
+  private static final byte[] PHONE = new byte[]{ 0x01, 0x38, 0x00, 0x13, (byte) 0x80, 0x00 };
+
+  // A long message packet whose serial number, payload and checksum all need escaping
+  private static final Packet SAMPLE =
+      new Packet((short) 0x0200, true, Message.CIPHER_NONE, PHONE, (short) 0x007e, 2, 1,
+                 new byte[]{ 0x7d });
+
+  private static final byte[] SAMPLE_FRAME = new byte[]{
+      0x7e, 0x02, 0x00, 0x20, 0x01, 0x01, 0x38, 0x00, 0x13, (byte) 0x80, 0x00, 0x00, 0x7d, 0x02,
+      0x00, 0x02, 0x00, 0x01, 0x7d, 0x01, (byte) 0x89, 0x7e };
+
+  @Test
+  public void testGetBytes() {
+    assertArrayEquals(SAMPLE_FRAME, SAMPLE.getBytes());
+  }
+
+  @Test
+  public void testEncodeLongPayload() {
+    byte[] payload = new byte[1000];
+    for (int i = 0; i < payload.length; i++) {
+      payload[i] = (byte) (i % 3 == 0 ? 0x7d + i % 2 : i);
+    }
+    Packet sample = new Packet((short) 0x0801, false, Message.CIPHER_NONE, PHONE, (short) 9, 0, 0,
+                               payload);
+    byte[] frame = sample.getBytes();
+
+    List<Packet> out = new ArrayList<>();
+    PacketDecoder decoder = new PacketDecoder();
+    decoder.feed(frame, 0, frame.length);
+
+    assertEquals(1, decoder.decode(out));
+    assertArrayEquals(payload, out.get(0).getPayload());
+  }
+
+  @Test
+  public void testEncodeTo() {
+    ByteBuffer buf = ByteBuffer.allocate(SAMPLE.maxEncodedLength() + 3);
+    buf.put((byte) 0x55);
+
+    assertEquals(SAMPLE_FRAME.length, SAMPLE.encodeTo(buf));
+    assertEquals(SAMPLE_FRAME.length + 1, buf.position());
+    assertArrayEquals(SAMPLE_FRAME, Arrays.copyOfRange(buf.array(), 1, buf.position()));
+  }
+
+}
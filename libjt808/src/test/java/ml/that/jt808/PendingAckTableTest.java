@@ -0,0 +1,163 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.deew.jt808.conn.PendingAckTable;
+import com.deew.jt808.conn.ReplyFuture;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.ServerGenericReply;
+import com.deew.jt808.util.HashedWheelTimer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit test for {@link PendingAckTable}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class PendingAckTableTest {
+
+  private static ServerGenericReply reply(int reqSn, int reqId) {
+    Message msg = new Message.Builder(ServerGenericReply.ID)
+        .body(new byte[]{ (byte) (reqSn >> 8), (byte) reqSn, (byte) (reqId >> 8), (byte) reqId,
+                          ServerGenericReply.RESULT_OK })
+        .build();
+    return new ServerGenericReply.Builder(msg).build();
+  }
+
+  @Test
+  public void testComplete() throws Exception {
+    PendingAckTable table = new PendingAckTable();
+    ReplyFuture<ServerGenericReply> future = table.register((short) 0xfffe, (short) 0x0102, 5000);
+    assertEquals(1, table.size());
+
+    // Same serial number but another message
+    assertFalse(table.complete(reply(0xfffe, 0x0200)));
+    assertFalse(future.isDone());
+
+    ServerGenericReply reply = reply(0xfffe, 0x0102);
+    assertTrue(table.complete(reply));
+    assertSame(reply, future.get(0, TimeUnit.MILLISECONDS));
+    assertEquals(0, table.size());
+    assertFalse(table.complete(reply));
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    HashedWheelTimer timer = new HashedWheelTimer("Test Timer", 10, TimeUnit.MILLISECONDS, 8);
+    PendingAckTable table = new PendingAckTable(timer, null);
+    ReplyFuture<ServerGenericReply> future = table.register((short) 1, (short) 0x0200, 30);
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Request should time out.");
+    } catch (ExecutionException ee) {
+      assertTrue(ee.getCause() instanceof TimeoutException);
+    }
+    assertEquals(0, table.size());
+    timer.stop();
+  }
+
+  @Test
+  public void testSuspend() throws Exception {
+    HashedWheelTimer timer = new HashedWheelTimer("Test Timer", 10, TimeUnit.MILLISECONDS, 8);
+    PendingAckTable table = new PendingAckTable(timer, null);
+    table.suspend();
+    ReplyFuture<ServerGenericReply> future = table.register((short) 1, (short) 0x0200, 30);
+
+    // The timeout expired, the request waits for the table to be resumed
+    Thread.sleep(200);
+    assertFalse(future.isDone());
+    assertEquals(1, table.size());
+
+    table.resume();
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Request should time out.");
+    } catch (ExecutionException ee) {
+      assertTrue(ee.getCause() instanceof TimeoutException);
+    }
+    assertEquals(0, table.size());
+    timer.stop();
+  }
+
+  @Test
+  public void testRetransmit() throws Exception {
+    HashedWheelTimer timer = new HashedWheelTimer("Test Timer", 10, TimeUnit.MILLISECONDS, 8);
+    final List<byte[][]> retransmitted = new ArrayList<>();
+    PendingAckTable table = new PendingAckTable(timer, new PendingAckTable.Retransmitter() {
+      @Override
+      public void retransmit(byte[][] frames) {
+        synchronized (retransmitted) {
+          retransmitted.add(frames);
+        }
+      }
+    });
+    Packet packet = new Packet((short) 0x0200, false, Message.CIPHER_NONE, new byte[6], (short) 7,
+                               0, 0, new byte[]{ 0x7e });
+
+    // Waits 20, 40 then 120 milliseconds
+    ReplyFuture<ServerGenericReply> future = table.register(new Packet[]{ packet }, 20, 2);
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail("Request should time out.");
+    } catch (ExecutionException ee) {
+      assertTrue(ee.getCause() instanceof TimeoutException);
+    }
+
+    synchronized (retransmitted) {
+      assertEquals(2, retransmitted.size());
+      assertArrayEquals(packet.getBytes(), retransmitted.get(0)[0]);
+      assertSame(retransmitted.get(0), retransmitted.get(1));
+    }
+    assertEquals(2, table.getRetransmitCount());
+    assertEquals(1, table.getGiveUpCount());
+
+    // Replied after the first retransmission
+    future = table.register(new Packet[]{ packet }, 20, 2);
+    while (table.getRetransmitCount() < 3) {
+      Thread.sleep(5);
+    }
+    assertTrue(table.complete(reply(7, 0x0200)));
+    assertTrue(future.isDone());
+    assertEquals(1, table.getGiveUpCount());
+    timer.stop();
+  }
+
+  @Test
+  public void testFailAll() {
+    PendingAckTable table = new PendingAckTable();
+    final Throwable[] failure = new Throwable[1];
+    for (int sn = 0; sn < 100; sn++) {
+      table.register((short) sn, (short) 0x0200, 5000).addListener(
+          new ReplyFuture.Listener<ServerGenericReply>() {
+            @Override
+            public void onReply(ServerGenericReply reply) {
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+              failure[0] = cause;
+            }
+          });
+    }
+
+    table.failAll(new IOException("Connection closed."));
+    assertEquals(0, table.size());
+    assertTrue(failure[0] instanceof IOException);
+  }
+
+}
@@ -0,0 +1,137 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.deew.jt808.conn.Connection;
+import com.deew.jt808.conn.ConnectionConfiguration;
+import com.deew.jt808.conn.MessageListener;
+import com.deew.jt808.conn.ReplyFuture;
+import com.deew.jt808.filter.MessageIdFilter;
+import com.deew.jt808.msg.AuthenticateRequest;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.PacketDecoder;
+import com.deew.jt808.msg.ServerGenericReply;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit test for the automatic reconnection of {@link Connection}, will execute on the
+ * development machine (host) against a server socket on the loopback interface.
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class ReconnectionTest {
+
+  private static final short SERVER_MSG_ID = (short) 0x8103;
+
+  // The writer batches packets, a single read may carry several of them
+  private static Packet readPacket(PacketDecoder decoder, InputStream in, List<Packet> pending)
+      throws Exception {
+    while (pending.isEmpty()) {
+      assertTrue(decoder.readFrom(in) > 0);
+      decoder.decode(pending);
+    }
+    return pending.remove(0);
+  }
+
+  private static void reply(OutputStream out, Packet request) throws Exception {
+    short sn = request.getSn();
+    short id = request.getMsgId();
+    Packet reply = new Packet(ServerGenericReply.ID, false, Message.CIPHER_NONE,
+                              request.getPhone(), (short) 1, 0, 0,
+                              new byte[]{ (byte) (sn >> 8), (byte) sn, (byte) (id >> 8), (byte) id,
+                                          ServerGenericReply.RESULT_OK });
+    out.write(reply.getBytes());
+  }
+
+  @Test
+  public void testReconnectAndAuthenticateBeforeBacklog() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    ConnectionConfiguration cfg = new ConnectionConfiguration("127.0.0.1", server.getLocalPort());
+    cfg.setReconnectDelay(50);
+    cfg.setMaxReconnectDelay(200);
+
+    Connection conn = new Connection();
+    conn.setConfig(cfg);
+    final CountDownLatch received = new CountDownLatch(1);
+    conn.addRcvListener(new MessageListener() {
+      @Override
+      public void processMessage(Message msg) {
+        received.countDown();
+      }
+    }, new MessageIdFilter(SERVER_MSG_ID));
+
+    conn.connect();
+    Socket peer = server.accept();
+    peer.setSoTimeout(5000);
+    for (int i = 0; i < 500 && !conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertTrue(conn.isConnected());
+
+    ReplyFuture<ServerGenericReply> authenticated = conn.authenticate("code");
+    Packet auth = readPacket(new PacketDecoder(), peer.getInputStream(), new ArrayList<Packet>());
+    assertEquals(AuthenticateRequest.ID, auth.getMsgId());
+    reply(peer.getOutputStream(), auth);
+    assertEquals(ServerGenericReply.RESULT_OK,
+                 authenticated.get(5, TimeUnit.SECONDS).getResult());
+
+    // The server drops the connection, messages sent meanwhile are queued
+    peer.close();
+    for (int i = 0; i < 500 && conn.isConnected(); i++) {
+      Thread.sleep(10);
+    }
+    assertFalse(conn.isConnected());
+    for (int i = 0; i < 3; i++) {
+      conn.sendMessage(new Message.Builder((short) 0x0200).body(new byte[]{ (byte) i }).build());
+    }
+
+    // The connection authenticates again before it writes the queued messages
+    peer = server.accept();
+    peer.setSoTimeout(300);
+    PacketDecoder decoder = new PacketDecoder();
+    List<Packet> pending = new ArrayList<>();
+    auth = readPacket(decoder, peer.getInputStream(), pending);
+    assertEquals(AuthenticateRequest.ID, auth.getMsgId());
+    try {
+      readPacket(decoder, peer.getInputStream(), pending);
+      fail("Queued message written before the authentication is accepted.");
+    } catch (SocketTimeoutException ste) {
+      // Expected
+    }
+    peer.setSoTimeout(5000);
+    reply(peer.getOutputStream(), auth);
+    for (int i = 0; i < 3; i++) {
+      Packet packet = readPacket(decoder, peer.getInputStream(), pending);
+      assertEquals((short) 0x0200, packet.getMsgId());
+      assertEquals(i, packet.getPayload()[0]);
+    }
+
+    // Listeners are kept across connections
+    peer.getOutputStream().write(new Packet(SERVER_MSG_ID, false, Message.CIPHER_NONE,
+                                            auth.getPhone(), (short) 2, 0, 0, new byte[1])
+                                     .getBytes());
+    assertTrue(received.await(5, TimeUnit.SECONDS));
+    assertTrue(conn.isConnected());
+
+    conn.shutDown();
+    peer.close();
+    server.close();
+  }
+
+}
@@ -0,0 +1,83 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.deew.jt808.conn.ReplyFuture;
+import com.deew.jt808.conn.ReplyWaiters;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.RegisterReply;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit test for {@link ReplyWaiters}, will execute on the development machine (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class ReplyWaitersTest {
+
+  private static RegisterReply registerReply(int reqSn) {
+    Message msg = new Message.Builder(RegisterReply.ID)
+        .body(new byte[]{ (byte) (reqSn >> 8), (byte) reqSn, RegisterReply.RESULT_OK, 'a' })
+        .build();
+    return new RegisterReply.Builder(msg).build();
+  }
+
+  @Test
+  public void testComplete() throws Exception {
+    ReplyWaiters waiters = new ReplyWaiters();
+    ReplyFuture<RegisterReply> first = waiters.expect(RegisterReply.ID, (short) 7, 5000);
+    ReplyFuture<RegisterReply> second = waiters.expect(RegisterReply.ID, (short) 0x8008, 5000);
+    assertEquals(2, waiters.size());
+
+    // Other serial number, or not a reply
+    assertFalse(waiters.complete(registerReply(9)));
+    assertFalse(waiters.complete(new Message.Builder(RegisterReply.ID).body(new byte[4]).build()));
+    assertFalse(first.isDone());
+
+    RegisterReply reply = registerReply(7);
+    assertTrue(waiters.complete(reply));
+    assertSame(reply, first.get(0, TimeUnit.MILLISECONDS));
+    // Completed once
+    assertFalse(waiters.complete(reply));
+
+    reply = registerReply(0x8008);
+    assertTrue(waiters.complete(reply));
+    assertSame(reply, second.get());
+    assertEquals(0, waiters.size());
+  }
+
+  @Test
+  public void testTimeoutAndFailAll() throws Exception {
+    ReplyWaiters waiters = new ReplyWaiters();
+    ReplyFuture<RegisterReply> timed = waiters.expect(RegisterReply.ID, (short) 1, 200);
+    ReplyFuture<RegisterReply> untimed = waiters.expect(RegisterReply.ID, (short) 2, 0);
+    try {
+      timed.get(5, TimeUnit.SECONDS);
+      fail("No timeout.");
+    } catch (ExecutionException ee) {
+      assertTrue(ee.getCause() instanceof TimeoutException);
+    }
+    assertEquals(1, waiters.size());
+    assertFalse(waiters.complete(registerReply(1)));
+
+    waiters.failAll(new IOException("Closed."));
+    assertEquals(0, waiters.size());
+    try {
+      untimed.get();
+      fail("Not failed.");
+    } catch (ExecutionException ee) {
+      assertTrue(ee.getCause() instanceof IOException);
+    }
+  }
+
+}
@@ -0,0 +1,81 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.SerialNumberAllocator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Local unit test for {@link SerialNumberAllocator}, will execute on the development machine
+ * (host).
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class SerialNumberAllocatorTest {
+
+  @Test
+  public void testWrapAround() {
+    SerialNumberAllocator allocator = new SerialNumberAllocator(0xfffe);
+
+    assertEquals((short) 0xfffe, allocator.next());
+    assertEquals((short) 0xffff, allocator.reserve(3));
+    assertEquals((short) 0x0002, allocator.next());
+  }
+
+  @Test
+  public void testLongMessagePackets() {
+    SerialNumberAllocator allocator = new SerialNumberAllocator(0xffff);
+    Message msg = new Message.Builder((short) 0x0801).body(new byte[0x3ff * 2 + 1])
+        .build();
+
+    Packet[] packets = msg.getPackets(allocator);
+    assertEquals(3, packets.length);
+    assertEquals((short) 0xffff, packets[0].getSn());
+    assertEquals((short) 0x0000, packets[1].getSn());
+    assertEquals((short) 0x0001, packets[2].getSn());
+    assertEquals((short) 0x0002, allocator.peek());
+  }
+
+  @Test
+  public void testConcurrentUnique() throws InterruptedException {
+    final SerialNumberAllocator allocator = new SerialNumberAllocator();
+    final boolean[] taken = new boolean[0x10000];
+    final boolean[] duplicate = new boolean[1];
+
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 4096; i++) {
+            int first = allocator.reserve(4) & 0xffff;
+            synchronized (taken) {
+              for (int j = 0; j < 4; j++) {
+                int sn = (first + j) & 0xffff;
+                duplicate[0] |= taken[sn];
+                taken[sn] = true;
+              }
+            }
+          }
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertFalse(duplicate[0]);
+    assertEquals(0, allocator.peek());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReserveNone() {
+    new SerialNumberAllocator().reserve(0);
+  }
+
+}
@@ -0,0 +1,137 @@
+package ml.that.jt808;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.deew.jt808.conn.ConnectionConfiguration;
+import com.deew.jt808.conn.Session;
+import com.deew.jt808.conn.SessionHost;
+import com.deew.jt808.msg.AuthenticateRequest;
+import com.deew.jt808.msg.Message;
+import com.deew.jt808.msg.Packet;
+import com.deew.jt808.msg.PacketDecoder;
+import com.deew.jt808.msg.ServerGenericReply;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Local unit test for {@link SessionHost}, will execute on the development machine (host) against a
+ * server socket on the loopback interface.
+ *
+ * @see <a href="http://d.android.com/tools/testing">Testing documentation</a>
+ */
+public class SessionHostTest {
+
+  private static final byte[] PHONE_1 = { 0x01, 0x39, 0x00, 0x00, 0x00, 0x01 };
+  private static final byte[] PHONE_2 = { 0x01, 0x39, 0x00, 0x00, 0x00, 0x02 };
+
+  private static Packet readPacket(PacketDecoder decoder, InputStream in) throws Exception {
+    List<Packet> out = new ArrayList<>();
+    while (decoder.decode(out) == 0) {
+      assertTrue(decoder.readFrom(in) > 0);
+    }
+    return out.get(0);
+  }
+
+  private static void replyOk(Socket peer, Packet request) throws Exception {
+    reply(peer, request, ServerGenericReply.RESULT_OK);
+  }
+
+  private static void reply(Socket peer, Packet request, byte result) throws Exception {
+    short sn = request.getSn();
+    short id = request.getMsgId();
+    Packet reply = new Packet(ServerGenericReply.ID, false, Message.CIPHER_NONE,
+                              request.getPhone(), (short) 1, 0, 0,
+                              new byte[]{ (byte) (sn >> 8), (byte) sn, (byte) (id >> 8), (byte) id,
+                                          result });
+    peer.getOutputStream().write(reply.getBytes());
+  }
+
+  @Test
+  public void testSessions() throws Exception {
+    ServerSocket server = new ServerSocket(0, 2, InetAddress.getByName("127.0.0.1"));
+    SessionHost host = new SessionHost(
+        new ConnectionConfiguration("127.0.0.1", server.getLocalPort()), 2);
+
+    Session session1 = host.open(PHONE_1, "code1");
+    Session session2 = host.open(PHONE_2, "code2");
+    assertSame(session1, host.getSession(PHONE_1));
+    try {
+      host.open(PHONE_1, "code1");
+      fail("Terminal should have a single session.");
+    } catch (IllegalStateException ise) {
+      // Expected
+    }
+
+    List<byte[]> phones = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      Socket peer = server.accept();
+      peer.setSoTimeout(5000);
+      Packet auth = readPacket(new PacketDecoder(), peer.getInputStream());
+      assertEquals(AuthenticateRequest.ID, auth.getMsgId());
+      phones.add(auth.getPhone());
+      replyOk(peer, auth);
+    }
+    // Each session sends on behalf of its own terminal
+    assertTrue(phones.get(0)[5] != phones.get(1)[5]);
+
+    for (int i = 0; i < 500 && host.getMetrics().getAuthenticatedCount() < 2; i++) {
+      Thread.sleep(10);
+    }
+    SessionHost.Metrics metrics = host.getMetrics();
+    assertEquals(2, metrics.getSessionCount());
+    assertEquals(2, metrics.getConnectedCount());
+    assertEquals(2, metrics.getAuthenticatedCount());
+    assertEquals(0, metrics.getPendingAckCount());
+    assertTrue(metrics.getBytesRead() > 0);
+    assertTrue(metrics.getBytesWritten() > 0);
+    assertTrue(session1.isAuthenticated());
+
+    session2.close();
+    assertNull(host.getSession(PHONE_2));
+    assertArrayEquals(PHONE_1, host.getSessions().iterator().next().getPhone());
+
+    host.shutdown();
+    assertEquals(0, host.getMetrics().getSessionCount());
+    server.close();
+  }
+
+  @Test
+  public void testRejectedAuthentication() throws Exception {
+    ServerSocket server = new ServerSocket(0, 2, InetAddress.getByName("127.0.0.1"));
+    SessionHost host = new SessionHost(
+        new ConnectionConfiguration("127.0.0.1", server.getLocalPort()), 1);
+
+    Session session = host.open(PHONE_1, "wrong");
+    Socket peer = server.accept();
+    peer.setSoTimeout(5000);
+    reply(peer, readPacket(new PacketDecoder(), peer.getInputStream()),
+          ServerGenericReply.RESULT_FAIL);
+
+    for (int i = 0; i < 500 && host.getSession(PHONE_1) != null; i++) {
+      Thread.sleep(10);
+    }
+    // The rejected session is gone, the terminal may open a new one
+    assertNull(host.getSession(PHONE_1));
+    assertEquals(0, host.getMetrics().getSessionCount());
+    assertTrue(!session.isAuthenticated());
+    Session retry = host.open(PHONE_1, "code1");
+    assertSame(retry, host.getSession(PHONE_1));
+
+    host.shutdown();
+    peer.close();
+    server.close();
+  }
+
+}